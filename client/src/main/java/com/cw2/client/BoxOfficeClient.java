@@ -4,6 +4,8 @@ import ds.tutorial.communication.grpc.generated.*;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
 
 
@@ -13,6 +15,7 @@ public class BoxOfficeClient {
     private CustomerServiceGrpc.CustomerServiceBlockingStub customerStub = null;
     private String host = null;
     private int port = -1;
+    private final Map<String, GetConcertResponse> showCache = new HashMap<>();
 
     public BoxOfficeClient(String host, int port) {
         this.host = host;
@@ -41,6 +44,7 @@ public class BoxOfficeClient {
             System.out.println("1. View available concerts");
             System.out.println("2. View concert details");
             System.out.println("3. Update concert ticket stock");
+            System.out.println("4. View tickets sold for a concert");
             System.out.println("0. Exit");
             System.out.print("Enter your choice: ");
 
@@ -58,6 +62,9 @@ public class BoxOfficeClient {
                 case 3:
                     updateTicketStock(userInput);
                     break;
+                case 4:
+                    viewTicketsSold(userInput);
+                    break;
                 default:
                     System.out.println("Invalid choice. Please try again.");
             }
@@ -88,23 +95,34 @@ public class BoxOfficeClient {
         }
     }
 
+    /**
+     * Looks a show up by ID. The last copy seen is kept with its version, and
+     * the server only sends the show again if it changed since.
+     */
+    private ConcertShow fetchConcert(String showId) {
+        GetConcertResponse cached = showCache.get(showId);
+        GetConcertResponse response = customerStub.getConcert(GetConcertRequest.newBuilder()
+                .setShowId(showId)
+                .setKnownVersion(cached != null ? cached.getVersion() : 0)
+                .build());
+
+        if (response.getNotModified()) {
+            return cached.getShow();
+        }
+        if (!response.hasShow()) {
+            showCache.remove(showId);
+            return null;
+        }
+        showCache.put(showId, response);
+        return response.getShow();
+    }
+
     private void viewConcertDetails(Scanner userInput) {
         System.out.println("\n--- CONCERT DETAILS ---");
         System.out.print("Enter concert ID: ");
         String showId = userInput.nextLine().trim();
 
-        
-        ListConcertsRequest listRequest = ListConcertsRequest.newBuilder().build();
-        ListConcertsResponse listResponse = customerStub.listConcerts(listRequest);
-
-        ConcertShow show = null;
-        for (ConcertShow concert : listResponse.getShowsList()) {
-            if (concert.getId().equals(showId)) {
-                show = concert;
-                break;
-            }
-        }
-
+        ConcertShow show = fetchConcert(showId);
         if (show == null) {
             System.out.println("Concert not found with ID: " + showId);
             return;
@@ -132,23 +150,29 @@ public class BoxOfficeClient {
         }
     }
 
-    private void updateTicketStock(Scanner userInput) {
-        System.out.println("\n--- UPDATE TICKET STOCK ---");
+    private void viewTicketsSold(Scanner userInput) {
+        System.out.println("\n--- TICKETS SOLD ---");
         System.out.print("Enter concert ID: ");
         String showId = userInput.nextLine().trim();
 
-        
-        ListConcertsRequest listRequest = ListConcertsRequest.newBuilder().build();
-        ListConcertsResponse listResponse = customerStub.listConcerts(listRequest);
-
-        ConcertShow show = null;
-        for (ConcertShow concert : listResponse.getShowsList()) {
-            if (concert.getId().equals(showId)) {
-                show = concert;
-                break;
-            }
+        GetShowTotalsResponse response = customerStub.getShowTotals(GetShowTotalsRequest.newBuilder()
+                .setShowId(showId)
+                .build());
+        if (!response.getFound()) {
+            System.out.println("Concert not found with ID: " + showId);
+            return;
         }
 
+        System.out.println("Reserved tickets: " + response.getReservedTickets());
+        System.out.println("Reserved after-party tickets: " + response.getReservedAfterPartyTickets());
+    }
+
+    private void updateTicketStock(Scanner userInput) {
+        System.out.println("\n--- UPDATE TICKET STOCK ---");
+        System.out.print("Enter concert ID: ");
+        String showId = userInput.nextLine().trim();
+
+        ConcertShow show = fetchConcert(showId);
         if (show == null) {
             System.out.println("Concert not found with ID: " + showId);
             return;
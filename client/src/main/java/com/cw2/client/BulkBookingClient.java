@@ -4,7 +4,10 @@ import ds.tutorial.communication.grpc.generated.*;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.UUID;
 
 public class BulkBookingClient {
     private ManagedChannel channel = null;
@@ -127,90 +130,97 @@ public class BulkBookingClient {
 
     private void bookBulkTickets(Scanner userInput) {
         System.out.println("\n--- BULK TICKET BOOKING FOR GROUPS ---");
-        System.out.print("Enter concert ID: ");
-        String showId = userInput.nextLine().trim();
-
-        
-        GetConcertRequest getConcertRequest = GetConcertRequest.newBuilder()
-                .setShowId(showId)
-                .build();
-
-        GetConcertResponse getConcertResponse = customerStub.getConcert(getConcertRequest);
-
-        if (getConcertResponse.getShow() == null || getConcertResponse.getShow().getId().isEmpty()) {
-            System.out.println("Concert not found with ID: " + showId);
-            return;
-        }
-
-        ConcertShow show = getConcertResponse.getShow();
-
         System.out.print("Enter group name or organization: ");
         String groupName = userInput.nextLine().trim();
 
-        
-        System.out.println("\nAvailable seat tiers:");
-        for (int i = 0; i < show.getSeatTiersCount(); i++) {
-            SeatTier tier = show.getSeatTiers(i);
-            System.out.println((i+1) + ". " + tier.getType() +
-                    " - " + tier.getAvailable() + " seats available at $" +
-                    String.format("%.2f", tier.getPrice()));
-        }
-
-        System.out.print("Enter seat type: ");
-        String seatType = userInput.nextLine().trim();
-
-        System.out.print("Enter number of tickets for the group: ");
-        int quantity = Integer.parseInt(userInput.nextLine().trim());
-
-        boolean includeAfterParty = false;
-
-        if (show.getHasAfterParty() && show.getAfterPartyTickets() > 0) {
-            System.out.print("Would you like to include after-party tickets for the group? (yes/no): ");
-            includeAfterParty = userInput.nextLine().trim().equalsIgnoreCase("yes");
-        }
-
-        
+        ReserveBatchRequest.Builder request = ReserveBatchRequest.newBuilder();
+        List<String> lines = new ArrayList<>();
         double totalCost = 0.0;
+        int totalQuantity = 0;
+        while (true) {
+            System.out.print("\nEnter concert ID: ");
+            String showId = userInput.nextLine().trim();
+
+            GetConcertResponse getConcertResponse = customerStub.getConcert(GetConcertRequest.newBuilder()
+                    .setShowId(showId)
+                    .build());
+            ConcertShow show = getConcertResponse.getShow();
+            if (show.getId().isEmpty()) {
+                System.out.println("Concert not found with ID: " + showId);
+            } else {
+                System.out.println("\nAvailable seat tiers for " + show.getName() + ":");
+                for (int i = 0; i < show.getSeatTiersCount(); i++) {
+                    SeatTier tier = show.getSeatTiers(i);
+                    System.out.println((i+1) + ". " + tier.getType() +
+                            " - " + tier.getAvailable() + " seats available at $" +
+                            String.format("%.2f", tier.getPrice()));
+                }
+
+                System.out.print("Enter seat type: ");
+                String seatType = userInput.nextLine().trim();
+
+                System.out.print("Enter number of tickets for the group: ");
+                int quantity = Integer.parseInt(userInput.nextLine().trim());
+
+                boolean includeAfterParty = false;
+                if (show.getHasAfterParty() && show.getAfterPartyTickets() > 0) {
+                    System.out.print("Would you like to include after-party tickets for the group? (yes/no): ");
+                    includeAfterParty = userInput.nextLine().trim().equalsIgnoreCase("yes");
+                }
+
+                SeatTier chosen = null;
+                for (SeatTier tier : show.getSeatTiersList()) {
+                    if (tier.getType().equalsIgnoreCase(seatType)) {
+                        chosen = tier;
+                        break;
+                    }
+                }
+
+                if (chosen == null) {
+                    System.out.println("Error: Seat type '" + seatType + "' not found.");
+                } else {
+                    request.addItems(BatchLineItem.newBuilder()
+                            .setShowId(showId)
+                            .setSeatType(seatType)
+                            .setQuantity(quantity)
+                            .setIncludeAfterParty(includeAfterParty));
+                    totalCost += chosen.getPrice() * quantity;
+                    totalQuantity += quantity;
+                    lines.add(show.getName() + " (" + show.getDate() + "): " + quantity + " x " + seatType
+                            + (includeAfterParty ? " with after-party" : ""));
+                }
+            }
 
-        boolean foundTier = false;
-        for (SeatTier tier : show.getSeatTiersList()) {
-            if (tier.getType().equalsIgnoreCase(seatType)) {
-                totalCost += tier.getPrice() * quantity;
-                foundTier = true;
+            System.out.print("\nAdd tickets for another seat tier or concert? (yes/no): ");
+            if (!userInput.nextLine().trim().equalsIgnoreCase("yes")) {
                 break;
             }
         }
 
-        if (!foundTier) {
-            System.out.println("Error: Seat type '" + seatType + "' not found.");
+        if (request.getItemsCount() == 0) {
+            System.out.println("No tickets selected.");
             return;
         }
 
-        
         double discountRate = 0.0;
-        if (quantity >= 20) {
-            discountRate = 0.15; 
-        } else if (quantity >= 10) {
-            discountRate = 0.10; 
-        } else if (quantity >= 5) {
-            discountRate = 0.05; 
+        if (totalQuantity >= 20) {
+            discountRate = 0.15;
+        } else if (totalQuantity >= 10) {
+            discountRate = 0.10;
+        } else if (totalQuantity >= 5) {
+            discountRate = 0.05;
         }
 
         double discountAmount = totalCost * discountRate;
         double discountedTotal = totalCost - discountAmount;
 
-        
         System.out.println("\nBULK BOOKING SUMMARY");
         System.out.println("====================");
-        System.out.println("Concert: " + show.getName());
-        System.out.println("Date: " + show.getDate());
         System.out.println("Group Name: " + groupName);
-        System.out.println("Seat Type: " + seatType);
-        System.out.println("Number of Tickets: " + quantity);
-
-        if (includeAfterParty) {
-            System.out.println("After-Party Tickets: Included");
+        for (String line : lines) {
+            System.out.println(line);
         }
+        System.out.println("Number of Tickets: " + totalQuantity);
 
         System.out.println("Subtotal: $" + String.format("%.2f", totalCost));
         if (discountRate > 0) {
@@ -228,24 +238,17 @@ public class BulkBookingClient {
             return;
         }
 
-        
-        
         String customerId = "GROUP-" + groupName.replaceAll("\\s+", "-") + "-" + System.currentTimeMillis();
-
-        ReserveTicketRequest request = ReserveTicketRequest.newBuilder()
-                .setShowId(showId)
-                .setSeatType(seatType)
-                .setQuantity(quantity)
-                .setIncludeAfterParty(includeAfterParty)
-                .setIsSentByPrimary(false)
-                .setCustomerId(customerId)
-                .build();
+        request.setCustomerId(customerId).setIdempotencyKey(UUID.randomUUID().toString());
 
         System.out.println("Sending bulk booking request...");
-        ReserveTicketResponse response = customerStub.reserveTicket(request);
+        ReserveBatchResponse response = customerStub.reserveBatch(request.build());
 
         if (response.getStatus()) {
-            System.out.println("Bulk booking successful! Reservation ID: " + response.getReservationId());
+            System.out.println("Bulk booking successful! Reservation IDs:");
+            for (int i = 0; i < response.getReservationIdsCount(); i++) {
+                System.out.println("  " + lines.get(i) + ": " + response.getReservationIds(i));
+            }
         } else {
             System.out.println("Bulk booking failed: " + response.getMessage());
         }
@@ -409,6 +409,7 @@ public class ConcertManagementClient {
                 .setIncludeAfterParty(includeAfterParty)
                 .setIsSentByPrimary(false)
                 .setCustomerId(customerId)
+                .setIdempotencyKey(UUID.randomUUID().toString())
                 .build();
 
         System.out.println("Sending request to reserve tickets...");
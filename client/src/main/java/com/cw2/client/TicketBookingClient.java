@@ -1,14 +1,24 @@
 package com.cw2.client;
 
 import ds.tutorial.communication.grpc.generated.*;
+import io.grpc.Context;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.stub.StreamObserver;
 
+import java.util.Date;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class TicketBookingClient {
+    private static final int PAGE_SIZE = 20;
+    private static final int HOLD_MINUTES = 5;
+
     private ManagedChannel channel = null;
     CustomerServiceGrpc.CustomerServiceBlockingStub customerStub = null;
+    CustomerServiceGrpc.CustomerServiceStub customerAsyncStub = null;
     ConcertOrganizerServiceGrpc.ConcertOrganizerServiceBlockingStub organizerStub = null;
     BoxOfficeServiceGrpc.BoxOfficeServiceBlockingStub boxOfficeStub = null;
     String host = null;
@@ -25,6 +35,7 @@ public class TicketBookingClient {
                 .usePlaintext()
                 .build();
         customerStub = CustomerServiceGrpc.newBlockingStub(channel);
+        customerAsyncStub = CustomerServiceGrpc.newStub(channel);
         organizerStub = ConcertOrganizerServiceGrpc.newBlockingStub(channel);
         boxOfficeStub = BoxOfficeServiceGrpc.newBlockingStub(channel);
     }
@@ -42,6 +53,10 @@ public class TicketBookingClient {
             System.out.println("1. View available concerts");
             System.out.println("2. View concert details");
             System.out.println("3. Reserve tickets");
+            System.out.println("4. Watch live availability");
+            System.out.println("5. Search concerts");
+            System.out.println("6. View my reservations");
+            System.out.println("7. Look up a reservation");
             System.out.println("0. Exit");
             System.out.print("Enter your choice: ");
 
@@ -51,7 +66,7 @@ public class TicketBookingClient {
                 case 0:
                     return;
                 case 1:
-                    viewAvailableConcerts();
+                    viewAvailableConcerts(userInput);
                     break;
                 case 2:
                     viewConcertDetails(userInput);
@@ -59,6 +74,18 @@ public class TicketBookingClient {
                 case 3:
                     reserveTickets(userInput);
                     break;
+                case 4:
+                    watchAvailability(userInput);
+                    break;
+                case 5:
+                    searchConcerts(userInput);
+                    break;
+                case 6:
+                    viewMyReservations(userInput);
+                    break;
+                case 7:
+                    lookUpReservation(userInput);
+                    break;
                 default:
                     System.out.println("Invalid choice. Please try again.");
             }
@@ -66,27 +93,135 @@ public class TicketBookingClient {
         }
     }
 
-    private void viewAvailableConcerts() {
+    private void viewAvailableConcerts(Scanner userInput) {
         System.out.println("\n--- AVAILABLE CONCERTS ---");
+        printConcertPages(userInput, ListConcertsRequest.newBuilder());
+    }
 
-        ListConcertsRequest request = ListConcertsRequest.newBuilder().build();
-        ListConcertsResponse response = customerStub.listConcerts(request);
+    private void searchConcerts(Scanner userInput) {
+        System.out.println("\n--- SEARCH CONCERTS (leave blank to skip a filter) ---");
+        ListConcertsRequest.Builder request = ListConcertsRequest.newBuilder();
+
+        System.out.print("Venue: ");
+        request.setVenue(userInput.nextLine().trim());
+        System.out.print("From date (YYYY-MM-DD): ");
+        request.setDateFrom(userInput.nextLine().trim());
+        System.out.print("To date (YYYY-MM-DD): ");
+        request.setDateTo(userInput.nextLine().trim());
+        System.out.print("Seat tier with seats left: ");
+        request.setSeatTier(userInput.nextLine().trim());
+        System.out.print("Only shows with after-party tickets left? (yes/no): ");
+        request.setWithAfterPartyTickets(userInput.nextLine().trim().equalsIgnoreCase("yes"));
+
+        printConcertPages(userInput, request);
+    }
 
-        if (response.getShowsCount() == 0) {
+    private void printConcertPages(Scanner userInput, ListConcertsRequest.Builder request) {
+        request.setPageSize(PAGE_SIZE);
+        boolean found = false;
+        while (true) {
+            ListConcertsResponse response = customerStub.listConcerts(request.build());
+            for (ConcertShow show : response.getShowsList()) {
+                if (!found) {
+                    System.out.println("Available concerts:");
+                    System.out.println("-------------------");
+                    found = true;
+                }
+                System.out.println("ID: " + show.getId());
+                System.out.println("Name: " + show.getName());
+                System.out.println("Date: " + show.getDate());
+                System.out.println("Venue: " + show.getVenue());
+                System.out.println("Has After-Party: " + (show.getHasAfterParty() ? "Yes" : "No"));
+                System.out.println("-------------------");
+            }
+            if (response.getNextPageToken().isEmpty()) {
+                break;
+            }
+            System.out.print("Show more? (yes/no): ");
+            if (!userInput.nextLine().trim().equalsIgnoreCase("yes")) {
+                break;
+            }
+            request.setPageToken(response.getNextPageToken());
+        }
+
+        if (!found) {
             System.out.println("No concerts available.");
-            return;
         }
+    }
 
-        System.out.println("Available concerts:");
-        System.out.println("-------------------");
-        for (ConcertShow show : response.getShowsList()) {
-            System.out.println("ID: " + show.getId());
-            System.out.println("Name: " + show.getName());
-            System.out.println("Date: " + show.getDate());
-            System.out.println("Venue: " + show.getVenue());
-            System.out.println("Has After-Party: " + (show.getHasAfterParty() ? "Yes" : "No"));
-            System.out.println("-------------------");
+    private void watchAvailability(Scanner userInput) {
+        System.out.println("\n--- LIVE AVAILABILITY (press Enter to stop) ---");
+        Map<String, ConcertShow> shows = new ConcurrentHashMap<>();
+
+        StreamObserver<AvailabilityUpdate> observer = new StreamObserver<AvailabilityUpdate>() {
+            @Override
+            public void onNext(AvailabilityUpdate update) {
+                if (update.getSnapshot()) {
+                    shows.clear();
+                    for (ConcertShow show : update.getShowsList()) {
+                        shows.put(show.getId(), show);
+                        printAvailability(show);
+                    }
+                    return;
+                }
+                for (ShowAvailability change : update.getChangesList()) {
+                    if (change.getRemoved()) {
+                        shows.remove(change.getShowId());
+                        System.out.println("[" + change.getShowId() + "] cancelled");
+                        continue;
+                    }
+                    ConcertShow show = change.hasShow() ? change.getShow() : applyChange(shows.get(change.getShowId()), change);
+                    if (show != null) {
+                        shows.put(show.getId(), show);
+                        printAvailability(show);
+                    }
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                System.out.println("Availability stream closed: " + t.getMessage());
+            }
+
+            @Override
+            public void onCompleted() {
+                System.out.println("Availability stream completed");
+            }
+        };
+
+        Context.CancellableContext context = Context.current().withCancellation();
+        context.run(() -> customerAsyncStub.watchConcerts(WatchConcertsRequest.newBuilder().build(), observer));
+        userInput.nextLine();
+        context.cancel(null);
+    }
+
+    private ConcertShow applyChange(ConcertShow show, ShowAvailability change) {
+        if (show == null) {
+            return null;
+        }
+        ConcertShow.Builder updated = show.toBuilder();
+        for (TierAvailability tier : change.getTiersList()) {
+            for (int i = 0; i < updated.getSeatTiersCount(); i++) {
+                if (updated.getSeatTiers(i).getType().equals(tier.getType())) {
+                    updated.setSeatTiers(i, updated.getSeatTiers(i).toBuilder().setAvailable(tier.getAvailable()));
+                }
+            }
         }
+        if (change.getAfterPartyChanged()) {
+            updated.setAfterPartyTickets(change.getAfterPartyTickets());
+        }
+        return updated.build();
+    }
+
+    private void printAvailability(ConcertShow show) {
+        StringBuilder line = new StringBuilder("[" + show.getId() + "] " + show.getName() + ":");
+        for (SeatTier tier : show.getSeatTiersList()) {
+            line.append(" ").append(tier.getType()).append("=").append(tier.getAvailable());
+        }
+        if (show.getHasAfterParty()) {
+            line.append(" after-party=").append(show.getAfterPartyTickets());
+        }
+        System.out.println(line);
     }
 
     private void viewConcertDetails(Scanner userInput) {
@@ -94,18 +229,10 @@ public class TicketBookingClient {
         System.out.print("Enter concert ID: ");
         String showId = userInput.nextLine().trim();
 
-        
-        ListConcertsRequest listRequest = ListConcertsRequest.newBuilder().build();
-        ListConcertsResponse listResponse = customerStub.listConcerts(listRequest);
-
-        ConcertShow show = null;
-        for (ConcertShow concert : listResponse.getShowsList()) {
-            if (concert.getId().equals(showId)) {
-                show = concert;
-                break;
-            }
-        }
-
+        GetConcertResponse concertResponse = customerStub.getConcert(GetConcertRequest.newBuilder()
+                .setShowId(showId)
+                .build());
+        ConcertShow show = concertResponse.hasShow() ? concertResponse.getShow() : null;
         if (show == null) {
             System.out.println("Concert not found with ID: " + showId);
             return;
@@ -133,22 +260,66 @@ public class TicketBookingClient {
         }
     }
 
+    private void viewMyReservations(Scanner userInput) {
+        System.out.println("\n--- MY RESERVATIONS ---");
+        System.out.print("Enter your customer ID: ");
+        String customerId = userInput.nextLine().trim();
+
+        ListCustomerReservationsResponse response = customerStub.listCustomerReservations(
+                ListCustomerReservationsRequest.newBuilder()
+                        .setCustomerId(customerId)
+                        .build());
+        if (response.getReservationsCount() == 0 && response.getHoldsCount() == 0) {
+            System.out.println("No reservations found for customer " + customerId);
+            return;
+        }
+
+        for (Reservation reservation : response.getReservationsList()) {
+            printReservation(reservation, false);
+        }
+        for (Reservation hold : response.getHoldsList()) {
+            printReservation(hold, true);
+        }
+    }
+
+    private void lookUpReservation(Scanner userInput) {
+        System.out.println("\n--- LOOK UP RESERVATION ---");
+        System.out.print("Enter reservation ID: ");
+        String reservationId = userInput.nextLine().trim();
+
+        GetReservationResponse response = customerStub.getReservation(GetReservationRequest.newBuilder()
+                .setReservationId(reservationId)
+                .build());
+        if (!response.getFound()) {
+            System.out.println("Reservation not found with ID: " + reservationId);
+            return;
+        }
+        printReservation(response.getReservation(), response.getHeld());
+    }
+
+    private void printReservation(Reservation reservation, boolean held) {
+        System.out.println("Reservation ID: " + reservation.getReservationId());
+        System.out.println("Concert ID: " + reservation.getShowId());
+        System.out.println("Seat Type: " + reservation.getSeatType());
+        System.out.println("Number of Tickets: " + reservation.getQuantity());
+        System.out.println("After-Party Tickets: " + (reservation.getIncludeAfterParty() ? "Included" : "Not included"));
+        if (held) {
+            System.out.println("Status: Held until " + new Date(reservation.getHoldUntilMillis()));
+        } else {
+            System.out.println("Status: Confirmed");
+        }
+        System.out.println("-------------------");
+    }
+
     private void reserveTickets(Scanner userInput) {
         System.out.println("\n--- RESERVE CONCERT TICKETS ---");
         System.out.print("Enter concert ID: ");
         String showId = userInput.nextLine().trim();
 
-        ListConcertsRequest listRequest = ListConcertsRequest.newBuilder().build();
-        ListConcertsResponse listResponse = customerStub.listConcerts(listRequest);
-
-        ConcertShow show = null;
-        for (ConcertShow concert : listResponse.getShowsList()) {
-            if (concert.getId().equals(showId)) {
-                show = concert;
-                break;
-            }
-        }
-
+        GetConcertResponse concertResponse = customerStub.getConcert(GetConcertRequest.newBuilder()
+                .setShowId(showId)
+                .build());
+        ConcertShow show = concertResponse.hasShow() ? concertResponse.getShow() : null;
         if (show == null) {
             System.out.println("Concert not found with ID: " + showId);
             return;
@@ -194,6 +365,19 @@ public class TicketBookingClient {
             return;
         }
 
+        HoldTicketsResponse hold = customerStub.holdTickets(HoldTicketsRequest.newBuilder()
+                .setShowId(showId)
+                .setCustomerId(customerId)
+                .setSeatType(seatType)
+                .setQuantity(quantity)
+                .setIncludeAfterParty(includeAfterParty)
+                .setHoldMillis(TimeUnit.MINUTES.toMillis(HOLD_MINUTES))
+                .build());
+        if (!hold.getStatus()) {
+            System.out.println("Reservation failed: " + hold.getMessage());
+            return;
+        }
+
         System.out.println("\nRESERVATION SUMMARY");
         System.out.println("====================");
         System.out.println("Concert: " + show.getName());
@@ -206,31 +390,20 @@ public class TicketBookingClient {
         }
 
         System.out.println("Total Cost: $" + String.format("%.2f", totalCost));
+        System.out.println("Your seats are held for " + HOLD_MINUTES + " minutes.");
         System.out.print("\nConfirm reservation? (yes/no): ");
         String confirmation = userInput.nextLine().trim();
 
         if (!confirmation.equalsIgnoreCase("yes")) {
+            customerStub.releaseHold(ReleaseHoldRequest.newBuilder().setHoldId(hold.getHoldId()).build());
             System.out.println("Reservation cancelled.");
             return;
         }
 
-        ReserveTicketRequest request = ReserveTicketRequest.newBuilder()
-                .setShowId(showId)
-                .setCustomerId(customerId)
-                .setSeatType(seatType)
-                .setQuantity(quantity)
-                .setIncludeAfterParty(includeAfterParty)
-                .setIsSentByPrimary(false)
-                .build();
-
-        System.out.println("Request details: " +
-                "ShowID: " + request.getShowId() +
-                ", CustomerID: " + request.getCustomerId() +
-                ", SeatType: " + request.getSeatType() +
-                ", Quantity: " + request.getQuantity());
         System.out.println("Sending reservation request...");
-        ReserveTicketResponse response = customerStub.reserveTicket(request);
-        System.out.println("response..." + response.toString());
+        ConfirmHoldResponse response = customerStub.confirmHold(ConfirmHoldRequest.newBuilder()
+                .setHoldId(hold.getHoldId())
+                .build());
 
         if (response.getStatus()) {
             System.out.println("Reservation successful! Reservation ID: " + response.getReservationId());
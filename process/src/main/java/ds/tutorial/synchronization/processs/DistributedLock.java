@@ -11,19 +11,43 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DistributedLock implements Watcher {
+    private static final class Membership {
+        final List<String> others;
+        final String holder;
+
+        Membership(List<String> others, String holder) {
+            this.others = others;
+            this.holder = holder;
+        }
+    }
+
     private String childPath;
     private ZooKeeperClient client;
     private String lockPath;
-    private boolean isAcquired = false;
+    private volatile boolean isAcquired = false;
     private String watchedNode;
-    CountDownLatch startFlag = new CountDownLatch(1);
+    private volatile boolean sessionExpired = false;
     CountDownLatch eventReceivedFlag;
     public static String zooKeeperUrl;
     private static String lockProcessPath = "/lp_";
     private byte[] myDataBytes;
+    private volatile Membership membership;
+    private final AtomicLong membershipGeneration = new AtomicLong();
+    private final List<Runnable> membershipListeners = new CopyOnWriteArrayList<>();
+    private final List<Runnable> lockLostListeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService membershipUpdates = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "membership-view");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public static void setZooKeeperURL(String url) {
         zooKeeperUrl = url;
@@ -32,8 +56,10 @@ public class DistributedLock implements Watcher {
     public DistributedLock(String lockName, String data) throws IOException, KeeperException, InterruptedException {
         myDataBytes = data.getBytes(StandardCharsets.UTF_8);
         this.lockPath = "/" + lockName;
-        client = new ZooKeeperClient(zooKeeperUrl, 5000, this);
-        startFlag.await();
+        ZooKeeperSession session = ZooKeeperSession.shared(zooKeeperUrl);
+        client = new ZooKeeperClient(session, this);
+        session.addListener(this);
+        session.awaitConnected();
         if (client.CheckExists(lockPath) == false) {
             createRootNode();
         }
@@ -64,16 +90,111 @@ public class DistributedLock implements Watcher {
     public List<byte[]> getOthersData() throws
             KeeperException, InterruptedException {
         List<byte[]> result = new ArrayList<>();
-        List<String> childrenNodePaths =
-                client.getChildrenNodePaths(lockPath);
+        for (String member : getMembershipView()) {
+            result.add(member.getBytes(StandardCharsets.UTF_8));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the data of the other members as an immutable snapshot. The view
+     * is cached and a child watch on the lock node invalidates it, so this
+     * only goes to ZooKeeper after the membership changed.
+     */
+    public List<String> getMembershipView() throws KeeperException, InterruptedException {
+        return membership().others;
+    }
+
+    /** Returns the data of the current lock holder from the same cached view, or null if there is none. */
+    public String getLockHolderView() throws KeeperException, InterruptedException {
+        return membership().holder;
+    }
+
+    /** Registers a callback run, off the ZooKeeper event thread, after the membership view changed. */
+    public void addMembershipListener(Runnable listener) {
+        membershipListeners.add(listener);
+    }
+
+    /**
+     * Registers a callback run, off the ZooKeeper event thread, when the
+     * session expired while this node held the lock. Another node may hold it
+     * by then; this one is queued up again, at the back, once the new session
+     * is up.
+     */
+    public void addLockLostListener(Runnable listener) {
+        lockLostListeners.add(listener);
+    }
+
+    private Membership membership() throws KeeperException, InterruptedException {
+        Membership view = membership;
+        if (view != null) {
+            return view;
+        }
+        return refreshMembership();
+    }
+
+    private synchronized Membership refreshMembership() throws KeeperException, InterruptedException {
+        Membership view = membership;
+        if (view != null) {
+            return view;
+        }
+        long generation = membershipGeneration.get();
+        // the watch is set before the data is read, so a change from here on is seen
+        List<String> childrenNodePaths = client.getChildrenNodePaths(lockPath, true);
+        Collections.sort(childrenNodePaths);
+        List<CompletableFuture<byte[]>> reads = new ArrayList<>();
         for (String path : childrenNodePaths) {
             path = lockPath + "/" + path;
-            if (!path.equals(childPath)) {
-                byte[] data = client.getData(path, false);
-                result.add(data);
+            reads.add(path.equals(childPath) ? CompletableFuture.completedFuture(myDataBytes) : client.getDataAsync(path, false));
+        }
+        List<String> others = new ArrayList<>();
+        String holder = null;
+        for (int i = 0; i < reads.size(); i++) {
+            String data;
+            try {
+                data = new String(ZooKeeperClient.await(reads.get(i)), StandardCharsets.UTF_8);
+            } catch (KeeperException.NoNodeException e) {
+                // left since the children were listed
+                continue;
+            }
+            if (holder == null) {
+                holder = data;
+            }
+            if (!childPath.equals(lockPath + "/" + childrenNodePaths.get(i))) {
+                others.add(data);
             }
         }
-        return result;
+        view = new Membership(Collections.unmodifiableList(others), holder);
+        if (membershipGeneration.get() == generation) {
+            membership = view;
+        }
+        return view;
+    }
+
+    private void onMembershipChanged() {
+        membershipGeneration.incrementAndGet();
+        membership = null;
+        membershipUpdates.execute(() -> {
+            try {
+                refreshMembership();
+            } catch (Exception e) {
+                System.out.println("Could not refresh the membership view: " + e.getMessage());
+            }
+            for (Runnable listener : membershipListeners) {
+                listener.run();
+            }
+        });
+    }
+
+    /**
+     * Returns the sequence number ZooKeeper gave this node's lock node. Each
+     * holder's node is newer than every earlier holder's, so the number of the
+     * node holding the lock grows with every change of holder and can serve as
+     * an election term.
+     */
+    public long getLockSequence() {
+        String path = childPath;
+        return Long.parseLong(path.substring(path.lastIndexOf('_') + 1));
     }
 
     public boolean tryAcquireLock() throws KeeperException,
@@ -85,22 +206,32 @@ public class DistributedLock implements Watcher {
         return isAcquired;
     }
 
+    /**
+     * Blocks until this node holds the lock. Each waiting node watches only
+     * the node just ahead of it, so it takes over as soon as that one goes
+     * away and a leaving holder does not wake every waiter.
+     */
     public void acquireLock() throws KeeperException,
             InterruptedException {
-        String smallestNode = findSmallestNodePath();
-        if (smallestNode.equals(childPath)) {
-            isAcquired = true;
-        } else {
-            do {
-                System.out.println("Lock is currently acquired by node " + smallestNode + " .. hence waiting..");
-                eventReceivedFlag = new
-                        CountDownLatch(1);
-                watchedNode = smallestNode;
-                client.addWatch(smallestNode);
-                eventReceivedFlag.await();
-                smallestNode = findSmallestNodePath();
-            } while (!smallestNode.equals(childPath));
-            isAcquired = true;
+        while (true) {
+            eventReceivedFlag = new CountDownLatch(1);
+            List<String> childrenNodePaths = client.getChildrenNodePaths(lockPath);
+            Collections.sort(childrenNodePaths);
+            int index = childrenNodePaths.indexOf(childPath.substring(lockPath.length() + 1));
+            if (index == 0) {
+                isAcquired = true;
+                return;
+            }
+            if (index > 0) {
+                String predecessor = lockPath + "/" + childrenNodePaths.get(index - 1);
+                watchedNode = predecessor;
+                if (!client.addWatch(predecessor)) {
+                    continue;
+                }
+                System.out.println("Waiting for node " + predecessor + " ahead of " + childPath + " to go away..");
+            }
+            // with no node of our own the session expired; it is recreated on reconnect
+            eventReceivedFlag.await();
         }
     }
 
@@ -113,6 +244,21 @@ public class DistributedLock implements Watcher {
         isAcquired = false;
     }
 
+    /**
+     * Gives the lock up by moving this node to the back of the queue, so the
+     * next waiter takes over and this node keeps its place in the election.
+     */
+    public void yieldLock() throws KeeperException,
+            InterruptedException, UnsupportedEncodingException {
+        if (!isAcquired) {
+            throw new IllegalStateException("Lock needs to be acquired first to yield");
+        }
+        String previous = childPath;
+        createChildNode();
+        isAcquired = false;
+        client.delete(previous);
+    }
+
     private String findSmallestNodePath() throws
             KeeperException, InterruptedException {
         List<String> childrenNodePaths = null;
@@ -129,17 +275,41 @@ public class DistributedLock implements Watcher {
         Event.KeeperState state = event.getState();
         Event.EventType type = event.getType();
 
-        if (Event.KeeperState.SyncConnected == state) {
-            if (Event.EventType.None == type) {
-                
-                System.out.println("Successful connected to the server");
-                startFlag.countDown();
+        if (Event.EventType.None == type) {
+            if (Event.KeeperState.Expired == state) {
+                System.out.println("Session expired. Lost the lock node " + childPath);
+                boolean wasAcquired = isAcquired;
+                isAcquired = false;
+                sessionExpired = true;
+                if (wasAcquired) {
+                    membershipUpdates.execute(() -> {
+                        for (Runnable listener : lockLostListeners) {
+                            listener.run();
+                        }
+                    });
+                }
+            } else if (Event.KeeperState.SyncConnected == state && sessionExpired) {
+                sessionExpired = false;
+                try {
+                    createChildNode();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                // watches did not survive the old session
+                onMembershipChanged();
+                if (eventReceivedFlag != null) {
+                    eventReceivedFlag.countDown();
+                }
             }
         }
 
+        if (Event.EventType.NodeChildrenChanged.equals(type) && lockPath.equals(event.getPath())) {
+            onMembershipChanged();
+        }
+
         if (Event.EventType.NodeDeleted.equals(type)) {
             if (watchedNode != null && eventReceivedFlag != null && event.getPath().equals(watchedNode)) {
-                System.out.println("NodeDelete event received. Trying to get the lock..");
+                System.out.println("Node " + watchedNode + " went away. Trying to get the lock..");
                 eventReceivedFlag.countDown();
             }
         }
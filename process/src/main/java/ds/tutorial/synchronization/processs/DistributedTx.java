@@ -1,6 +1,5 @@
 package ds.tutorial.synchronization.processs;
 
-import ds.tutorial.synchronization.processs.ZooKeeperClient;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 
@@ -12,9 +11,11 @@ public abstract class DistributedTx implements Watcher {
     public static final String GLOBAL_COMMIT = "global_commit";
     public static final String GLOBAL_ABORT = "global_abort";
     static String zooKeeperUrl;
+    String transactionId;
     String currentTransaction;
     ZooKeeperClient client;
     DistributedTxListner listener;
+    long decisionZxid;
 
     public static void setZooKeeperURL(String url) {
         zooKeeperUrl = url;
@@ -25,10 +26,33 @@ public abstract class DistributedTx implements Watcher {
     }
 
     public void start(String transactionId, String participantId) throws IOException {
-        client = new ZooKeeperClient(zooKeeperUrl, 5000, this);
+        this.transactionId = transactionId;
+        client = new ZooKeeperClient(ZooKeeperSession.shared(zooKeeperUrl), this);
         onStartTransaction(transactionId, participantId);
     }
 
+    public String getTransactionId() {
+        return transactionId;
+    }
+
+    /**
+     * The ZooKeeper zxid of the write that recorded the global decision, or 0
+     * before it is known. Every node sees the same zxid for a transaction, and
+     * ZooKeeper orders them across all transactions.
+     */
+    public long getDecisionZxid() {
+        return decisionZxid;
+    }
+
+    /** Releases the ZooKeeper client of this transaction; the shared session stays open. */
+    void close() {
+        try {
+            client.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     abstract void onStartTransaction(String transactionId, String participantId);
 
     @Override
@@ -3,15 +3,45 @@ package ds.tutorial.synchronization.processs;
 import org.apache.zookeeper.*;
 
 import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class DistributedTxCoordinator extends DistributedTx {
+    public static final long DEFAULT_VOTE_TIMEOUT_MILLIS = 5000;
+    private static final long CLEANUP_POLL_MILLIS = 50;
+    private static final long CLEANUP_GRACE_MILLIS = 10000;
+    private static final ScheduledExecutorService cleanup = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tx-cleanup");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static volatile long voteTimeoutMillis = DEFAULT_VOTE_TIMEOUT_MILLIS;
+
+    private final Object voteMonitor = new Object();
+    private boolean voteChanged = false;
+    private boolean decided = false;
+    private long startNanos;
+    private long prepareNanos;
+    private long voteWaitNanos;
+    private long decisionNanos;
+
+    public static void setVoteTimeout(long millis) {
+        voteTimeoutMillis = millis;
+    }
 
     public DistributedTxCoordinator(DistributedTxListner listener) {
         super(listener);
     }
 
     void onStartTransaction(String transactionId, String participantId) {
+        startNanos = System.nanoTime();
         try {
             currentTransaction = "/" + transactionId;
             client.createNode(currentTransaction, true, CreateMode.PERSISTENT, "".getBytes(StandardCharsets.UTF_8));
@@ -20,48 +50,171 @@ public class DistributedTxCoordinator extends DistributedTx {
         }
     }
 
+    /** Decides on the votes of the participants that have joined so far. */
     public boolean perform() throws KeeperException, InterruptedException {
-        List<String> childrenNodePaths = client.getChildrenNodePaths(currentTransaction);
-        boolean result = true;
-        byte[] data;
-        System.out.println("Child count :" + childrenNodePaths.size());
-        for (String path : childrenNodePaths) {
-            path = currentTransaction + "/" + path;
-            System.out.println("Checking path :" + path);
-            data = client.getData(path, false);
-            String dataString = new String(data);
-            if (!VOTE_COMMIT.equals(dataString)) {
-                System.out.println("Child " + path + " caused the transaction to abort. Sending GLOBAL_ABORT");
+        return perform(client.getChildrenNodePaths(currentTransaction).size());
+    }
+
+    /**
+     * Waits until {@code expectedVotes} participants have voted and sends
+     * exactly one global decision: commit if all voted to commit, abort as
+     * soon as one votes to abort or when the vote timeout passes first.
+     */
+    public boolean perform(int expectedVotes) throws KeeperException, InterruptedException {
+        long voteStart = System.nanoTime();
+        prepareNanos = voteStart - startNanos;
+        try {
+            boolean commit = collectVotes(expectedVotes, voteStart + TimeUnit.MILLISECONDS.toNanos(voteTimeoutMillis));
+            voteWaitNanos = System.nanoTime() - voteStart;
+            if (commit) {
+                System.out.println("All nodes are okay to commit the transaction. Sending GLOBAL_COMMIT");
+                sendGlobalCommit();
+            } else {
                 sendGlobalAbort();
-                result = false;
             }
+            reset();
+            return commit;
+        } catch (KeeperException | InterruptedException | RuntimeException e) {
+            abort();
+            throw e;
         }
-        System.out.println("All nodes are okay to commit the transaction. Sending GLOBAL_COMMIT");
-        sendGlobalCommit();
-        reset();
-        return result;
     }
 
-    public void sendGlobalCommit() throws KeeperException, InterruptedException {
-        if (currentTransaction != null) {
-            System.out.println("Sending global commit for " + currentTransaction);
-            client.write(currentTransaction, DistributedTxCoordinator.GLOBAL_COMMIT.getBytes(StandardCharsets.UTF_8));
-            listener.onGlobalCommit();
+    private boolean collectVotes(int expectedVotes, long deadline) throws KeeperException, InterruptedException {
+        Set<String> committed = new HashSet<>();
+        while (true) {
+            synchronized (voteMonitor) {
+                voteChanged = false;
+            }
+            // re-arms the child watch on every pass, data watches are set on children yet to vote
+            List<String> children = client.getChildrenNodePaths(currentTransaction, true);
+            // read the pending votes in one pipelined batch rather than a round trip each
+            Map<String, CompletableFuture<byte[]>> pending = new LinkedHashMap<>();
+            for (String child : children) {
+                if (!committed.contains(child)) {
+                    pending.put(child, client.getDataAsync(currentTransaction + "/" + child, true));
+                }
+            }
+            for (Map.Entry<String, CompletableFuture<byte[]>> read : pending.entrySet()) {
+                String path = currentTransaction + "/" + read.getKey();
+                String vote;
+                try {
+                    vote = new String(ZooKeeperClient.await(read.getValue()), StandardCharsets.UTF_8);
+                } catch (KeeperException.NoNodeException e) {
+                    System.out.println("Participant " + path + " left before voting. Sending GLOBAL_ABORT");
+                    return false;
+                }
+                if (VOTE_ABORT.equals(vote)) {
+                    System.out.println("Child " + path + " caused the transaction to abort. Sending GLOBAL_ABORT");
+                    return false;
+                }
+                if (VOTE_COMMIT.equals(vote)) {
+                    committed.add(read.getKey());
+                }
+            }
+            if (committed.size() >= expectedVotes) {
+                return true;
+            }
+            synchronized (voteMonitor) {
+                while (!voteChanged) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        System.out.println("Only " + committed.size() + " of " + expectedVotes + " votes for "
+                                + currentTransaction + " arrived in time. Sending GLOBAL_ABORT");
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(voteMonitor, remaining);
+                }
+            }
         }
     }
 
+    /** Aborts the transaction, e.g. when a participant could not be reached. */
+    public void abort() throws KeeperException, InterruptedException {
+        try {
+            sendGlobalAbort();
+        } finally {
+            reset();
+        }
+    }
+
+    public void sendGlobalCommit() throws KeeperException, InterruptedException {
+        sendDecision(true);
+    }
+
     public void sendGlobalAbort() throws KeeperException,
             InterruptedException {
-        if (currentTransaction != null) {
-            System.out.println("Sending global abort for " + currentTransaction);
-            client.write(currentTransaction, DistributedTxCoordinator.GLOBAL_ABORT.getBytes(StandardCharsets.UTF_8));
-            listener.onGlobalAbort();
+        sendDecision(false);
+    }
+
+    private void sendDecision(boolean commit) throws KeeperException, InterruptedException {
+        if (currentTransaction == null || decided) {
+            return;
         }
+        decided = true;
+        long decisionStart = System.nanoTime();
+        System.out.println("Sending global " + (commit ? "commit" : "abort") + " for " + currentTransaction);
+        decisionZxid = client.write(currentTransaction, (commit ? GLOBAL_COMMIT : GLOBAL_ABORT).getBytes(StandardCharsets.UTF_8)).getMzxid();
+        if (commit) {
+            listener.onGlobalCommit(transactionId);
+        } else {
+            listener.onGlobalAbort(transactionId);
+        }
+        decisionNanos = System.nanoTime() - decisionStart;
+        TransactionTimings.recordOutcome(commit);
     }
 
-    private void reset() throws KeeperException,
-            InterruptedException {
-        client.forceDelete(currentTransaction);
+    @Override
+    public void process(WatchedEvent event) {
+        Event.EventType type = event.getType();
+        if (Event.EventType.NodeChildrenChanged.equals(type) || Event.EventType.NodeDataChanged.equals(type)
+                || Event.EventType.NodeDeleted.equals(type)) {
+            synchronized (voteMonitor) {
+                voteChanged = true;
+                voteMonitor.notifyAll();
+            }
+        }
+    }
+
+    private void reset() {
+        String root = currentTransaction;
         currentTransaction = null;
+        if (root != null) {
+            long cleanupStart = System.nanoTime();
+            long giveUpAt = System.currentTimeMillis() + CLEANUP_GRACE_MILLIS;
+            cleanup.execute(() -> cleanUp(root, cleanupStart, giveUpAt));
+        }
+    }
+
+    /**
+     * Deletes the transaction root once every participant has read the
+     * decision and left, so none of them finds the root gone before it sees
+     * the outcome. Participants that never leave are given up on after a grace
+     * period.
+     */
+    private void cleanUp(String root, long cleanupStart, long giveUpAt) {
+        try {
+            if (!client.getChildrenNodePaths(root).isEmpty() && System.currentTimeMillis() < giveUpAt) {
+                cleanup.schedule(() -> cleanUp(root, cleanupStart, giveUpAt), CLEANUP_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                return;
+            }
+            client.deleteWithChildren(root);
+        } catch (KeeperException.NotEmptyException e) {
+            // a participant joined after the children were listed
+            try {
+                client.forceDelete(root);
+            } catch (Exception retryFailure) {
+                retryFailure.printStackTrace();
+            }
+        } catch (KeeperException.NoNodeException e) {
+            // already gone
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        long cleanupNanos = System.nanoTime() - cleanupStart;
+        TransactionTimings.record(prepareNanos, voteWaitNanos, decisionNanos, cleanupNanos);
+        System.out.println(String.format("Transaction %s timings: prepare %.2f ms, vote wait %.2f ms, decision %.2f ms, cleanup %.2f ms",
+                root, prepareNanos / 1e6, voteWaitNanos / 1e6, decisionNanos / 1e6, cleanupNanos / 1e6));
+        close();
     }
 }
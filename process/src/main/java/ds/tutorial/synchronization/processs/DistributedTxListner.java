@@ -1,6 +1,6 @@
 package ds.tutorial.synchronization.processs;
 
 public interface DistributedTxListner {
-    void onGlobalCommit();
-    void onGlobalAbort();
+    void onGlobalCommit(String transactionId);
+    void onGlobalAbort(String transactionId);
 }
@@ -1,35 +1,52 @@
 package ds.tutorial.synchronization.processs;
 
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
 
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class DistributedTxParticipant extends DistributedTx implements Watcher {
     private static final String PARTICIPANT_PREFIX = "/txp_";
+    // applies decisions off the ZooKeeper event thread; one thread keeps them in the order the events arrived
+    private static final ExecutorService decisions = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tx-decisions");
+        thread.setDaemon(true);
+        return thread;
+    });
     private String transactionRoot;
+    private boolean decided = false;
+    private CompletableFuture<Void> joined;
 
     public DistributedTxParticipant(DistributedTxListner listener) {
         super(listener);
     }
 
     public void voteCommit() {
-        try {
-            if (currentTransaction != null) {
-                System.out.println("Voting to commit the transaction " + currentTransaction);
-                client.write(currentTransaction, DistributedTxCoordinator.VOTE_COMMIT.getBytes(StandardCharsets.UTF_8));
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        vote(DistributedTxCoordinator.VOTE_COMMIT);
     }
 
     public void voteAbort() {
+        vote(DistributedTxCoordinator.VOTE_ABORT);
+    }
+
+    /**
+     * Writes the vote without waiting for the join requests first. ZooKeeper
+     * applies a session's requests in order, so the vote lands after the
+     * vote node is created and the three requests share one round trip.
+     */
+    private void vote(String vote) {
         try {
             if (currentTransaction != null) {
-                System.out.println("Voting to abort the transaction " + currentTransaction);
-                client.write(currentTransaction, DistributedTxCoordinator.VOTE_ABORT.getBytes(StandardCharsets.UTF_8));
+                System.out.println("Voting " + vote + " on the transaction " + currentTransaction);
+                CompletableFuture<Stat> written = client.writeAsync(currentTransaction, vote.getBytes(StandardCharsets.UTF_8));
+                ZooKeeperClient.await(joined);
+                ZooKeeperClient.await(written);
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -45,8 +62,9 @@ public class DistributedTxParticipant extends DistributedTx implements Watcher {
         try {
             transactionRoot = "/" + transactionId;
             currentTransaction = transactionRoot + PARTICIPANT_PREFIX + participantId;
-            client.createNode(currentTransaction, true, CreateMode.EPHEMERAL, "".getBytes(StandardCharsets.UTF_8));
-            client.addWatch(transactionRoot);
+            joined = CompletableFuture.allOf(
+                    client.createNodeAsync(currentTransaction, CreateMode.EPHEMERAL, "".getBytes(StandardCharsets.UTF_8)),
+                    client.addWatchAsync(transactionRoot));
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -54,14 +72,17 @@ public class DistributedTxParticipant extends DistributedTx implements Watcher {
 
     private void handleRootDataChange() {
         try {
-            byte[] data = client.getData(transactionRoot, true);
+            Stat stat = new Stat();
+            byte[] data = client.getData(transactionRoot, true, stat);
+            // only the coordinator writes the root, so this is the decision
+            decisionZxid = stat.getMzxid();
             String dataString = new String(data);
             if
             (DistributedTxCoordinator.GLOBAL_COMMIT.equals(dataString)) {
-                listener.onGlobalCommit();
+                decide(true);
             } else if
             (DistributedTxCoordinator.GLOBAL_ABORT.equals(dataString)) {
-                listener.onGlobalAbort();
+                decide(false);
             } else {
                 System.out.println("Unknown data change in the root : " + dataString);
             }
@@ -70,8 +91,39 @@ public class DistributedTxParticipant extends DistributedTx implements Watcher {
         }
     }
 
+    /** Hands the outcome to the listener once, then leaves the transaction. */
+    private void decide(boolean commit) {
+        if (decided) {
+            return;
+        }
+        decided = true;
+        if (commit) {
+            listener.onGlobalCommit(transactionId);
+        } else {
+            listener.onGlobalAbort(transactionId);
+        }
+        // leave the transaction so the coordinator can clean it up; nothing waits on this
+        String voteNode = currentTransaction;
+        client.deleteAsync(voteNode).whenComplete((ignored, error) -> {
+            if (error != null && !(error instanceof KeeperException.NoNodeException)) {
+                System.out.println("Could not leave the transaction " + voteNode + ": " + error.getMessage());
+            }
+        });
+        rest();
+        close();
+    }
+
+    /**
+     * Runs on the ZooKeeper event thread, so it only queues the event. The
+     * decision is read and handed to the listener on the decision thread,
+     * which sees the events of the shared session in zxid order.
+     */
     @Override
     public void process(WatchedEvent event) {
+        decisions.execute(() -> handleEvent(event));
+    }
+
+    private void handleEvent(WatchedEvent event) {
         Event.EventType type = event.getType();
         if (Event.EventType.NodeDataChanged.equals(type)) {
             if (transactionRoot != null && event.getPath().equals(transactionRoot)) {
@@ -80,7 +132,8 @@ public class DistributedTxParticipant extends DistributedTx implements Watcher {
         }
         if (Event.EventType.NodeDeleted.equals(type)) {
             if (transactionRoot != null && event.getPath().equals(transactionRoot)) {
-                rest();
+                // the coordinator gave up on us without a decision we saw
+                decide(false);
             }
         }
     }
@@ -0,0 +1,59 @@
+package ds.tutorial.synchronization.processs;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide totals of where coordinated transactions spend their time:
+ * prepare (from start until votes are collected, which covers sending the
+ * operation to the participants), vote wait, decision (writing the outcome
+ * and applying it locally) and cleanup (until the transaction root is gone).
+ */
+public class TransactionTimings {
+    public enum Phase {PREPARE, VOTE_WAIT, DECISION, CLEANUP}
+
+    private static final int SUMMARY_INTERVAL = 100;
+
+    private static final LongAdder[] totalNanos = new LongAdder[Phase.values().length];
+    private static final AtomicLong[] maxNanos = new AtomicLong[Phase.values().length];
+    private static final LongAdder commits = new LongAdder();
+    private static final LongAdder aborts = new LongAdder();
+    private static final LongAdder samples = new LongAdder();
+
+    static {
+        for (int i = 0; i < totalNanos.length; i++) {
+            totalNanos[i] = new LongAdder();
+            maxNanos[i] = new AtomicLong();
+        }
+    }
+
+    static void record(long prepareNanos, long voteWaitNanos, long decisionNanos, long cleanupNanos) {
+        long[] nanos = {prepareNanos, voteWaitNanos, decisionNanos, cleanupNanos};
+        for (int i = 0; i < nanos.length; i++) {
+            totalNanos[i].add(nanos[i]);
+            maxNanos[i].accumulateAndGet(nanos[i], Math::max);
+        }
+        samples.increment();
+        if (samples.sum() % SUMMARY_INTERVAL == 0) {
+            System.out.println("2PC timings: " + summary());
+        }
+    }
+
+    static void recordOutcome(boolean committed) {
+        (committed ? commits : aborts).increment();
+    }
+
+    /** Returns one line with the mean and max of every phase, in milliseconds. */
+    public static String summary() {
+        long count = samples.sum();
+        StringBuilder builder = new StringBuilder()
+                .append(commits.sum()).append(" committed, ")
+                .append(aborts.sum()).append(" aborted");
+        for (Phase phase : Phase.values()) {
+            double mean = count == 0 ? 0 : totalNanos[phase.ordinal()].sum() / (double) count / 1e6;
+            builder.append(String.format(", %s mean %.2f max %.2f ms", phase.name().toLowerCase(), mean,
+                    maxNanos[phase.ordinal()].get() / 1e6));
+        }
+        return builder.toString();
+    }
+}
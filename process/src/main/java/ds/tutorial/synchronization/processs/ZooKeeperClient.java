@@ -5,45 +5,219 @@ import org.apache.zookeeper.data.Stat;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 public class ZooKeeperClient {
-    private ZooKeeper zooKeeper;
+    private final ZooKeeperSession session;
+    private final Watcher watcher;
+    private final boolean ownsSession;
 
     public ZooKeeperClient(String zooKeeperUrl, int sessionTimeout, Watcher watcher) throws IOException {
-        zooKeeper = new ZooKeeper(zooKeeperUrl, sessionTimeout, watcher);
+        this(new ZooKeeperSession(zooKeeperUrl, sessionTimeout), watcher, true);
+        session.addListener(watcher);
+    }
+
+    /** Uses a session owned by someone else; watches set through this client go to {@code watcher}. */
+    public ZooKeeperClient(ZooKeeperSession session, Watcher watcher) {
+        this(session, watcher, false);
+    }
+
+    private ZooKeeperClient(ZooKeeperSession session, Watcher watcher, boolean ownsSession) {
+        this.session = session;
+        this.watcher = watcher;
+        this.ownsSession = ownsSession;
     }
 
     public String createNode(String path, boolean shouldWatch, CreateMode mode, byte[] data) throws KeeperException, InterruptedException, UnsupportedEncodingException {
-        String createdPath = zooKeeper.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE,mode);
+        String createdPath = zooKeeper().create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE,mode);
         return createdPath;
     }
 
     public byte[] getData(String path, boolean shouldWatch) throws KeeperException, InterruptedException {
-        return zooKeeper.getData(path, shouldWatch, null);
+        return zooKeeper().getData(path, shouldWatch ? watcher : null, null);
+    }
+
+    /** Like {@link #getData(String, boolean)}, also filling in the node's {@code stat}. */
+    public byte[] getData(String path, boolean shouldWatch, Stat stat) throws KeeperException, InterruptedException {
+        return zooKeeper().getData(path, shouldWatch ? watcher : null, stat);
     }
 
     public boolean CheckExists(String path) throws KeeperException, InterruptedException {
-        Stat nodeStat = zooKeeper.exists(path, false);
+        Stat nodeStat = zooKeeper().exists(path, false);
         return (nodeStat != null);
     }
     public void delete(String path) throws
             KeeperException, InterruptedException {
-        zooKeeper.delete(path,-1);
+        zooKeeper().delete(path,-1);
     }
     public List<String> getChildrenNodePaths (String root) throws KeeperException, InterruptedException {
-        zooKeeper.getState().toString();
-        return zooKeeper.getChildren(root, false);
+        return zooKeeper().getChildren(root, false);
     }
-    public void addWatch(String path) throws
+    public List<String> getChildrenNodePaths (String root, boolean shouldWatch) throws KeeperException, InterruptedException {
+        return zooKeeper().getChildren(root, shouldWatch ? watcher : null);
+    }
+    /** Watches {@code path} and returns whether it exists; a watch on a missing node fires when it is created. */
+    public boolean addWatch(String path) throws
             KeeperException, InterruptedException {
-        zooKeeper.exists(path, true);
+        return zooKeeper().exists(path, watcher) != null;
     }
 
-    public void write(String path, byte[] data) throws KeeperException, InterruptedException {
-        zooKeeper.setData(path, data,-1);
+    public Stat write(String path, byte[] data) throws KeeperException, InterruptedException {
+        return zooKeeper().setData(path, data,-1);
     }
     public void forceDelete(String path) throws KeeperException, InterruptedException {
-        ZKUtil.deleteRecursive(zooKeeper, path);
+        ZKUtil.deleteRecursive(zooKeeper(), path);
+    }
+
+    /**
+     * Deletes {@code path} and its children, which must have no children of
+     * their own, in a single multi-op instead of one round trip per node.
+     */
+    public void deleteWithChildren(String path) throws KeeperException, InterruptedException {
+        List<Op> ops = new ArrayList<>();
+        for (String child : getChildrenNodePaths(path)) {
+            ops.add(Op.delete(path + "/" + child, -1));
+        }
+        ops.add(Op.delete(path, -1));
+        multi(ops);
+    }
+
+    /** Runs the operations as one atomic transaction: either all of them are applied or none is. */
+    public List<OpResult> multi(Op... ops) throws KeeperException, InterruptedException {
+        return multi(Arrays.asList(ops));
+    }
+
+    public List<OpResult> multi(Iterable<Op> ops) throws KeeperException, InterruptedException {
+        return zooKeeper().multi(ops);
+    }
+
+    // Asynchronous variants. Each sends its request right away and completes
+    // the future from the ZooKeeper event thread, so several requests can be
+    // in flight at once; failures complete it with the matching KeeperException.
+
+    public CompletableFuture<String> createNodeAsync(String path, CreateMode mode, byte[] data) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        zooKeeper().create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, mode,
+                (rc, requestedPath, ctx, name) -> complete(result, rc, requestedPath, name), null);
+        return result;
+    }
+
+    public CompletableFuture<byte[]> getDataAsync(String path, boolean shouldWatch) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        zooKeeper().getData(path, shouldWatch ? watcher : null,
+                (rc, requestedPath, ctx, data, stat) -> complete(result, rc, requestedPath, data), null);
+        return result;
+    }
+
+    /** Completes with whether the node exists; the watch is set either way, as with {@link #addWatch}. */
+    public CompletableFuture<Boolean> addWatchAsync(String path) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        zooKeeper().exists(path, watcher, (rc, requestedPath, ctx, stat) -> {
+            if (rc == KeeperException.Code.NONODE.intValue()) {
+                result.complete(false);
+            } else {
+                complete(result, rc, requestedPath, true);
+            }
+        }, null);
+        return result;
+    }
+
+    public CompletableFuture<List<String>> getChildrenNodePathsAsync(String root, boolean shouldWatch) {
+        CompletableFuture<List<String>> result = new CompletableFuture<>();
+        zooKeeper().getChildren(root, shouldWatch ? watcher : null,
+                (rc, requestedPath, ctx, children) -> complete(result, rc, requestedPath, children), null);
+        return result;
+    }
+
+    public CompletableFuture<Stat> writeAsync(String path, byte[] data) {
+        CompletableFuture<Stat> result = new CompletableFuture<>();
+        zooKeeper().setData(path, data, -1,
+                (rc, requestedPath, ctx, stat) -> complete(result, rc, requestedPath, stat), null);
+        return result;
+    }
+
+    public CompletableFuture<Boolean> checkExistsAsync(String path) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        zooKeeper().exists(path, false, (rc, requestedPath, ctx, stat) -> {
+            if (rc == KeeperException.Code.NONODE.intValue()) {
+                result.complete(false);
+            } else {
+                complete(result, rc, requestedPath, true);
+            }
+        }, null);
+        return result;
+    }
+
+    public CompletableFuture<Void> deleteAsync(String path) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        zooKeeper().delete(path, -1, (rc, requestedPath, ctx) -> complete(result, rc, requestedPath, null), null);
+        return result;
+    }
+
+    /** Like {@link #forceDelete}: the children of every level are deleted in parallel, then the node itself. */
+    public CompletableFuture<Void> forceDeleteAsync(String path) {
+        return getChildrenNodePathsAsync(path, false).thenCompose(children -> {
+            List<CompletableFuture<Void>> deletes = new ArrayList<>(children.size());
+            for (String child : children) {
+                deletes.add(forceDeleteAsync(path + "/" + child));
+            }
+            return CompletableFuture.allOf(deletes.toArray(new CompletableFuture<?>[0]));
+        }).thenCompose(deleted -> deleteAsync(path));
+    }
+
+    /** Like {@link #deleteWithChildren}: lists the children, then deletes them and the node in one multi-op. */
+    public CompletableFuture<List<OpResult>> deleteWithChildrenAsync(String path) {
+        return getChildrenNodePathsAsync(path, false).thenCompose(children -> {
+            List<Op> ops = new ArrayList<>(children.size() + 1);
+            for (String child : children) {
+                ops.add(Op.delete(path + "/" + child, -1));
+            }
+            ops.add(Op.delete(path, -1));
+            return multiAsync(ops);
+        });
+    }
+
+    public CompletableFuture<List<OpResult>> multiAsync(Iterable<Op> ops) {
+        CompletableFuture<List<OpResult>> result = new CompletableFuture<>();
+        zooKeeper().multi(ops, (rc, path, ctx, opResults) -> complete(result, rc, path, opResults), null);
+        return result;
+    }
+
+    /**
+     * Waits for a future from one of the async variants, rethrowing the
+     * KeeperException it failed with.
+     */
+    public static <T> T await(CompletableFuture<T> future) throws KeeperException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof KeeperException) {
+                throw (KeeperException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static <T> void complete(CompletableFuture<T> result, int rc, String path, T value) {
+        if (rc == KeeperException.Code.OK.intValue()) {
+            result.complete(value);
+        } else {
+            result.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+        }
+    }
+
+    /** Closes the session if this client opened it; a shared session stays open. */
+    public void close() throws InterruptedException {
+        if (ownsSession) {
+            session.close();
+        }
+    }
+
+    private ZooKeeper zooKeeper() {
+        return session.getZooKeeper();
     }
 }
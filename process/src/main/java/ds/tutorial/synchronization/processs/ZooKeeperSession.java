@@ -0,0 +1,105 @@
+package ds.tutorial.synchronization.processs;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A ZooKeeper session shared by everything in the process that talks to the
+ * same ensemble, so locks and transactions do not pay for a connection each.
+ * Watches are registered per call by {@link ZooKeeperClient}; the session
+ * itself only follows the connection state. When the session expires a new
+ * one is opened, and listeners see the {@code Expired} event followed by
+ * {@code SyncConnected} once the new session is up, so they can recreate
+ * their ephemeral nodes.
+ */
+public class ZooKeeperSession implements Watcher {
+    public static final int DEFAULT_SESSION_TIMEOUT = 5000;
+    private static final Map<String, ZooKeeperSession> shared = new HashMap<>();
+
+    private final String zooKeeperUrl;
+    private final int sessionTimeout;
+    private final List<Watcher> listeners = new CopyOnWriteArrayList<>();
+    private volatile ZooKeeper zooKeeper;
+    private volatile CountDownLatch connectedFlag = new CountDownLatch(1);
+    private volatile boolean closed = false;
+
+    /** Returns the process-wide session for {@code zooKeeperUrl}, opening it on first use. */
+    public static synchronized ZooKeeperSession shared(String zooKeeperUrl) throws IOException {
+        ZooKeeperSession session = shared.get(zooKeeperUrl);
+        if (session == null) {
+            session = new ZooKeeperSession(zooKeeperUrl, DEFAULT_SESSION_TIMEOUT);
+            shared.put(zooKeeperUrl, session);
+        }
+        return session;
+    }
+
+    public ZooKeeperSession(String zooKeeperUrl, int sessionTimeout) throws IOException {
+        this.zooKeeperUrl = zooKeeperUrl;
+        this.sessionTimeout = sessionTimeout;
+        zooKeeper = new ZooKeeper(zooKeeperUrl, sessionTimeout, this);
+    }
+
+    public ZooKeeper getZooKeeper() {
+        return zooKeeper;
+    }
+
+    public void awaitConnected() throws InterruptedException {
+        connectedFlag.await();
+    }
+
+    /** Registers a watcher for connection state events ({@code EventType.None}). */
+    public void addListener(Watcher listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Watcher listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        if (event.getType() != Event.EventType.None) {
+            return;
+        }
+        Event.KeeperState state = event.getState();
+        if (Event.KeeperState.SyncConnected == state) {
+            connectedFlag.countDown();
+        } else if (Event.KeeperState.Expired == state && !closed) {
+            System.out.println("ZooKeeper session expired. Opening a new session");
+            reconnect();
+        }
+        for (Watcher listener : listeners) {
+            listener.process(event);
+        }
+    }
+
+    private synchronized void reconnect() {
+        try {
+            zooKeeper.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        connectedFlag = new CountDownLatch(1);
+        try {
+            zooKeeper = new ZooKeeper(zooKeeperUrl, sessionTimeout, this);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized void close() throws InterruptedException {
+        closed = true;
+        synchronized (ZooKeeperSession.class) {
+            shared.remove(zooKeeperUrl, this);
+        }
+        zooKeeper.close();
+    }
+}
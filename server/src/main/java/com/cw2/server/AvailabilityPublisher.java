@@ -0,0 +1,229 @@
+package com.cw2.server;
+
+import ds.tutorial.communication.grpc.generated.*;
+import io.grpc.stub.ServerCallStreamObserver;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Pushes availability changes to {@code watchConcerts} subscribers. Each
+ * subscriber gets a catalog snapshot first and then only the shows touched by
+ * later commits. Commits only mark shows as dirty; the current values are read
+ * when the next update is sent, so a subscriber that falls behind receives one
+ * entry per show however many commits touched it. A subscriber whose dirty set
+ * outgrows {@link #MAX_PENDING_SHOWS} is dropped back to a fresh snapshot.
+ */
+public class AvailabilityPublisher {
+    private static final int MAX_PENDING_SHOWS = Integer.getInteger("concert.watch.maxPendingShows", 1024);
+    private static final int MAX_CHANGES_PER_UPDATE = 256;
+
+    private final ConcertServer server;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final ExecutorService sender = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "availability-publisher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public AvailabilityPublisher(ConcertServer server) {
+        this.server = server;
+    }
+
+    public void subscribe(ServerCallStreamObserver<AvailabilityUpdate> observer) {
+        Subscriber subscriber = new Subscriber(observer);
+        observer.setOnCancelHandler(() -> subscribers.remove(subscriber));
+        observer.setOnReadyHandler(subscriber::schedule);
+        subscribers.add(subscriber);
+        subscriber.schedule();
+    }
+
+    public void onCommit(JournalEntryOrBuilder entry) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        switch (entry.getOperation()) {
+            case "ADD_CONCERT":
+            case "UPDATE_CONCERT":
+                markAll(entry.getShow().getId(), null, false, true);
+                break;
+            case "CANCEL_CONCERT":
+                markAll(entry.getShowId(), null, false, true);
+                break;
+            case "RESERVE_TICKET":
+            case "HOLD_TICKET":
+            case "RELEASE_HOLD":
+                ReserveTicketRequest reservation = entry.getReservation();
+                markAll(reservation.getShowId(), reservation.getSeatType(), reservation.getIncludeAfterParty(), false);
+                break;
+            case "RESERVE_GROUP":
+                for (ReserveTicketRequest item : entry.getGroupList()) {
+                    markAll(item.getShowId(), item.getSeatType(), item.getIncludeAfterParty(), false);
+                }
+                break;
+            case "CONFIRM_HOLD":
+                // the seats were taken when the hold was placed
+                break;
+            case "UPDATE_TICKET_STOCK":
+                // stock updates can add a tier or open the after-party, so the whole show is sent
+                markAll(entry.getStockUpdate().getShowId(), null, false, true);
+                break;
+            default:
+                resyncAll();
+        }
+    }
+
+    public void resyncAll() {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.resync();
+        }
+    }
+
+    private void markAll(String showId, String seatType, boolean afterParty, boolean details) {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.mark(showId, seatType, afterParty, details);
+        }
+    }
+
+    private static class Dirty {
+        boolean details;
+        boolean afterParty;
+        final Set<String> tiers = new HashSet<>();
+    }
+
+    private class Subscriber implements Runnable {
+        private final ServerCallStreamObserver<AvailabilityUpdate> observer;
+        private final Map<String, Dirty> pending = new LinkedHashMap<>();
+        private boolean needsSnapshot = true;
+        private boolean scheduled = false;
+
+        Subscriber(ServerCallStreamObserver<AvailabilityUpdate> observer) {
+            this.observer = observer;
+        }
+
+        synchronized void mark(String showId, String seatType, boolean afterParty, boolean details) {
+            if (needsSnapshot) {
+                // the snapshot is read after this commit, so it already covers it
+                return;
+            }
+            Dirty dirty = pending.get(showId);
+            if (dirty == null) {
+                if (pending.size() >= MAX_PENDING_SHOWS) {
+                    pending.clear();
+                    needsSnapshot = true;
+                    schedule();
+                    return;
+                }
+                dirty = new Dirty();
+                pending.put(showId, dirty);
+            }
+            dirty.details |= details;
+            dirty.afterParty |= afterParty;
+            if (seatType != null && !seatType.isEmpty()) {
+                dirty.tiers.add(ShowInventory.normalizeTier(seatType));
+            }
+            schedule();
+        }
+
+        synchronized void resync() {
+            pending.clear();
+            needsSnapshot = true;
+            schedule();
+        }
+
+        synchronized void schedule() {
+            if (!scheduled) {
+                scheduled = true;
+                sender.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                scheduled = false;
+            }
+            try {
+                while (observer.isReady() && !observer.isCancelled()) {
+                    AvailabilityUpdate update = nextUpdate();
+                    if (update == null) {
+                        return;
+                    }
+                    observer.onNext(update);
+                }
+            } catch (RuntimeException e) {
+                System.out.println("Dropping availability watcher: " + e.getMessage());
+                subscribers.remove(this);
+            }
+        }
+
+        private AvailabilityUpdate nextUpdate() {
+            boolean snapshot;
+            List<Map.Entry<String, Dirty>> batch = new ArrayList<>();
+            synchronized (this) {
+                snapshot = needsSnapshot;
+                if (snapshot) {
+                    needsSnapshot = false;
+                    pending.clear();
+                } else {
+                    Iterator<Map.Entry<String, Dirty>> entries = pending.entrySet().iterator();
+                    while (entries.hasNext() && batch.size() < MAX_CHANGES_PER_UPDATE) {
+                        batch.add(entries.next());
+                        entries.remove();
+                    }
+                    if (batch.isEmpty()) {
+                        return null;
+                    }
+                }
+            }
+
+            // values are read after the dirty marks are taken, so a commit that
+            // lands meanwhile is either included here or marked again
+            AvailabilityUpdate.Builder update = AvailabilityUpdate.newBuilder()
+                    .setSequence(server.getCommitSequence())
+                    .setSnapshot(snapshot);
+            if (snapshot) {
+                update.addAllShows(server.getCatalog().getShowsList());
+            } else {
+                for (Map.Entry<String, Dirty> entry : batch) {
+                    update.addChanges(toAvailability(entry.getKey(), entry.getValue()));
+                }
+            }
+            return update.build();
+        }
+
+        private ShowAvailability toAvailability(String showId, Dirty dirty) {
+            ShowAvailability.Builder availability = ShowAvailability.newBuilder().setShowId(showId);
+            ConcertShow show = server.getConcert(showId);
+            if (show == null) {
+                return availability.setRemoved(true).build();
+            }
+            if (dirty.details) {
+                return availability.setShow(show).build();
+            }
+            for (String tier : dirty.tiers) {
+                SeatTier current = findTier(show, tier);
+                if (current != null) {
+                    availability.addTiers(TierAvailability.newBuilder()
+                            .setType(current.getType())
+                            .setAvailable(current.getAvailable()));
+                }
+            }
+            if (dirty.afterParty) {
+                availability.setAfterPartyChanged(true).setAfterPartyTickets(show.getAfterPartyTickets());
+            }
+            return availability.build();
+        }
+
+        private SeatTier findTier(ConcertShow show, String normalizedTier) {
+            for (SeatTier tier : show.getSeatTiersList()) {
+                if (ShowInventory.normalizeTier(tier.getType()).equals(normalizedTier)) {
+                    return tier;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -4,20 +4,13 @@ import ds.tutorial.communication.grpc.generated.*;
 import ds.tutorial.synchronization.processs.DistributedTxCoordinator;
 import ds.tutorial.synchronization.processs.DistributedTxListner;
 import ds.tutorial.synchronization.processs.DistributedTxParticipant;
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
 import org.apache.zookeeper.KeeperException;
 
 import java.io.IOException;
-import java.util.List;
-import java.util.UUID;
 
 public class BoxOfficeServiceImpl extends BoxOfficeServiceGrpc.BoxOfficeServiceImplBase implements DistributedTxListner {
     private ConcertServer server;
-    private ManagedChannel channel = null;
-    private BoxOfficeServiceGrpc.BoxOfficeServiceBlockingStub clientStub = null;
-    private UpdateTicketStockRequest tempDataHolder;
-    private boolean transactionStatus = false;
+    private final TransactionContext.Table<UpdateTicketStockRequest> transactions = new TransactionContext.Table<>();
 
     public BoxOfficeServiceImpl(ConcertServer server) {
         this.server = server;
@@ -25,108 +18,114 @@ public class BoxOfficeServiceImpl extends BoxOfficeServiceGrpc.BoxOfficeServiceI
 
     @Override
     public void updateTicketStock(UpdateTicketStockRequest request, io.grpc.stub.StreamObserver<UpdateTicketStockResponse> responseObserver) {
-        String showId = request.getShowId();
-        String seatType = request.getSeatType();
-        int additionalTickets = request.getAdditionalTickets();
-        int additionalAfterPartyTickets = request.getAdditionalAfterPartyTickets();
+        boolean status = false;
 
-        if (server.isLeader()) {
+        if (!request.getIsSentByPrimary() && server.startShardWrite(request.getShowId())) {
             
             try {
                 System.out.println("Updating ticket stock as Primary");
-                startDistributedTx(request);
-                updateSecondaryServers(request);
-
-                ((DistributedTxCoordinator) server.getTransaction()).perform();
+                if (server.usesLogReplication()) {
+                    status = apply(request, 0);
+                } else {
+                    request = request.toBuilder()
+                            .setTransactionId(TransactionContext.newTransactionId("UPDATE_TICKET_STOCK"))
+                            .build();
+                    TransactionContext<UpdateTicketStockRequest> context = transactions.start(request.getTransactionId(),
+                            "UPDATE_TICKET_STOCK", request, new DistributedTxCoordinator(this));
+                    DistributedTxCoordinator coordinator = context.getTransaction();
+                    int followers;
+                    try {
+                        followers = updateSecondaryServers(request);
+                    } catch (Exception e) {
+                        coordinator.abort();
+                        throw e;
+                    }
+
+                    coordinator.perform(followers);
+                    status = context.isCommitted();
+                }
             } catch (Exception e) {
                 System.out.println("Error while updating ticket stock: " + e.getMessage());
                 e.printStackTrace();
-                transactionStatus = false;
+            } finally {
+                server.finishShardWrite(request.getShowId());
             }
         } else {
             
             if (request.getIsSentByPrimary()) {
                 System.out.println("Updating ticket stock on secondary, on Primary's command");
-                startDistributedTx(request);
-                ((DistributedTxParticipant) server.getTransaction()).voteCommit();
+                try {
+                    TransactionContext<UpdateTicketStockRequest> context = transactions.start(request.getTransactionId(),
+                            "UPDATE_TICKET_STOCK", request, new DistributedTxParticipant(this));
+                    ((DistributedTxParticipant) context.getTransaction()).voteCommit();
+                    status = true;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             } else {
                 UpdateTicketStockResponse response = callPrimary(request);
-                transactionStatus = response.getStatus();
+                status = response.getStatus();
             }
         }
 
         UpdateTicketStockResponse response = UpdateTicketStockResponse.newBuilder()
-                .setStatus(transactionStatus)
-                .setMessage(transactionStatus ? "Ticket stock updated successfully" : "Failed to update ticket stock")
+                .setStatus(status)
+                .setMessage(status ? "Ticket stock updated successfully" : "Failed to update ticket stock")
                 .build();
 
         responseObserver.onNext(response);
         responseObserver.onCompleted();
     }
 
-    
-    private void startDistributedTx(UpdateTicketStockRequest request) {
-        try {
-            server.getTransaction().start("UPDATE_TICKET_STOCK", String.valueOf(UUID.randomUUID()));
-            tempDataHolder = request;
-        } catch (IOException e) {
-            e.printStackTrace();
+    @Override
+    public void onGlobalCommit(String transactionId) {
+        TransactionContext<UpdateTicketStockRequest> context = transactions.finish(transactionId);
+        if (context != null) {
+            context.setCommitted(apply(context.getData(), context.getDecisionZxid()), null);
         }
     }
 
-    @Override
-    public void onGlobalCommit() {
-        if (tempDataHolder != null) {
-            server.updateTicketStock(
-                    tempDataHolder.getShowId(),
-                    tempDataHolder.getSeatType(),
-                    tempDataHolder.getAdditionalTickets(),
-                    tempDataHolder.getAdditionalAfterPartyTickets()
-            );
-            transactionStatus = true;
-            tempDataHolder = null;
-        }
+    private boolean apply(UpdateTicketStockRequest request, long decisionZxid) {
+        return server.updateTicketStock(
+                request.getShowId(),
+                request.getSeatType(),
+                request.getAdditionalTickets(),
+                request.getAdditionalAfterPartyTickets(),
+                decisionZxid
+        );
     }
 
     @Override
-    public void onGlobalAbort() {
-        tempDataHolder = null;
-        transactionStatus = false;
-        System.out.println("Transaction Aborted by the Coordinator");
+    public void onGlobalAbort(String transactionId) {
+        transactions.finish(transactionId);
+        System.out.println("Transaction " + transactionId + " Aborted by the Coordinator");
     }
 
     private UpdateTicketStockResponse callPrimary(UpdateTicketStockRequest request) {
         System.out.println("Calling Primary server for updating ticket stock");
-        String[] currentLeaderData = server.getCurrentLeaderData();
+        String[] currentLeaderData = server.getShardLeaderData(request.getShowId());
         String IPAddress = currentLeaderData[0];
         int port = Integer.parseInt(currentLeaderData[1]);
 
-        channel = ManagedChannelBuilder.forAddress(IPAddress, port).usePlaintext().build();
-        clientStub = BoxOfficeServiceGrpc.newBlockingStub(channel);
+        BoxOfficeServiceGrpc.BoxOfficeServiceBlockingStub clientStub = BoxOfficeServiceGrpc.newBlockingStub(
+                server.getPeerChannel(IPAddress, port));
 
         return clientStub.updateTicketStock(request);
     }
 
-    private void updateSecondaryServers(UpdateTicketStockRequest request) throws KeeperException, InterruptedException {
+    private int updateSecondaryServers(UpdateTicketStockRequest request) throws KeeperException, InterruptedException {
         System.out.println("Updating secondary servers for ticket stock update");
-        List<String[]> othersData = server.getOthersData();
-
-        for (String[] data : othersData) {
-            String IPAddress = data[0];
-            int port = Integer.parseInt(data[1]);
-
-            channel = ManagedChannelBuilder.forAddress(IPAddress, port).usePlaintext().build();
-            clientStub = BoxOfficeServiceGrpc.newBlockingStub(channel);
-
-            UpdateTicketStockRequest secondaryRequest = UpdateTicketStockRequest.newBuilder()
-                    .setShowId(request.getShowId())
-                    .setSeatType(request.getSeatType())
-                    .setAdditionalTickets(request.getAdditionalTickets())
-                    .setAdditionalAfterPartyTickets(request.getAdditionalAfterPartyTickets())
-                    .setIsSentByPrimary(true)
-                    .build();
+        UpdateTicketStockRequest secondaryRequest = UpdateTicketStockRequest.newBuilder()
+                .setShowId(request.getShowId())
+                .setSeatType(request.getSeatType())
+                .setAdditionalTickets(request.getAdditionalTickets())
+                .setAdditionalAfterPartyTickets(request.getAdditionalAfterPartyTickets())
+                .setTransactionId(request.getTransactionId())
+                .setIsSentByPrimary(true)
+                .build();
 
-            clientStub.updateTicketStock(secondaryRequest);
-        }
+        return server.sendToFollowers("updateTicketStock", (channel, deadline) -> BoxOfficeServiceGrpc.newFutureStub(channel)
+                .withDeadline(deadline)
+                .updateTicketStock(secondaryRequest), UpdateTicketStockResponse::getStatus).size();
     }
 }
\ No newline at end of file
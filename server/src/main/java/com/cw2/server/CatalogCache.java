@@ -0,0 +1,104 @@
+package com.cw2.server;
+
+import ds.tutorial.communication.grpc.generated.CustomerServiceGrpc;
+import ds.tutorial.communication.grpc.generated.ListConcertsRequest;
+import ds.tutorial.communication.grpc.generated.ListConcertsResponse;
+import io.grpc.BindableService;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.protobuf.ProtoUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * Full catalog response built once per commit sequence. The serialized bytes
+ * are kept next to the message, and {@link #bind(BindableService)} installs a
+ * response marshaller for {@code listConcerts} that writes those bytes
+ * instead of encoding the message again for every caller.
+ */
+public class CatalogCache {
+    private static final MethodDescriptor.Marshaller<ListConcertsResponse> PROTO_MARSHALLER =
+            ProtoUtils.marshaller(ListConcertsResponse.getDefaultInstance());
+
+    private final ConcertServer server;
+    private volatile Snapshot current;
+
+    public CatalogCache(ConcertServer server) {
+        this.server = server;
+    }
+
+    public ListConcertsResponse getCatalog() {
+        long version = server.getCommitSequence();
+        Snapshot snapshot = current;
+        if (snapshot != null && snapshot.version == version) {
+            return snapshot.response;
+        }
+        synchronized (this) {
+            snapshot = current;
+            if (snapshot == null || snapshot.version != version) {
+                // the version is read before the shows, so a commit racing with
+                // this build always leaves the snapshot outdated, never stale
+                ListConcertsResponse response = ListConcertsResponse.newBuilder()
+                        .addAllShows(server.getAllConcerts())
+                        .setSequence(version)
+                        .build();
+                snapshot = new Snapshot(version, response, response.toByteArray());
+                current = snapshot;
+            }
+            return snapshot.response;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public ServerServiceDefinition bind(BindableService service) {
+        ServerServiceDefinition definition = service.bindService();
+        String listConcerts = CustomerServiceGrpc.getListConcertsMethod().getFullMethodName();
+        ServerServiceDefinition.Builder builder = ServerServiceDefinition.builder(definition.getServiceDescriptor().getName());
+        for (ServerMethodDefinition<?, ?> method : definition.getMethods()) {
+            if (method.getMethodDescriptor().getFullMethodName().equals(listConcerts)) {
+                builder.addMethod(withCachedResponses((ServerMethodDefinition<ListConcertsRequest, ListConcertsResponse>) method));
+            } else {
+                builder.addMethod(method);
+            }
+        }
+        return builder.build();
+    }
+
+    private ServerMethodDefinition<ListConcertsRequest, ListConcertsResponse> withCachedResponses(
+            ServerMethodDefinition<ListConcertsRequest, ListConcertsResponse> method) {
+        MethodDescriptor<ListConcertsRequest, ListConcertsResponse> descriptor = method.getMethodDescriptor()
+                .toBuilder(method.getMethodDescriptor().getRequestMarshaller(), new CachedResponseMarshaller())
+                .build();
+        return ServerMethodDefinition.create(descriptor, method.getServerCallHandler());
+    }
+
+    private class CachedResponseMarshaller implements MethodDescriptor.Marshaller<ListConcertsResponse> {
+        @Override
+        public InputStream stream(ListConcertsResponse value) {
+            Snapshot snapshot = current;
+            if (snapshot != null && snapshot.response == value) {
+                return new ByteArrayInputStream(snapshot.bytes);
+            }
+            return PROTO_MARSHALLER.stream(value);
+        }
+
+        @Override
+        public ListConcertsResponse parse(InputStream stream) {
+            return PROTO_MARSHALLER.parse(stream);
+        }
+    }
+
+    private static class Snapshot {
+        final long version;
+        final ListConcertsResponse response;
+        final byte[] bytes;
+
+        Snapshot(long version, ListConcertsResponse response, byte[] bytes) {
+            this.version = version;
+            this.response = response;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package com.cw2.server;
+
+import ds.tutorial.communication.grpc.generated.ConcertShow;
+import ds.tutorial.communication.grpc.generated.JournalEntryOrBuilder;
+import ds.tutorial.communication.grpc.generated.ListConcertsRequest;
+import ds.tutorial.communication.grpc.generated.ListConcertsResponse;
+import ds.tutorial.communication.grpc.generated.ReserveTicketRequest;
+import ds.tutorial.communication.grpc.generated.SeatTier;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Secondary indexes over the catalog for filtered, paginated listing. Every
+ * index is a sorted set of keys made of the show date and ID, so a page is a
+ * seek into one set followed by a short scan, and the key of the last show
+ * returned doubles as the page token. Shows appear in the venue index of
+ * their venue, in the tier index of every tier that still has seats, and in
+ * the after-party index while after-party tickets are left.
+ *
+ * <p>The indexes are refreshed from the store after each commit. Reservations
+ * only refresh a show when a tier or the after-party sold out or came back,
+ * so the reservation path does not rebuild the show. A listing
+ * checks every candidate against the current show, so a refresh that has
+ * not landed yet can hide a show for a moment but never returns one that
+ * does not match.
+ */
+public class CatalogIndex {
+    static final int DEFAULT_PAGE_SIZE = 50;
+    static final int MAX_PAGE_SIZE = 500;
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    private final ConcertStore store;
+    private final Map<String, Indexed> indexed = new ConcurrentHashMap<>();
+    private final KeySet byDate = new KeySet();
+    private final Map<String, KeySet> byVenue = new ConcurrentHashMap<>();
+    private final Map<String, KeySet> byTier = new ConcurrentHashMap<>();
+    private final KeySet withAfterParty = new KeySet();
+
+    public CatalogIndex(ConcertStore store) {
+        this.store = store;
+    }
+
+    public void onCommit(JournalEntryOrBuilder entry) {
+        switch (entry.getOperation()) {
+            case "RESERVE_TICKET":
+            case "HOLD_TICKET":
+            case "RELEASE_HOLD":
+                ReserveTicketRequest reservation = entry.getReservation();
+                refreshIfCrossed(reservation.getShowId(), reservation.getSeatType(), reservation.getIncludeAfterParty());
+                return;
+            case "RESERVE_GROUP":
+                for (ReserveTicketRequest item : entry.getGroupList()) {
+                    refreshIfCrossed(item.getShowId(), item.getSeatType(), item.getIncludeAfterParty());
+                }
+                return;
+            case "CONFIRM_HOLD":
+                // the seats were taken when the hold was placed
+                return;
+            default:
+                break;
+        }
+        List<String> showIds = ConcertServer.showIdsOf(entry);
+        if (showIds != null) {
+            for (String showId : showIds) {
+                refresh(showId);
+            }
+        } else {
+            rebuild();
+        }
+    }
+
+    public void rebuild() {
+        for (String showId : new ArrayList<>(indexed.keySet())) {
+            refresh(showId);
+        }
+        for (ConcertShow show : store.getAllConcerts()) {
+            refresh(show.getId());
+        }
+    }
+
+    /** Re-indexes one show from its current state in the store. */
+    public void refresh(String showId) {
+        // compute() serializes refreshes of the same show
+        indexed.compute(showId, this::reindex);
+    }
+
+    /**
+     * Re-indexes a show after a reservation changed the seats of one tier, and
+     * maybe its after-party tickets, if that moved one of them across zero.
+     * The check runs under the same per-show lock as a refresh, so it cannot
+     * miss a crossing a concurrent refresh read past.
+     */
+    private void refreshIfCrossed(String showId, String seatType, boolean afterParty) {
+        indexed.compute(showId, (id, previous) -> previous != null && !crossed(previous, id, seatType, afterParty)
+                ? previous
+                : reindex(id, previous));
+    }
+
+    private boolean crossed(Indexed entry, String showId, String seatType, boolean afterParty) {
+        int seats = store.getAvailableSeats(showId, seatType);
+        if (seats < 0 || (seats > 0) != entry.tiers.contains(ShowInventory.normalizeTier(seatType))) {
+            return true;
+        }
+        if (!afterParty) {
+            return false;
+        }
+        int tickets = store.getAvailableAfterPartyTickets(showId);
+        return tickets < 0 || (tickets > 0) != entry.afterParty;
+    }
+
+    private Indexed reindex(String showId, Indexed previous) {
+        ConcertShow show = store.getConcert(showId);
+        Indexed next = show != null ? new Indexed(show) : null;
+        if (previous != null) {
+            unindex(previous, next);
+        }
+        if (next != null) {
+            index(next);
+        }
+        return next;
+    }
+
+    private void index(Indexed entry) {
+        byDate.add(entry.key);
+        setFor(byVenue, entry.venue).add(entry.key);
+        for (String tier : entry.tiers) {
+            setFor(byTier, tier).add(entry.key);
+        }
+        if (entry.afterParty) {
+            withAfterParty.add(entry.key);
+        }
+    }
+
+    private void unindex(Indexed entry, Indexed next) {
+        boolean sameKey = next != null && next.key.equals(entry.key);
+        if (!sameKey) {
+            byDate.remove(entry.key);
+        }
+        if (!sameKey || !next.venue.equals(entry.venue)) {
+            removeFrom(byVenue, entry.venue, entry.key);
+        }
+        for (String tier : entry.tiers) {
+            if (!sameKey || !next.tiers.contains(tier)) {
+                removeFrom(byTier, tier, entry.key);
+            }
+        }
+        if (entry.afterParty && (!sameKey || !next.afterParty)) {
+            withAfterParty.remove(entry.key);
+        }
+    }
+
+    private static KeySet setFor(Map<String, KeySet> index, String value) {
+        return index.computeIfAbsent(value, v -> new KeySet());
+    }
+
+    private static void removeFrom(Map<String, KeySet> index, String value, String key) {
+        KeySet keys = index.get(value);
+        if (keys != null) {
+            // empty sets are left in place; they are cheap and may be reused
+            keys.remove(key);
+        }
+    }
+
+    public ListConcertsResponse list(ListConcertsRequest request) {
+        int pageSize = request.getPageSize() > 0 ? Math.min(request.getPageSize(), MAX_PAGE_SIZE) : DEFAULT_PAGE_SIZE;
+        String venue = normalize(request.getVenue());
+        String tier = request.getSeatTier().isEmpty() ? "" : ShowInventory.normalizeTier(request.getSeatTier());
+
+        NavigableSet<String> candidates = drivingSet(venue, tier, request.getWithAfterPartyTickets());
+        String from = request.getDateFrom();
+        boolean fromInclusive = true;
+        if (!request.getPageToken().isEmpty()) {
+            String after = decodeToken(request.getPageToken());
+            if (after.compareTo(from) >= 0) {
+                from = after;
+                fromInclusive = false;
+            }
+        }
+        if (request.getDateTo().isEmpty()) {
+            candidates = candidates.tailSet(from, fromInclusive);
+        } else {
+            // every key of the last day sorts below the date followed by \u0001
+            String to = request.getDateTo() + (char) (KEY_SEPARATOR + 1);
+            candidates = from.compareTo(to) < 0
+                    ? candidates.subSet(from, fromInclusive, to, false)
+                    : Collections.<String>emptyNavigableSet();
+        }
+
+        ListConcertsResponse.Builder response = ListConcertsResponse.newBuilder();
+        String lastKey = null;
+        for (String key : candidates) {
+            if (response.getShowsCount() == pageSize) {
+                response.setNextPageToken(encodeToken(lastKey));
+                break;
+            }
+            String showId = key.substring(key.indexOf(KEY_SEPARATOR) + 1);
+            Indexed entry = indexed.get(showId);
+            if (entry == null || !entry.key.equals(key) || !entry.matches(venue, tier, request.getWithAfterPartyTickets())) {
+                continue;
+            }
+            ConcertShow show = store.getConcert(showId);
+            if (show != null && key.equals(keyOf(show)) && matches(show, venue, tier, request.getWithAfterPartyTickets())) {
+                response.addShows(show);
+                lastKey = key;
+            }
+        }
+        return response.build();
+    }
+
+    /**
+     * Returns the keys of the smallest index a filter of the request selects,
+     * or all keys without filters. The other filters are checked per show.
+     */
+    private NavigableSet<String> drivingSet(String venue, String tier, boolean afterParty) {
+        KeySet smallest = byDate;
+        if (!tier.isEmpty()) {
+            smallest = smaller(smallest, byTier.get(tier));
+        }
+        if (afterParty) {
+            smallest = smaller(smallest, withAfterParty);
+        }
+        if (!venue.isEmpty()) {
+            smallest = smaller(smallest, byVenue.get(venue));
+        }
+        return smallest != null ? smallest.keys : Collections.<String>emptyNavigableSet();
+    }
+
+    /** Returns the smaller of two indexes, where a missing one (null) has no keys. */
+    private static KeySet smaller(KeySet current, KeySet candidate) {
+        if (current == null || candidate == null) {
+            return null;
+        }
+        return candidate.size.get() < current.size.get() ? candidate : current;
+    }
+
+    private static boolean matches(ConcertShow show, String venue, String tier, boolean afterParty) {
+        if (!venue.isEmpty() && !normalize(show.getVenue()).equals(venue)) {
+            return false;
+        }
+        if (afterParty && !(show.getHasAfterParty() && show.getAfterPartyTickets() > 0)) {
+            return false;
+        }
+        if (!tier.isEmpty()) {
+            for (SeatTier seatTier : show.getSeatTiersList()) {
+                if (seatTier.getAvailable() > 0 && ShowInventory.normalizeTier(seatTier.getType()).equals(tier)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private static String keyOf(ConcertShow show) {
+        return show.getDate() + KEY_SEPARATOR + show.getId();
+    }
+
+    private static String normalize(String value) {
+        return value.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static String encodeToken(String key) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decodeToken(String token) {
+        String key = null;
+        try {
+            key = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            // reported below
+        }
+        if (key == null || key.indexOf(KEY_SEPARATOR) < 0) {
+            throw new IllegalArgumentException("Invalid page token: " + token);
+        }
+        return key;
+    }
+
+    /**
+     * The keys of one index, with their count kept alongside, as counting a
+     * skip list walks all of it. Keys of one show are only added and removed
+     * under its lock in {@link #indexed}, so the count stays exact.
+     */
+    private static class KeySet {
+        final NavigableSet<String> keys = new ConcurrentSkipListSet<>();
+        final AtomicInteger size = new AtomicInteger();
+
+        void add(String key) {
+            if (keys.add(key)) {
+                size.incrementAndGet();
+            }
+        }
+
+        void remove(String key) {
+            if (keys.remove(key)) {
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    /** What one show currently contributes to the indexes. */
+    private static class Indexed {
+        final String key;
+        final String venue;
+        final Set<String> tiers = new HashSet<>();
+        final boolean afterParty;
+
+        Indexed(ConcertShow show) {
+            key = keyOf(show);
+            venue = normalize(show.getVenue());
+            for (SeatTier tier : show.getSeatTiersList()) {
+                if (tier.getAvailable() > 0) {
+                    tiers.add(ShowInventory.normalizeTier(tier.getType()));
+                }
+            }
+            afterParty = show.getHasAfterParty() && show.getAfterPartyTickets() > 0;
+        }
+
+        boolean matches(String venue, String tier, boolean withAfterParty) {
+            return (venue.isEmpty() || this.venue.equals(venue))
+                    && (tier.isEmpty() || tiers.contains(tier))
+                    && (!withAfterParty || afterParty);
+        }
+    }
+}
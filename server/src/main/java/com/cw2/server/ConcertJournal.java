@@ -0,0 +1,304 @@
+package com.cw2.server;
+
+import ds.tutorial.communication.grpc.generated.JournalEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of committed operations, written through fixed size
+ * memory-mapped segment files. Each record is framed as
+ * {@code [int length][int crc32][JournalEntry bytes]}; a zero length marks
+ * the end of the written part of a segment.
+ *
+ * <p>How long {@link #awaitDurable(long)} blocks depends on the durability:
+ * <ul>
+ *   <li>{@code SYNC} has the waiting thread force the segment to disk itself,
+ *   right away and outside the append lock, so appends never wait for a
+ *   force,</li>
+ *   <li>{@code GROUP} waits for the background flusher, which forces once
+ *   for every record appended since its previous pass,</li>
+ *   <li>{@code ASYNC} does not wait; the flusher still forces in the
+ *   background, so a process crash loses nothing but a power loss may.</li>
+ * </ul>
+ */
+public class ConcertJournal {
+    public enum Durability {
+        SYNC, GROUP, ASYNC
+    }
+
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    private static final int HEADER_BYTES = 8;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File directory;
+    private final int segmentBytes;
+    private final Durability durability;
+    private final long flushIntervalMillis;
+
+    private FileChannel segmentChannel;
+    private volatile MappedByteBuffer segment;
+    private int segmentIndex;
+    private long appended = 0;
+    private long durable = 0;
+    private final Object durableLock = new Object();
+    private Thread flusher;
+    private volatile boolean closed = false;
+
+    public ConcertJournal(File directory, Durability durability, long flushIntervalMillis, int segmentBytes) {
+        this.directory = directory;
+        this.durability = durability;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.segmentBytes = segmentBytes;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public int getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    /**
+     * Replays every intact record to {@code consumer} in append order and
+     * positions the journal after the last one. A torn record at the tail of
+     * the last segment ends the replay and is overwritten by later appends.
+     */
+    public synchronized void open(Consumer<JournalEntry> consumer) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create journal directory " + directory);
+        }
+        List<File> segments = listSegments();
+        int replayed = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            boolean last = i == segments.size() - 1;
+            MappedByteBuffer buffer = map(segments.get(i), last);
+            replayed += replaySegment(buffer, consumer);
+            if (last) {
+                segmentIndex = parseSegmentIndex(segments.get(i));
+                segment = buffer;
+            }
+        }
+        if (segment == null) {
+            segmentIndex = 0;
+            segment = map(segmentFile(segmentIndex), true);
+        }
+        System.out.println("Journal opened at " + directory + " (" + durability + "), replayed " + replayed + " entries");
+
+        flusher = new Thread(this::flushLoop, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private int replaySegment(MappedByteBuffer buffer, Consumer<JournalEntry> consumer) throws IOException {
+        int count = 0;
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= HEADER_BYTES) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if (length == 0) {
+                buffer.position(start);
+                break;
+            }
+            int checksum = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                truncate(buffer, start);
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                truncate(buffer, start);
+                break;
+            }
+            consumer.accept(JournalEntry.parseFrom(payload));
+            count++;
+        }
+        return count;
+    }
+
+    private void truncate(MappedByteBuffer buffer, int position) {
+        System.out.println("Discarding torn journal record at offset " + position);
+        for (int i = position; i < buffer.limit(); i++) {
+            buffer.put(i, (byte) 0);
+        }
+        buffer.force();
+        buffer.position(position);
+    }
+
+    /**
+     * Appends an entry and returns a ticket to pass to
+     * {@link #awaitDurable(long)}.
+     */
+    public synchronized long append(JournalEntry entry) throws IOException {
+        if (closed) {
+            throw new IOException("Journal is closed");
+        }
+        byte[] payload = entry.toByteArray();
+        int recordBytes = HEADER_BYTES + payload.length;
+        if (recordBytes + 4 > segmentBytes) {
+            throw new IOException("Journal entry of " + payload.length + " bytes does not fit in a segment");
+        }
+        if (segment.remaining() < recordBytes + 4) {
+            roll();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        int start = segment.position();
+        segment.position(start + 4);
+        segment.putInt((int) crc.getValue());
+        segment.put(payload);
+        // the length goes in last so a half written record reads as the end of the segment
+        segment.putInt(start, payload.length);
+        appended++;
+        if (durability != Durability.SYNC) {
+            synchronized (durableLock) {
+                durableLock.notifyAll();
+            }
+        }
+        return appended;
+    }
+
+    public void awaitDurable(long ticket) {
+        if (durability == Durability.ASYNC) {
+            return;
+        }
+        if (durability == Durability.SYNC) {
+            force(ticket);
+            return;
+        }
+        synchronized (durableLock) {
+            while (durable < ticket && !closed) {
+                try {
+                    durableLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces the segment holding {@code ticket} unless that already happened.
+     * Segments before the current one were forced when the journal rolled over.
+     */
+    private void force(long ticket) {
+        long target;
+        MappedByteBuffer buffer;
+        synchronized (this) {
+            target = appended;
+            buffer = segment;
+        }
+        synchronized (durableLock) {
+            if (durable >= ticket || closed) {
+                return;
+            }
+        }
+        buffer.force();
+        markDurable(target);
+    }
+
+    private void roll() throws IOException {
+        segment.force();
+        markDurable(appended);
+        segmentChannel.close();
+        segmentIndex++;
+        segment = map(segmentFile(segmentIndex), true);
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            long target;
+            MappedByteBuffer buffer;
+            synchronized (this) {
+                target = appended;
+                buffer = segment;
+            }
+            synchronized (durableLock) {
+                if (durable >= target) {
+                    try {
+                        durableLock.wait(1000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            buffer.force();
+            markDurable(target);
+            if (flushIntervalMillis > 0) {
+                try {
+                    Thread.sleep(flushIntervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void markDurable(long ticket) {
+        synchronized (durableLock) {
+            if (ticket > durable) {
+                durable = ticket;
+            }
+            durableLock.notifyAll();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        segment.force();
+        markDurable(appended);
+        closed = true;
+        synchronized (durableLock) {
+            durableLock.notifyAll();
+        }
+        segmentChannel.close();
+    }
+
+    private MappedByteBuffer map(File file, boolean keepOpen) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        if (keepOpen) {
+            segmentChannel = channel;
+        } else {
+            channel.close();
+        }
+        return buffer;
+    }
+
+    private List<File> listSegments() {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        List<File> segments = new ArrayList<>();
+        if (files != null) {
+            segments.addAll(Arrays.asList(files));
+        }
+        segments.sort((a, b) -> Integer.compare(parseSegmentIndex(a), parseSegmentIndex(b)));
+        return segments;
+    }
+
+    private File segmentFile(int index) {
+        return new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    }
+
+    private static int parseSegmentIndex(File file) {
+        String name = file.getName();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
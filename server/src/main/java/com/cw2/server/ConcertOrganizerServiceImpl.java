@@ -4,20 +4,13 @@ import ds.tutorial.communication.grpc.generated.*;
 import ds.tutorial.synchronization.processs.DistributedTxCoordinator;
 import ds.tutorial.synchronization.processs.DistributedTxListner;
 import ds.tutorial.synchronization.processs.DistributedTxParticipant;
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
 import org.apache.zookeeper.KeeperException;
 
 import java.io.IOException;
-import java.util.List;
-import java.util.UUID;
 
 public class ConcertOrganizerServiceImpl extends ConcertOrganizerServiceGrpc.ConcertOrganizerServiceImplBase implements DistributedTxListner {
     private ConcertServer server;
-    private ManagedChannel channel = null;
-    private ConcertOrganizerServiceGrpc.ConcertOrganizerServiceBlockingStub clientStub = null;
-    private Object tempDataHolder;
-    private boolean transactionStatus = false;
+    private final TransactionContext.Table<Object> transactions = new TransactionContext.Table<>();
 
     public ConcertOrganizerServiceImpl(ConcertServer server) {
         this.server = server;
@@ -27,34 +20,53 @@ public class ConcertOrganizerServiceImpl extends ConcertOrganizerServiceGrpc.Con
     public void addConcert(AddConcertRequest request, io.grpc.stub.StreamObserver<AddConcertResponse> responseObserver) {
         ConcertShow show = request.getShow();
 
-        if (server.isLeader()) {
+        boolean status = false;
+
+        if (!request.getIsSentByPrimary() && server.startShardWrite(show.getId())) {
             
             try {
                 System.out.println("Adding concert as Primary");
-                startDistributedTx("ADD_CONCERT", show);
-                updateSecondaryServers(request);
-
-                ((DistributedTxCoordinator) server.getTransaction()).perform();
+                if (server.usesLogReplication()) {
+                    status = apply("ADD_CONCERT", show, 0);
+                } else {
+                    request = request.toBuilder()
+                            .setTransactionId(TransactionContext.newTransactionId("ADD_CONCERT"))
+                            .build();
+                    TransactionContext<Object> context = transactions.start(request.getTransactionId(), "ADD_CONCERT", show,
+                            new DistributedTxCoordinator(this));
+                    DistributedTxCoordinator coordinator = context.getTransaction();
+                    int followers;
+                    try {
+                        followers = updateSecondaryServers(request);
+                    } catch (Exception e) {
+                        coordinator.abort();
+                        throw e;
+                    }
+
+                    coordinator.perform(followers);
+                    status = context.isCommitted();
+                }
             } catch (Exception e) {
                 System.out.println("Error while adding concert: " + e.getMessage());
                 e.printStackTrace();
-                transactionStatus = false;
+            } finally {
+                server.finishShardWrite(show.getId());
             }
         } else {
             
             if (request.getIsSentByPrimary()) {
                 System.out.println("Adding concert on secondary, on Primary's command");
-                startDistributedTx("ADD_CONCERT", show);
-                ((DistributedTxParticipant) server.getTransaction()).voteCommit();
+                voteCommit(request.getTransactionId(), "ADD_CONCERT", show);
+                status = true;
             } else {
                 AddConcertResponse response = callPrimary(request);
-                transactionStatus = response.getStatus();
+                status = response.getStatus();
             }
         }
 
         AddConcertResponse response = AddConcertResponse.newBuilder()
-                .setStatus(transactionStatus)
-                .setMessage(transactionStatus ? "Concert added successfully" : "Failed to add concert")
+                .setStatus(status)
+                .setMessage(status ? "Concert added successfully" : "Failed to add concert")
                 .build();
 
         responseObserver.onNext(response);
@@ -65,34 +77,53 @@ public class ConcertOrganizerServiceImpl extends ConcertOrganizerServiceGrpc.Con
     public void updateConcert(UpdateConcertRequest request, io.grpc.stub.StreamObserver<UpdateConcertResponse> responseObserver) {
         ConcertShow updatedShow = request.getUpdatedShow();
 
-        if (server.isLeader()) {
+        boolean status = false;
+
+        if (!request.getIsSentByPrimary() && server.startShardWrite(updatedShow.getId())) {
             
             try {
                 System.out.println("Updating concert as Primary");
-                startDistributedTx("UPDATE_CONCERT", updatedShow);
-                updateSecondaryServers(request);
-
-                ((DistributedTxCoordinator) server.getTransaction()).perform();
+                if (server.usesLogReplication()) {
+                    status = apply("UPDATE_CONCERT", updatedShow, 0);
+                } else {
+                    request = request.toBuilder()
+                            .setTransactionId(TransactionContext.newTransactionId("UPDATE_CONCERT"))
+                            .build();
+                    TransactionContext<Object> context = transactions.start(request.getTransactionId(), "UPDATE_CONCERT", updatedShow,
+                            new DistributedTxCoordinator(this));
+                    DistributedTxCoordinator coordinator = context.getTransaction();
+                    int followers;
+                    try {
+                        followers = updateSecondaryServers(request);
+                    } catch (Exception e) {
+                        coordinator.abort();
+                        throw e;
+                    }
+
+                    coordinator.perform(followers);
+                    status = context.isCommitted();
+                }
             } catch (Exception e) {
                 System.out.println("Error while updating concert: " + e.getMessage());
                 e.printStackTrace();
-                transactionStatus = false;
+            } finally {
+                server.finishShardWrite(updatedShow.getId());
             }
         } else {
             
             if (request.getIsSentByPrimary()) {
                 System.out.println("Updating concert on secondary, on Primary's command");
-                startDistributedTx("UPDATE_CONCERT", updatedShow);
-                ((DistributedTxParticipant) server.getTransaction()).voteCommit();
+                voteCommit(request.getTransactionId(), "UPDATE_CONCERT", updatedShow);
+                status = true;
             } else {
                 UpdateConcertResponse response = callPrimary(request);
-                transactionStatus = response.getStatus();
+                status = response.getStatus();
             }
         }
 
         UpdateConcertResponse response = UpdateConcertResponse.newBuilder()
-                .setStatus(transactionStatus)
-                .setMessage(transactionStatus ? "Concert updated successfully" : "Failed to update concert")
+                .setStatus(status)
+                .setMessage(status ? "Concert updated successfully" : "Failed to update concert")
                 .build();
 
         responseObserver.onNext(response);
@@ -103,166 +134,176 @@ public class ConcertOrganizerServiceImpl extends ConcertOrganizerServiceGrpc.Con
     public void cancelConcert(CancelConcertRequest request, io.grpc.stub.StreamObserver<CancelConcertResponse> responseObserver) {
         String showId = request.getShowId();
 
-        if (server.isLeader()) {
+        boolean status = false;
+
+        if (!request.getIsSentByPrimary() && server.startShardWrite(showId)) {
             
             try {
                 System.out.println("Cancelling concert as Primary");
-                startDistributedTx("CANCEL_CONCERT", showId);
-                updateSecondaryServers(request);
-
-                ((DistributedTxCoordinator) server.getTransaction()).perform();
+                if (server.usesLogReplication()) {
+                    status = apply("CANCEL_CONCERT", showId, 0);
+                } else {
+                    request = request.toBuilder()
+                            .setTransactionId(TransactionContext.newTransactionId("CANCEL_CONCERT"))
+                            .build();
+                    TransactionContext<Object> context = transactions.start(request.getTransactionId(), "CANCEL_CONCERT", showId,
+                            new DistributedTxCoordinator(this));
+                    DistributedTxCoordinator coordinator = context.getTransaction();
+                    int followers;
+                    try {
+                        followers = updateSecondaryServers(request);
+                    } catch (Exception e) {
+                        coordinator.abort();
+                        throw e;
+                    }
+
+                    coordinator.perform(followers);
+                    status = context.isCommitted();
+                }
             } catch (Exception e) {
                 System.out.println("Error while cancelling concert: " + e.getMessage());
                 e.printStackTrace();
-                transactionStatus = false;
+            } finally {
+                server.finishShardWrite(showId);
             }
         } else {
             
             if (request.getIsSentByPrimary()) {
                 System.out.println("Cancelling concert on secondary, on Primary's command");
-                startDistributedTx("CANCEL_CONCERT", showId);
-                ((DistributedTxParticipant) server.getTransaction()).voteCommit();
+                voteCommit(request.getTransactionId(), "CANCEL_CONCERT", showId);
+                status = true;
             } else {
                 CancelConcertResponse response = callPrimary(request);
-                transactionStatus = response.getStatus();
+                status = response.getStatus();
             }
         }
 
         CancelConcertResponse response = CancelConcertResponse.newBuilder()
-                .setStatus(transactionStatus)
-                .setMessage(transactionStatus ? "Concert cancelled successfully" : "Failed to cancel concert")
+                .setStatus(status)
+                .setMessage(status ? "Concert cancelled successfully" : "Failed to cancel concert")
                 .build();
 
         responseObserver.onNext(response);
         responseObserver.onCompleted();
     }
 
-    
-    private void startDistributedTx(String operation, Object data) {
+    private void voteCommit(String transactionId, String operation, Object data) {
         try {
-            server.getTransaction().start(operation, String.valueOf(UUID.randomUUID()));
-            tempDataHolder = data;
+            TransactionContext<Object> context = transactions.start(transactionId, operation, data,
+                    new DistributedTxParticipant(this));
+            ((DistributedTxParticipant) context.getTransaction()).voteCommit();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     @Override
-    public void onGlobalCommit() {
-        if (tempDataHolder instanceof ConcertShow) {
-            if (((ConcertShow) tempDataHolder).getId().isEmpty()) {
-                
-                return;
-            }
-            server.addConcert((ConcertShow) tempDataHolder);
-        } else if (tempDataHolder instanceof String) {
-            server.cancelConcert((String) tempDataHolder);
+    public void onGlobalCommit(String transactionId) {
+        TransactionContext<Object> context = transactions.finish(transactionId);
+        if (context != null) {
+            context.setCommitted(apply(context.getOperation(), context.getData(), context.getDecisionZxid()), null);
+        }
+    }
+
+    private boolean apply(String operation, Object data, long decisionZxid) {
+        switch (operation) {
+            case "ADD_CONCERT":
+                if (((ConcertShow) data).getId().isEmpty()) {
+                    
+                    return false;
+                }
+                server.addConcert((ConcertShow) data, decisionZxid);
+                return true;
+            case "UPDATE_CONCERT":
+                server.updateConcert((ConcertShow) data, decisionZxid);
+                return true;
+            case "CANCEL_CONCERT":
+                return server.cancelConcert((String) data, decisionZxid);
+            default:
+                System.out.println("Unknown operation " + operation);
+                return false;
         }
-        transactionStatus = true;
-        tempDataHolder = null;
     }
 
     @Override
-    public void onGlobalAbort() {
-        tempDataHolder = null;
-        transactionStatus = false;
-        System.out.println("Transaction Aborted by the Coordinator");
+    public void onGlobalAbort(String transactionId) {
+        transactions.finish(transactionId);
+        System.out.println("Transaction " + transactionId + " Aborted by the Coordinator");
     }
 
     private AddConcertResponse callPrimary(AddConcertRequest request) {
         System.out.println("Calling Primary server for Add Concert");
-        String[] currentLeaderData = server.getCurrentLeaderData();
+        String[] currentLeaderData = server.getShardLeaderData(request.getShow().getId());
         String IPAddress = currentLeaderData[0];
         int port = Integer.parseInt(currentLeaderData[1]);
 
-        channel = ManagedChannelBuilder.forAddress(IPAddress, port).usePlaintext().build();
-        clientStub = ConcertOrganizerServiceGrpc.newBlockingStub(channel);
+        ConcertOrganizerServiceGrpc.ConcertOrganizerServiceBlockingStub clientStub = ConcertOrganizerServiceGrpc.newBlockingStub(
+                server.getPeerChannel(IPAddress, port));
 
         return clientStub.addConcert(request);
     }
 
     private UpdateConcertResponse callPrimary(UpdateConcertRequest request) {
         System.out.println("Calling Primary server for Update Concert");
-        String[] currentLeaderData = server.getCurrentLeaderData();
+        String[] currentLeaderData = server.getShardLeaderData(request.getUpdatedShow().getId());
         String IPAddress = currentLeaderData[0];
         int port = Integer.parseInt(currentLeaderData[1]);
 
-        channel = ManagedChannelBuilder.forAddress(IPAddress, port).usePlaintext().build();
-        clientStub = ConcertOrganizerServiceGrpc.newBlockingStub(channel);
+        ConcertOrganizerServiceGrpc.ConcertOrganizerServiceBlockingStub clientStub = ConcertOrganizerServiceGrpc.newBlockingStub(
+                server.getPeerChannel(IPAddress, port));
 
         return clientStub.updateConcert(request);
     }
 
     private CancelConcertResponse callPrimary(CancelConcertRequest request) {
         System.out.println("Calling Primary server for Cancel Concert");
-        String[] currentLeaderData = server.getCurrentLeaderData();
+        String[] currentLeaderData = server.getShardLeaderData(request.getShowId());
         String IPAddress = currentLeaderData[0];
         int port = Integer.parseInt(currentLeaderData[1]);
 
-        channel = ManagedChannelBuilder.forAddress(IPAddress, port).usePlaintext().build();
-        clientStub = ConcertOrganizerServiceGrpc.newBlockingStub(channel);
+        ConcertOrganizerServiceGrpc.ConcertOrganizerServiceBlockingStub clientStub = ConcertOrganizerServiceGrpc.newBlockingStub(
+                server.getPeerChannel(IPAddress, port));
 
         return clientStub.cancelConcert(request);
     }
 
-    private void updateSecondaryServers(AddConcertRequest request) throws KeeperException, InterruptedException {
+    private int updateSecondaryServers(AddConcertRequest request) throws KeeperException, InterruptedException {
         System.out.println("Updating secondary servers for Add Concert");
-        List<String[]> othersData = server.getOthersData();
-
-        for (String[] data : othersData) {
-            String IPAddress = data[0];
-            int port = Integer.parseInt(data[1]);
-
-            channel = ManagedChannelBuilder.forAddress(IPAddress, port).usePlaintext().build();
-            clientStub = ConcertOrganizerServiceGrpc.newBlockingStub(channel);
-
-            AddConcertRequest secondaryRequest = AddConcertRequest.newBuilder()
-                    .setShow(request.getShow())
-                    .setIsSentByPrimary(true)
-                    .build();
+        AddConcertRequest secondaryRequest = AddConcertRequest.newBuilder()
+                .setShow(request.getShow())
+                .setTransactionId(request.getTransactionId())
+                .setIsSentByPrimary(true)
+                .build();
 
-            clientStub.addConcert(secondaryRequest);
-        }
+        return server.sendToFollowers("addConcert", (channel, deadline) -> ConcertOrganizerServiceGrpc.newFutureStub(channel)
+                .withDeadline(deadline)
+                .addConcert(secondaryRequest), AddConcertResponse::getStatus).size();
     }
 
-    private void updateSecondaryServers(UpdateConcertRequest request) throws KeeperException, InterruptedException {
+    private int updateSecondaryServers(UpdateConcertRequest request) throws KeeperException, InterruptedException {
         System.out.println("Updating secondary servers for Update Concert");
-        List<String[]> othersData = server.getOthersData();
-
-        for (String[] data : othersData) {
-            String IPAddress = data[0];
-            int port = Integer.parseInt(data[1]);
-
-            channel = ManagedChannelBuilder.forAddress(IPAddress, port).usePlaintext().build();
-            clientStub = ConcertOrganizerServiceGrpc.newBlockingStub(channel);
-
-            UpdateConcertRequest secondaryRequest = UpdateConcertRequest.newBuilder()
-                    .setShowId(request.getShowId())
-                    .setUpdatedShow(request.getUpdatedShow())
-                    .setIsSentByPrimary(true)
-                    .build();
+        UpdateConcertRequest secondaryRequest = UpdateConcertRequest.newBuilder()
+                .setShowId(request.getShowId())
+                .setUpdatedShow(request.getUpdatedShow())
+                .setTransactionId(request.getTransactionId())
+                .setIsSentByPrimary(true)
+                .build();
 
-            clientStub.updateConcert(secondaryRequest);
-        }
+        return server.sendToFollowers("updateConcert", (channel, deadline) -> ConcertOrganizerServiceGrpc.newFutureStub(channel)
+                .withDeadline(deadline)
+                .updateConcert(secondaryRequest), UpdateConcertResponse::getStatus).size();
     }
 
-    private void updateSecondaryServers(CancelConcertRequest request) throws KeeperException, InterruptedException {
+    private int updateSecondaryServers(CancelConcertRequest request) throws KeeperException, InterruptedException {
         System.out.println("Updating secondary servers for Cancel Concert");
-        List<String[]> othersData = server.getOthersData();
-
-        for (String[] data : othersData) {
-            String IPAddress = data[0];
-            int port = Integer.parseInt(data[1]);
-
-            channel = ManagedChannelBuilder.forAddress(IPAddress, port).usePlaintext().build();
-            clientStub = ConcertOrganizerServiceGrpc.newBlockingStub(channel);
-
-            CancelConcertRequest secondaryRequest = CancelConcertRequest.newBuilder()
-                    .setShowId(request.getShowId())
-                    .setIsSentByPrimary(true)
-                    .build();
+        CancelConcertRequest secondaryRequest = CancelConcertRequest.newBuilder()
+                .setShowId(request.getShowId())
+                .setTransactionId(request.getTransactionId())
+                .setIsSentByPrimary(true)
+                .build();
 
-            clientStub.cancelConcert(secondaryRequest);
-        }
+        return server.sendToFollowers("cancelConcert", (channel, deadline) -> ConcertOrganizerServiceGrpc.newFutureStub(channel)
+                .withDeadline(deadline)
+                .cancelConcert(secondaryRequest), CancelConcertResponse::getStatus).size();
     }
 }
\ No newline at end of file
@@ -3,37 +3,98 @@ package com.cw2.server;
 import ds.tutorial.synchronization.processs.DistributedLock;
 import ds.tutorial.synchronization.processs.DistributedTx;
 import ds.tutorial.synchronization.processs.DistributedTxCoordinator;
-import ds.tutorial.synchronization.processs.DistributedTxParticipant;
+import io.grpc.ManagedChannel;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
 import org.apache.zookeeper.KeeperException;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
-import ds.tutorial.communication.grpc.generated.ConcertShow;
-import ds.tutorial.communication.grpc.generated.SeatTier;
+import ds.tutorial.communication.grpc.generated.*;
 
 public class ConcertServer {
+    private static final int RECONCILIATION_TIMEOUT_SECONDS = 10;
+    private static final long MEMBERSHIP_REFRESH_MILLIS = 1000;
+    private static final long CAMPAIGN_RETRY_MILLIS = 500;
+    private static final int SHOW_LOCK_STRIPES = 64;
+
+    /**
+     * How writes reach the followers: a ZooKeeper two-phase commit per write,
+     * or a log of committed entries the leader streams to them over gRPC.
+     */
+    public enum ReplicationMode {
+        TWO_PHASE_COMMIT, LOG
+    }
+
     private AtomicBoolean isLeader = new AtomicBoolean(false);
     private byte[] leaderData;
     private DistributedLock leaderLock;
     private int serverPort;
 
-    
-    private Map<String, ConcertShow> concerts = new ConcurrentHashMap<>();
-    private Map<String, List<String>> reservations = new ConcurrentHashMap<>(); 
+    private final ConcertStore store = new ConcertStore();
+    private final CatalogIndex catalogIndex = new CatalogIndex(store);
+    private final ConcertJournal journal;
+    // a change to a show is applied and sequenced under the show's stripe:
+    // shared for reservations and holds, which commute, exclusive otherwise
+    private final ReentrantReadWriteLock[] showLocks = new ReentrantReadWriteLock[SHOW_LOCK_STRIPES];
+    // orders the commits of all shows in the journal and the replicated log; held only to number and append them
+    private final Object sequencer = new Object();
+    private volatile long commitSequence = 0;
+    // log replication terms, guarded by the sequencer: the term of the last entry,
+    // and the newest leader term this node has accepted entries or a stream header from
+    private long logTerm = 0;
+    private long acceptedTerm = 0;
+    private volatile long leaderTerm = 0;
+    // the pieces of a loaded state read so far while replaying the journal
+    private JournalEntry.Builder replayedLoad;
+    private final AtomicLongArray decisionZxids;
+    private volatile long lastReconciliationMillis = -1;
+    private final Map<String, Long> showVersions = new ConcurrentHashMap<>();
+    private volatile long baseShowVersion = 0;
 
-    private DistributedTx transaction;
     private ConcertOrganizerServiceImpl concertOrganizerService;
     private BoxOfficeServiceImpl boxOfficeService;
     private CustomerServiceImpl customerService;
+    private ReplicationServiceImpl replicationService;
+    private final HoldExpiry holdExpiry;
+    private final CatalogCache catalogCache = new CatalogCache(this);
+    private final ReadConsistency readConsistency = new ReadConsistency(this);
+    private final PeerChannelRegistry peerChannels = new PeerChannelRegistry();
+    private final ReplicationFanOut fanOut = new ReplicationFanOut(peerChannels,
+            Long.getLong("concert.replication.peerDeadlineMs", ReplicationFanOut.DEFAULT_PEER_DEADLINE_MILLIS));
+    private final AvailabilityPublisher availabilityPublisher = new AvailabilityPublisher(this);
+    private final ReplicationMode replicationMode;
+    private final LogReplicator logReplicator;
+    private ScheduledExecutorService logMembership;
+    private final ShardLeadership[] shards;
+    private final ExecutorService shardRebalancer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "shard-rebalance");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public static void main(String[] args) throws Exception {
         DistributedLock.setZooKeeperURL("localhost:2181");
         DistributedTx.setZooKeeperURL("localhost:2181");
+        DistributedTxCoordinator.setVoteTimeout(Long.getLong("concert.tx.voteTimeoutMs",
+                DistributedTxCoordinator.DEFAULT_VOTE_TIMEOUT_MILLIS));
         int serverPort;
         if (args.length != 1) {
             System.out.println("Usage ConcertServer <port>");
@@ -41,32 +102,80 @@ public class ConcertServer {
         }
 
         serverPort = Integer.parseInt(args[0].trim());
-        ConcertServer server = new ConcertServer("localhost", serverPort);
+        ConcertJournal journal = new ConcertJournal(
+                new File(System.getProperty("concert.journal.dir", "concert-journal-" + serverPort)),
+                ConcertJournal.Durability.valueOf(System.getProperty("concert.journal.durability", "GROUP").toUpperCase()),
+                Long.getLong("concert.journal.flushIntervalMs", 0),
+                Integer.getInteger("concert.journal.segmentBytes", ConcertJournal.DEFAULT_SEGMENT_BYTES));
+        ReplicationMode replicationMode = ReplicationMode.valueOf(
+                System.getProperty("concert.replication.mode", "TWO_PHASE_COMMIT").toUpperCase());
+        int shards = Integer.getInteger("concert.shards", 1);
+        ConcertServer server = new ConcertServer("localhost", serverPort, journal, replicationMode, shards);
         server.startServer();
     }
 
-    public ConcertServer(String host, int port) throws InterruptedException, IOException, KeeperException {
-        this.serverPort = port;
+    public ConcertServer(String host, int port, ConcertJournal journal, ReplicationMode replicationMode, int shardCount)
+            throws InterruptedException, IOException, KeeperException {
+        this(port, journal, replicationMode, shardCount);
         leaderLock = new DistributedLock("ConcertServerCluster", buildServerData(host, port));
+        leaderLock.addMembershipListener(this::onMembershipChanged);
+        leaderLock.addLockLostListener(this::onLeaderLockLost);
+        // shard 0 is led by the primary; the others have elections of their own
+        shards[0] = new ShardLeadership(0, leaderLock);
+        for (int shard = 1; shard < shardCount; shard++) {
+            DistributedLock shardLock = new DistributedLock("ConcertServerCluster-shard-" + shard, buildServerData(host, port));
+            shardLock.addMembershipListener(this::rebalanceShards);
+            shards[shard] = new ShardLeadership(shard, shardLock);
+            shardLock.addLockLostListener(shards[shard]::loseLock);
+        }
+    }
+
+    /**
+     * A node outside any cluster: it never leads, and its commits only reach
+     * its own store and journal. The benchmarks drive the commit path through
+     * one.
+     */
+    ConcertServer(int port, ConcertJournal journal, ReplicationMode replicationMode, int shardCount) {
+        if (shardCount < 1 || (shardCount > 1 && replicationMode == ReplicationMode.LOG)) {
+            throw new IllegalArgumentException("Need at least one shard, and log replication supports only one");
+        }
+        this.serverPort = port;
+        this.journal = journal;
+        this.replicationMode = replicationMode;
+        this.decisionZxids = new AtomicLongArray(shardCount);
+        for (int stripe = 0; stripe < SHOW_LOCK_STRIPES; stripe++) {
+            showLocks[stripe] = new ReentrantReadWriteLock();
+        }
+        this.logReplicator = replicationMode == ReplicationMode.LOG
+                ? new LogReplicator(this, sequencer, peerChannels,
+                        Long.getLong("concert.replication.peerDeadlineMs", ReplicationFanOut.DEFAULT_PEER_DEADLINE_MILLIS))
+                : null;
+        shards = new ShardLeadership[shardCount];
+        for (int shard = 0; shard < shardCount; shard++) {
+            shards[shard] = new ShardLeadership(shard, null);
+        }
         concertOrganizerService = new ConcertOrganizerServiceImpl(this);
         boxOfficeService = new BoxOfficeServiceImpl(this);
         customerService = new CustomerServiceImpl(this);
-        transaction = new DistributedTxParticipant(concertOrganizerService); 
-    }
-
-    public DistributedTx getTransaction() {
-        return transaction;
+        replicationService = new ReplicationServiceImpl(this);
+        holdExpiry = new HoldExpiry(this, holdIds -> customerService.settleHolds("RELEASE_HOLD", holdIds),
+                Long.getLong("concert.holds.tickMs", HoldExpiry.DEFAULT_TICK_MILLIS),
+                Integer.getInteger("concert.holds.maxBatch", HoldExpiry.DEFAULT_MAX_BATCH));
     }
 
     public void startServer() throws IOException, InterruptedException, KeeperException {
+        journal.open(this::replayJournalEntry);
+        holdExpiry.start();
         Server server = ServerBuilder
                 .forPort(serverPort)
                 .addService(concertOrganizerService)
                 .addService(boxOfficeService)
-                .addService(customerService)
+                .addService(catalogCache.bind(customerService))
+                .addService(replicationService)
                 .build();
         server.start();
-        System.out.println("ConcertServer Started and ready to accept requests on port " + serverPort);
+        System.out.println("ConcertServer Started and ready to accept requests on port " + serverPort
+                + " (" + replicationMode + " replication, " + shards.length + " shard" + (shards.length > 1 ? "s" : "") + ")");
         tryToBeLeader();
         server.awaitTermination();
     }
@@ -74,6 +183,75 @@ public class ConcertServer {
     private void tryToBeLeader() throws KeeperException, InterruptedException {
         Thread leaderCampaignThread = new Thread(new LeaderCampaignThread());
         leaderCampaignThread.start();
+        for (int shard = 1; shard < shards.length; shard++) {
+            new Thread(new ShardCampaignThread(shards[shard]), "shard-" + shard + "-campaign").start();
+        }
+    }
+
+    public int shardOf(String showId) {
+        return Math.floorMod(showId.hashCode(), shards.length);
+    }
+
+    /**
+     * Starts a write to the show as leader of its shard. Returns false if
+     * another node leads the shard; otherwise the write must be ended with
+     * {@link #finishShardWrite(String)}.
+     */
+    public boolean startShardWrite(String showId) {
+        return shards[shardOf(showId)].enter();
+    }
+
+    public void finishShardWrite(String showId) {
+        shards[shardOf(showId)].exit();
+    }
+
+    /**
+     * Starts a write to several shows at once. Returns false, having started
+     * nothing, unless this node leads the shards of all of them.
+     */
+    public boolean startShardWrites(Collection<String> showIds) {
+        List<Integer> entered = new ArrayList<>();
+        for (int shard : shardsOf(showIds)) {
+            if (!shards[shard].enter()) {
+                for (int started : entered) {
+                    shards[started].exit();
+                }
+                return false;
+            }
+            entered.add(shard);
+        }
+        return true;
+    }
+
+    public void finishShardWrites(Collection<String> showIds) {
+        for (int shard : shardsOf(showIds)) {
+            shards[shard].exit();
+        }
+    }
+
+    private SortedSet<Integer> shardsOf(Collection<String> showIds) {
+        SortedSet<Integer> shardSet = new TreeSet<>();
+        for (String showId : showIds) {
+            shardSet.add(shardOf(showId));
+        }
+        return shardSet;
+    }
+
+    /** Returns {host, port} of the node leading the show's shard, for forwarding writes to it. */
+    public String[] getShardLeaderData(String showId) {
+        int shard = shardOf(showId);
+        if (shard == 0) {
+            return getCurrentLeaderData();
+        }
+        try {
+            String holder = shards[shard].getLock().getLockHolderView();
+            if (holder == null) {
+                throw new IllegalStateException("No leader for shard " + shard);
+            }
+            return holder.split(":");
+        } catch (KeeperException | InterruptedException e) {
+            throw new IllegalStateException("Could not find the leader of shard " + shard, e);
+        }
     }
 
     public static String buildServerData(String IP, int port) {
@@ -90,191 +268,1085 @@ public class ConcertServer {
         this.leaderData = leaderData;
     }
 
+    /**
+     * Waits for the leader lock, watching the node just ahead of this one,
+     * and takes over as soon as it is next in line. Which node leads is
+     * followed through the membership view, not by polling. A node that
+     * cannot reconcile its state does not lead; it hands the lock on. A
+     * primary that loses the lock with its session steps down and campaigns
+     * again.
+     */
     class LeaderCampaignThread implements Runnable {
-        private byte[] currentLeaderData = null;
-
         @Override
         public void run() {
             System.out.println("Starting the leader Campaign");
+            while (true) {
+                try {
+                    shards[0].startCampaign();
+                    refreshLeaderData();
+                    leaderLock.acquireLock();
+                    System.out.println("I got the leader lock. Now acting as primary");
+                    if (!beTheLeader()) {
+                        if (!shards[0].hasLostLock()) {
+                            // let the next node in line try, and queue up again behind it
+                            leaderLock.yieldLock();
+                        }
+                        Thread.sleep(CAMPAIGN_RETRY_MILLIS);
+                        continue;
+                    }
+                    // shard 0 is never handed over, so this returns once the lock is lost
+                    shards[0].awaitYieldRequest();
+                    stepDownAsPrimary();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    System.out.println("Leader campaign interrupted: " + e.getMessage() + ". Retrying");
+                    try {
+                        Thread.sleep(CAMPAIGN_RETRY_MILLIS);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Campaigns for one shard other than 0. Once elected the node reconciles
+     * the shard with the other nodes and leads it until a rebalance asks it to
+     * hand the shard to a node with fewer shards, after which it queues up
+     * again. It does the same when it could not reconcile, and stops leading
+     * when it loses the lock with its session.
+     */
+    class ShardCampaignThread implements Runnable {
+        private final ShardLeadership shard;
+
+        ShardCampaignThread(ShardLeadership shard) {
+            this.shard = shard;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    shard.startCampaign();
+                    shard.getLock().acquireLock();
+                    try {
+                        reconcileState(shard.getShard());
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        System.out.println("Could not reconcile shard " + shard.getShard() + ": " + e.getMessage()
+                                + ". Not leading it");
+                        if (!shard.hasLostLock()) {
+                            shard.getLock().yieldLock();
+                        }
+                        Thread.sleep(CAMPAIGN_RETRY_MILLIS);
+                        continue;
+                    }
+                    if (!shard.lead()) {
+                        System.out.println("Lost the lock of shard " + shard.getShard() + " while taking over");
+                        continue;
+                    }
+                    System.out.println("Now leading shard " + shard.getShard());
+                    scheduleHoldExpiry(shard.getShard());
+                    rebalanceShards();
+                    shard.awaitYieldRequest();
+                    shard.stepDown();
+                    if (shard.hasLostLock()) {
+                        System.out.println("Lost the lock of shard " + shard.getShard()
+                                + " with the ZooKeeper session. Campaigning again");
+                        continue;
+                    }
+                    System.out.println("Handing shard " + shard.getShard() + " over");
+                    shard.getLock().yieldLock();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    System.out.println("Campaign for shard " + shard.getShard() + " interrupted: " + e.getMessage() + ". Retrying");
+                    try {
+                        Thread.sleep(CAMPAIGN_RETRY_MILLIS);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands one shard over while this node leads at least two more shards
+     * than the member with the fewest. Shard 0 stays with the primary. A
+     * handed-over shard goes to the next node in its queue, which passes it on
+     * by the same rule, so it ends up with a node that has few. Every handover
+     * changes the election queues and runs this again on every node.
+     */
+    private void rebalanceShards() {
+        if (shards.length == 1) {
+            return;
+        }
+        shardRebalancer.execute(() -> {
             try {
-                boolean leader = leaderLock.tryAcquireLock();
-                while (!leader) {
-                    byte[] leaderData = leaderLock.getLockHolderData();
-                    if (currentLeaderData != leaderData) {
-                        currentLeaderData = leaderData;
-                        setCurrentLeaderData(currentLeaderData);
+                Map<String, Integer> shardsLed = new HashMap<>();
+                for (String member : leaderLock.getMembershipView()) {
+                    shardsLed.put(member, 0);
+                }
+                if (shardsLed.isEmpty()) {
+                    return;
+                }
+                int kept = 0;
+                for (ShardLeadership shard : shards) {
+                    if (shard.isLeading() && !shard.isKeeping()) {
+                        // one handover at a time, the next runs once the queues change
+                        return;
+                    }
+                    if (shard.isKeeping()) {
+                        kept++;
+                    }
+                    String holder = shard.getLock().getLockHolderView();
+                    if (holder != null && shardsLed.containsKey(holder)) {
+                        shardsLed.merge(holder, 1, Integer::sum);
+                    }
+                }
+                int fewest = Collections.min(shardsLed.values());
+                if (kept <= fewest + 1) {
+                    return;
+                }
+                for (int shard = shards.length - 1; shard > 0; shard--) {
+                    if (shards[shard].isKeeping() && !shards[shard].getLock().getMembershipView().isEmpty()) {
+                        System.out.println("Leading " + kept + " of " + shards.length + " shards while a node leads "
+                                + fewest + ". Handing shard " + shard + " to the next node in line");
+                        shards[shard].requestYield();
+                        return;
                     }
-                    Thread.sleep(10000);
-                    leader = leaderLock.tryAcquireLock();
                 }
-                System.out.println("I got the leader lock. Now acting as primary");
-                currentLeaderData = null;
-                beTheLeader();
             } catch (Exception e) {
-                e.printStackTrace();
+                System.out.println("Could not rebalance the shards: " + e.getMessage());
             }
+        });
+    }
+
+    private void refreshLeaderData() throws KeeperException, InterruptedException {
+        String holder = leaderLock.getLockHolderView();
+        if (holder != null) {
+            setCurrentLeaderData(holder.getBytes(StandardCharsets.UTF_8));
         }
     }
 
-    
-    public void addConcert(ConcertShow concert) {
-        concerts.put(concert.getId(), concert);
+    /**
+     * The write methods take the ZooKeeper zxid of the two-phase commit
+     * decision that applies them, or 0 in log replication mode.
+     */
+    public void addConcert(ConcertShow concert, long decisionZxid) {
+        JournalEntry.Builder entry = JournalEntry.newBuilder().setOperation("ADD_CONCERT").setShow(concert)
+                .setDecisionZxid(decisionZxid);
+        long ticket;
+        Lock lock = lockShow(concert.getId(), true);
+        try {
+            ConcertShow previous = store.getConcert(concert.getId());
+            store.addConcert(concert);
+            ticket = appendCommit(entry, () -> restoreConcert(concert.getId(), previous));
+        } finally {
+            lock.unlock();
+        }
+        awaitCommit(entry, ticket);
         System.out.println("Added concert: " + concert.getName() + " with ID: " + concert.getId());
     }
 
-    public void updateConcert(ConcertShow updatedConcert) {
-        concerts.put(updatedConcert.getId(), updatedConcert);
+    public void updateConcert(ConcertShow updatedConcert, long decisionZxid) {
+        JournalEntry.Builder entry = JournalEntry.newBuilder().setOperation("UPDATE_CONCERT").setShow(updatedConcert)
+                .setDecisionZxid(decisionZxid);
+        long ticket;
+        Lock lock = lockShow(updatedConcert.getId(), true);
+        try {
+            ConcertShow previous = store.getConcert(updatedConcert.getId());
+            store.updateConcert(updatedConcert);
+            ticket = appendCommit(entry, () -> restoreConcert(updatedConcert.getId(), previous));
+        } finally {
+            lock.unlock();
+        }
+        awaitCommit(entry, ticket);
         System.out.println("Updated concert: " + updatedConcert.getName() + " with ID: " + updatedConcert.getId());
     }
 
-    public boolean cancelConcert(String concertId) {
-        if (concerts.containsKey(concertId)) {
-            concerts.remove(concertId);
-            
-            reservations.remove(concertId);
-            System.out.println("Cancelled concert with ID: " + concertId);
-            return true;
+    public boolean cancelConcert(String concertId, long decisionZxid) {
+        JournalEntry.Builder entry = JournalEntry.newBuilder().setOperation("CANCEL_CONCERT").setShowId(concertId)
+                .setDecisionZxid(decisionZxid);
+        long ticket;
+        Lock lock = lockShow(concertId, true);
+        try {
+            ServerState previous = store.exportShow(concertId);
+            if (!store.cancelConcert(concertId)) {
+                return false;
+            }
+            ticket = appendCommit(entry, () -> store.importShard(previous, concertId::equals));
+        } finally {
+            lock.unlock();
         }
-        return false;
+        awaitCommit(entry, ticket);
+        System.out.println("Cancelled concert with ID: " + concertId);
+        return true;
     }
 
     public ConcertShow getConcert(String concertId) {
-        return concerts.get(concertId);
+        return store.getConcert(concertId);
+    }
+
+    /**
+     * Returns the version of the show, the same on every node that applied
+     * the same writes: the sequence of the last commit that changed it in log
+     * replication mode, or the zxid of the last two-phase commit decision that
+     * did. Read it before the show itself: the show is then at least as new as
+     * the version.
+     */
+    public long getConcertVersion(String concertId) {
+        Long version = showVersions.get(concertId);
+        return version != null ? version : baseShowVersion;
     }
 
     public List<ConcertShow> getAllConcerts() {
-        return new ArrayList<>(concerts.values());
+        return store.getAllConcerts();
+    }
+
+    public ListConcertsResponse getCatalog() {
+        return catalogCache.getCatalog();
+    }
+
+    public ListConcertsResponse listConcerts(ListConcertsRequest request) {
+        // read first, so the page is at least as new as the sequence it carries
+        long sequence = commitSequence;
+        return catalogIndex.list(request).toBuilder().setSequence(sequence).build();
+    }
+
+    /** Whether this node may answer a read that asks for these freshness bounds itself. */
+    public boolean canServeRead(long minSequence, long maxStalenessMs) {
+        return readConsistency.canServeLocally(minSequence, maxStalenessMs);
+    }
+
+    public void watchConcerts(ServerCallStreamObserver<AvailabilityUpdate> observer) {
+        availabilityPublisher.subscribe(observer);
+    }
+
+    public Reservation getReservation(String reservationId) {
+        return store.getReservation(reservationId);
+    }
+
+    public List<Reservation> getCustomerReservations(String customerId) {
+        return store.getCustomerReservations(customerId);
+    }
+
+    public Reservation getHold(String holdId) {
+        return store.getHold(holdId);
+    }
+
+    public List<Reservation> getCustomerHolds(String customerId) {
+        return store.getCustomerHolds(customerId);
+    }
+
+    public int getReservedTickets(String concertId) {
+        return store.getReservedTickets(concertId);
     }
 
-    
-    public synchronized String reserveTickets(String concertId, String seatType, int quantity, boolean includeAfterParty, String customerId) {
-        ConcertShow concert = concerts.get(concertId);
-        if (concert == null) {
-            return null; 
+    public int getReservedAfterPartyTickets(String concertId) {
+        return store.getReservedAfterPartyTickets(concertId);
+    }
+
+    public IdempotencyRecord findIdempotencyRecord(String customerId, String idempotencyKey) {
+        return store.findIdempotencyRecord(customerId, idempotencyKey);
+    }
+
+    /**
+     * Applies a batch of reservations in order and returns, per reservation,
+     * its ID or null if it could not be served. Reservations with a hold
+     * deadline become holds. Consecutive reservations with the same group ID
+     * are served all or none, and journaled as one entry. The journal is
+     * waited on once for the whole batch. If a reservation cannot be
+     * journaled the batch fails from there on.
+     */
+    public List<String> reserveTickets(List<ReserveTicketRequest> reservations, long decisionZxid) {
+        List<String> reservationIds = new ArrayList<>(reservations.size());
+        List<JournalEntry.Builder> committed = new ArrayList<>(reservations.size());
+        long lastTicket = -1;
+        try {
+            for (int i = 0; i < reservations.size(); ) {
+                String groupId = reservations.get(i).getGroupId();
+                int end = i + 1;
+                while (!groupId.isEmpty() && end < reservations.size() && reservations.get(end).getGroupId().equals(groupId)) {
+                    end++;
+                }
+                JournalEntry.Builder entry;
+                List<ReserveTicketRequest> requests = reservations.subList(i, end);
+                List<Lock> locks = lockShows(requests, false);
+                try {
+                    entry = groupId.isEmpty()
+                            ? reserveOne(requests.get(0), reservationIds)
+                            : reserveGroup(requests, reservationIds);
+                    if (entry != null) {
+                        JournalEntry.Builder reserved = entry;
+                        lastTicket = appendCommit(entry.setDecisionZxid(decisionZxid), () -> unreserve(reserved));
+                        onReserved(entry, requests);
+                    }
+                } finally {
+                    unlock(locks);
+                }
+                i = end;
+                if (entry != null) {
+                    catalogIndex.onCommit(entry);
+                    committed.add(entry);
+                }
+            }
+        } finally {
+            publishCommits(committed, lastTicket);
         }
+        System.out.println("Reserved " + reservationIds.stream().filter(Objects::nonNull).count() + " of "
+                + reservations.size() + " batched reservations");
+        return reservationIds;
+    }
 
-        
-        SeatTier targetTier = null;
-        int tierIndex = -1;
-        for (int i = 0; i < concert.getSeatTiersList().size(); i++) {
-            SeatTier tier = concert.getSeatTiersList().get(i);
-            if (tier.getType().equals(seatType)) {
-                targetTier = tier;
-                tierIndex = i;
-                break;
+    private JournalEntry.Builder reserveOne(ReserveTicketRequest reservation, List<String> reservationIds) {
+        long holdUntil = reservation.getHoldUntilMillis();
+        String reservationId = holdUntil > 0
+                ? store.holdTickets(reservation.getShowId(), reservation.getSeatType(), reservation.getQuantity(),
+                        reservation.getIncludeAfterParty(), reservation.getCustomerId(), reservation.getReservationId(), holdUntil)
+                : store.reserveTickets(reservation.getShowId(), reservation.getSeatType(), reservation.getQuantity(),
+                        reservation.getIncludeAfterParty(), reservation.getCustomerId(), reservation.getReservationId());
+        reservationIds.add(reservationId);
+        if (reservationId == null) {
+            return null;
+        }
+        JournalEntry.Builder entry = reservationEntry(reservation.getShowId(), reservation.getSeatType(),
+                reservation.getQuantity(), reservation.getIncludeAfterParty(), reservation.getCustomerId(), reservationId);
+        if (holdUntil > 0) {
+            entry.setOperation("HOLD_TICKET").getReservationBuilder().setHoldUntilMillis(holdUntil);
+        } else if (!reservation.getIdempotencyKey().isEmpty()) {
+            entry.getReservationBuilder().setIdempotencyKey(reservation.getIdempotencyKey());
+        }
+        return entry;
+    }
+
+    private JournalEntry.Builder reserveGroup(List<ReserveTicketRequest> group, List<String> reservationIds) {
+        List<String> groupIds = store.reserveGroup(group);
+        if (groupIds == null) {
+            reservationIds.addAll(Collections.nCopies(group.size(), null));
+            return null;
+        }
+        reservationIds.addAll(groupIds);
+        JournalEntry.Builder entry = JournalEntry.newBuilder().setOperation("RESERVE_GROUP");
+        for (int i = 0; i < group.size(); i++) {
+            ReserveTicketRequest item = group.get(i);
+            entry.addGroup(ReserveTicketRequest.newBuilder()
+                    .setShowId(item.getShowId())
+                    .setSeatType(item.getSeatType())
+                    .setQuantity(item.getQuantity())
+                    .setIncludeAfterParty(item.getIncludeAfterParty())
+                    .setCustomerId(item.getCustomerId())
+                    .setIdempotencyKey(item.getIdempotencyKey())
+                    .setReservationId(groupIds.get(i)));
+        }
+        return entry;
+    }
+
+    /**
+     * Arms the expiry of a journaled hold, or records the idempotency key of
+     * journaled reservations. Done only once the entry is in the journal, so a
+     * failed write leaves neither behind.
+     */
+    private void onReserved(JournalEntryOrBuilder entry, List<ReserveTicketRequest> requests) {
+        if (entry.getOperation().equals("HOLD_TICKET")) {
+            holdExpiry.schedule(entry.getReservationId(), entry.getReservation().getHoldUntilMillis());
+            return;
+        }
+        ReserveTicketRequest first = requests.get(0);
+        if (!first.getIdempotencyKey().isEmpty()) {
+            String reservationId = entry.getOperation().equals("RESERVE_GROUP")
+                    ? entry.getGroupList().stream().map(ReserveTicketRequest::getReservationId).collect(Collectors.joining(","))
+                    : entry.getReservationId();
+            store.recordIdempotencyKey(first.getCustomerId(), first.getIdempotencyKey(), reservationId, requests);
+        }
+    }
+
+    /** Takes back the reservations or hold of an entry that could not be journaled. */
+    private void unreserve(JournalEntryOrBuilder entry) {
+        if (entry.getOperation().equals("HOLD_TICKET")) {
+            store.releaseHold(entry.getReservationId());
+        } else if (entry.getOperation().equals("RESERVE_GROUP")) {
+            for (ReserveTicketRequest item : entry.getGroupList()) {
+                store.unreserve(item.getReservationId());
             }
+        } else {
+            store.unreserve(entry.getReservationId());
         }
+    }
 
-        if (targetTier == null || targetTier.getAvailable() < quantity) {
-            return null; 
+    /** Puts a show back as it was before a change that could not be journaled. */
+    private void restoreConcert(String concertId, ConcertShow previous) {
+        if (previous != null) {
+            store.updateConcert(previous);
+        } else {
+            store.cancelConcert(concertId);
         }
+    }
 
-        
-        if (includeAfterParty && (concert.getAfterPartyTickets() < quantity || !concert.getHasAfterParty())) {
-            return null; 
+    /**
+     * Confirms ({@code CONFIRM_HOLD}) or releases ({@code RELEASE_HOLD}) a
+     * batch of holds and returns, per hold, whether it was still there to
+     * settle. The journal is waited on once for the whole batch.
+     */
+    public List<Boolean> settleHolds(String operation, List<String> holdIds, long decisionZxid) {
+        boolean confirm = operation.equals("CONFIRM_HOLD");
+        List<Boolean> settled = new ArrayList<>(holdIds.size());
+        List<JournalEntry.Builder> committed = new ArrayList<>(holdIds.size());
+        long lastTicket = -1;
+        try {
+            for (String holdId : holdIds) {
+                JournalEntry.Builder entry = null;
+                Reservation hold = store.getHold(holdId);
+                // a release is taken back by taking the seats again, which must not race other bookings
+                Lock lock = hold != null ? lockShow(hold.getShowId(), !confirm) : null;
+                try {
+                    boolean done = hold != null && (confirm ? store.confirmHold(holdId) : store.releaseHold(holdId));
+                    settled.add(done);
+                    if (done) {
+                        entry = reservationEntry(hold.getShowId(), hold.getSeatType(), hold.getQuantity(),
+                                hold.getIncludeAfterParty(), hold.getCustomerId(), holdId).setOperation(operation)
+                                .setDecisionZxid(decisionZxid);
+                        lastTicket = appendCommit(entry, confirm
+                                ? () -> store.unconfirmHold(hold)
+                                : () -> store.restoreHold(hold.getShowId(), hold.getSeatType(), hold.getQuantity(),
+                                        hold.getIncludeAfterParty(), hold.getCustomerId(), holdId, hold.getHoldUntilMillis()));
+                    }
+                } finally {
+                    if (lock != null) {
+                        lock.unlock();
+                    }
+                }
+                if (entry != null) {
+                    catalogIndex.onCommit(entry);
+                    committed.add(entry);
+                }
+            }
+        } finally {
+            publishCommits(committed, lastTicket);
         }
+        System.out.println((confirm ? "Confirmed " : "Released ") + committed.size() + " of " + holdIds.size() + " holds");
+        return settled;
+    }
 
-        
-        List<SeatTier> updatedTiers = new ArrayList<>(concert.getSeatTiersList());
-        SeatTier updatedTier = SeatTier.newBuilder()
-                .setType(targetTier.getType())
-                .setPrice(targetTier.getPrice())
-                .setAvailable(targetTier.getAvailable() - quantity)
-                .build();
-        updatedTiers.set(tierIndex, updatedTier);
+    /**
+     * Arms the expiry of the holds in the shards this node leads. Followers
+     * leave it to the leader, which arms every hold of a shard when it takes
+     * the shard over.
+     */
+    private void scheduleHoldExpiry() {
+        store.forEachHold(hold -> scheduleHoldExpiry(hold.getReservationId(), hold.getShowId(), hold.getHoldUntilMillis()));
+    }
+
+    private void scheduleHoldExpiry(int shard) {
+        store.forEachHold(hold -> {
+            if (shardOf(hold.getShowId()) == shard) {
+                holdExpiry.schedule(hold.getReservationId(), hold.getHoldUntilMillis());
+            }
+        });
+    }
+
+    private void scheduleHoldExpiry(String holdId, String showId, long holdUntilMillis) {
+        if (shards[shardOf(showId)].isLeading()) {
+            holdExpiry.schedule(holdId, holdUntilMillis);
+        }
+    }
+
+    private static JournalEntry.Builder reservationEntry(String concertId, String seatType, int quantity,
+                                                         boolean includeAfterParty, String customerId, String reservationId) {
+        return JournalEntry.newBuilder()
+                .setOperation("RESERVE_TICKET")
+                .setReservation(ReserveTicketRequest.newBuilder()
+                        .setShowId(concertId)
+                        .setSeatType(seatType)
+                        .setQuantity(quantity)
+                        .setIncludeAfterParty(includeAfterParty)
+                        .setCustomerId(customerId))
+                .setReservationId(reservationId);
+    }
+
+    public boolean updateTicketStock(String concertId, String seatType, int additionalTickets, int additionalAfterPartyTickets,
+                                     long decisionZxid) {
+        JournalEntry.Builder entry = JournalEntry.newBuilder()
+                .setOperation("UPDATE_TICKET_STOCK")
+                .setDecisionZxid(decisionZxid)
+                .setStockUpdate(UpdateTicketStockRequest.newBuilder()
+                        .setShowId(concertId)
+                        .setSeatType(seatType != null ? seatType : "")
+                        .setAdditionalTickets(additionalTickets)
+                        .setAdditionalAfterPartyTickets(additionalAfterPartyTickets));
+        long ticket;
+        Lock lock = lockShow(concertId, true);
+        try {
+            ConcertShow previous = store.getConcert(concertId);
+            if (!store.updateTicketStock(concertId, seatType, additionalTickets, additionalAfterPartyTickets)) {
+                return false;
+            }
+            ticket = appendCommit(entry, () -> restoreConcert(concertId, previous));
+        } finally {
+            lock.unlock();
+        }
+        awaitCommit(entry, ticket);
+
+        System.out.println("Updated ticket stock for concert " + concertId +
+                (seatType != null ? ": Added " + additionalTickets + " " + seatType + " tickets" : "") +
+                (additionalAfterPartyTickets != 0 ? ", Added " + additionalAfterPartyTickets + " after-party tickets" : ""));
+
+        return true;
+    }
+
+    /**
+     * Sequences and journals a change that was just applied to the store, and
+     * returns the journal ticket. Must be called under the lock of the shows
+     * the change touched, in the same block as the change, so the commits of a
+     * show are sequenced, journaled and replicated in the order they were
+     * applied. Commits of different shows are only ordered by the sequencer,
+     * which is held just long enough to number the entry and copy it into the
+     * journal; waiting for it to be durable happens outside any lock. If the
+     * entry could not be journaled, {@code rollback} takes the change back out
+     * of the store, still under the show locks, and the write fails; the entry
+     * is then neither replicated nor published.
+     */
+    private long appendCommit(JournalEntry.Builder entry, Runnable rollback) {
+        long ticket;
+        synchronized (sequencer) {
+            if (logReplicator != null) {
+                entry.setTerm(leaderTerm);
+            }
+            JournalEntry committed = entry.setSequence(commitSequence + 1).build();
+            try {
+                ticket = journal.append(committed);
+            } catch (IOException e) {
+                System.out.println("Failed to journal " + entry.getOperation() + ": " + e.getMessage());
+                rollback.run();
+                throw new IllegalStateException("Could not journal " + entry.getOperation(), e);
+            }
+            commitSequence = committed.getSequence();
+            trackTerm(committed);
+            if (logReplicator != null && isLeader()) {
+                logReplicator.send(committed);
+            }
+        }
+        trackShowVersion(entry);
+        trackDecision(entry);
+        return ticket;
+    }
+
+    private Lock lockShow(String showId, boolean exclusive) {
+        ReentrantReadWriteLock stripe = showLocks[Math.floorMod(showId.hashCode(), SHOW_LOCK_STRIPES)];
+        Lock lock = exclusive ? stripe.writeLock() : stripe.readLock();
+        lock.lock();
+        return lock;
+    }
 
-        
-        ConcertShow.Builder updatedConcert = ConcertShow.newBuilder(concert)
-                .clearSeatTiers()
-                .addAllSeatTiers(updatedTiers);
+    /** Locks the shows of several reservations, in stripe order so that concurrent callers cannot deadlock. */
+    private List<Lock> lockShows(List<ReserveTicketRequest> reservations, boolean exclusive) {
+        SortedSet<Integer> stripes = new TreeSet<>();
+        for (ReserveTicketRequest reservation : reservations) {
+            stripes.add(Math.floorMod(reservation.getShowId().hashCode(), SHOW_LOCK_STRIPES));
+        }
+        return lockStripes(stripes, exclusive);
+    }
+
+    /**
+     * Locks what a journal entry changes the way the leader did when it made
+     * the change: every show for an entry that replaces a whole state or shard.
+     */
+    private List<Lock> lockShowsOf(JournalEntryOrBuilder entry) {
+        List<String> showIds = showIdsOf(entry);
+        if (showIds == null) {
+            return lockAllShows();
+        }
+        SortedSet<Integer> stripes = new TreeSet<>();
+        for (String showId : showIds) {
+            stripes.add(Math.floorMod(showId.hashCode(), SHOW_LOCK_STRIPES));
+        }
+        return lockStripes(stripes, !commutes(entry));
+    }
 
-        if (includeAfterParty) {
-            updatedConcert.setAfterPartyTickets(concert.getAfterPartyTickets() - quantity);
+    /** Keeps every show from changing, e.g. while the whole state is copied or replaced. */
+    private List<Lock> lockAllShows() {
+        SortedSet<Integer> stripes = new TreeSet<>();
+        for (int stripe = 0; stripe < SHOW_LOCK_STRIPES; stripe++) {
+            stripes.add(stripe);
         }
+        return lockStripes(stripes, true);
+    }
 
-        
-        concerts.put(concertId, updatedConcert.build());
+    private List<Lock> lockStripes(SortedSet<Integer> stripes, boolean exclusive) {
+        List<Lock> locked = new ArrayList<>(stripes.size());
+        for (int stripe : stripes) {
+            Lock lock = exclusive ? showLocks[stripe].writeLock() : showLocks[stripe].readLock();
+            lock.lock();
+            locked.add(lock);
+        }
+        return locked;
+    }
 
-        
-        String reservationId = UUID.randomUUID().toString();
-        reservations.computeIfAbsent(concertId, k -> new ArrayList<>()).add(reservationId);
+    private static void unlock(List<Lock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
+        }
+    }
 
-        System.out.println("Reserved " + quantity + " " + seatType + " tickets" +
-                (includeAfterParty ? " with after-party" : "") +
-                " for concert " + concertId +
-                ", reservation ID: " + reservationId);
+    /**
+     * Whether an entry only moves seats between a show and its reservations
+     * and holds, so it gives the same result in any order with others of its
+     * kind and may run next to them under a shared lock.
+     */
+    private static boolean commutes(JournalEntryOrBuilder entry) {
+        switch (entry.getOperation()) {
+            case "RESERVE_TICKET":
+            case "HOLD_TICKET":
+            case "CONFIRM_HOLD":
+            case "RELEASE_HOLD":
+            case "RESERVE_GROUP":
+                return true;
+            default:
+                return false;
+        }
+    }
 
-        return reservationId;
+    /** Waits until a commit is durable and replicated, then publishes it. */
+    private void awaitCommit(JournalEntry.Builder entry, long ticket) {
+        catalogIndex.onCommit(entry);
+        publishCommits(Collections.singletonList(entry), ticket);
     }
 
-    public synchronized boolean updateTicketStock(String concertId, String seatType, int additionalTickets, int additionalAfterPartyTickets) {
-        ConcertShow concert = concerts.get(concertId);
-        if (concert == null) {
-            return false; 
+    /** Like {@link #awaitCommit}, waiting once for the last of several commits. */
+    private void publishCommits(List<JournalEntry.Builder> committed, long lastTicket) {
+        if (committed.isEmpty()) {
+            return;
+        }
+        journal.awaitDurable(lastTicket);
+        awaitReplicated(committed.get(committed.size() - 1).getSequence());
+        for (JournalEntry.Builder entry : committed) {
+            availabilityPublisher.onCommit(entry);
+        }
+    }
+
+    public boolean usesLogReplication() {
+        return replicationMode == ReplicationMode.LOG;
+    }
+
+    /** In log replication mode, waits on the leader until the followers acknowledged {@code sequence}. */
+    private void awaitReplicated(long sequence) {
+        if (logReplicator != null && isLeader()) {
+            logReplicator.awaitAcked(sequence);
+        }
+    }
+
+    /**
+     * Applies entries streamed by the leader in log replication mode, in
+     * order, and returns the sequence this node is at afterwards. Entries it
+     * already has are skipped; it stops at a gap, which the caller answers by
+     * asking for a snapshot.
+     */
+    public long applyLogEntries(List<JournalEntry> entries) {
+        List<JournalEntry> applied = new ArrayList<>(entries.size());
+        long lastTicket = -1;
+        for (JournalEntry entry : entries) {
+            List<Lock> locks = lockShowsOf(entry);
+            try {
+                synchronized (sequencer) {
+                    if (entry.getSequence() <= commitSequence) {
+                        continue;
+                    }
+                    if (entry.getSequence() != commitSequence + 1 || entry.getTerm() < acceptedTerm) {
+                        break;
+                    }
+                    try {
+                        lastTicket = journal.append(entry);
+                    } catch (IOException e) {
+                        System.out.println("Failed to journal replicated " + entry.getOperation() + ": " + e.getMessage());
+                        e.printStackTrace();
+                        break;
+                    }
+                    applyJournalEntry(entry);
+                }
+            } finally {
+                unlock(locks);
+            }
+            applied.add(entry);
+        }
+        if (lastTicket >= 0) {
+            journal.awaitDurable(lastTicket);
+        }
+        for (JournalEntry entry : applied) {
+            availabilityPublisher.onCommit(entry);
+        }
+        return commitSequence;
+    }
+
+    private void applyJournalEntry(JournalEntry entry) {
+        switch (entry.getOperation()) {
+            case "ADD_CONCERT":
+                store.addConcert(entry.getShow());
+                break;
+            case "UPDATE_CONCERT":
+                store.updateConcert(entry.getShow());
+                break;
+            case "CANCEL_CONCERT":
+                store.cancelConcert(entry.getShowId());
+                break;
+            case "RESERVE_TICKET":
+                ReserveTicketRequest reservation = entry.getReservation();
+                store.restoreReservation(reservation.getShowId(), reservation.getSeatType(), reservation.getQuantity(),
+                        reservation.getIncludeAfterParty(), reservation.getCustomerId(), entry.getReservationId());
+                if (!reservation.getIdempotencyKey().isEmpty()) {
+                    store.recordIdempotencyKey(reservation.getCustomerId(), reservation.getIdempotencyKey(), entry.getReservationId(),
+                            Collections.singletonList(reservation));
+                }
+                break;
+            case "HOLD_TICKET":
+                ReserveTicketRequest hold = entry.getReservation();
+                store.restoreHold(hold.getShowId(), hold.getSeatType(), hold.getQuantity(), hold.getIncludeAfterParty(),
+                        hold.getCustomerId(), entry.getReservationId(), hold.getHoldUntilMillis());
+                scheduleHoldExpiry(entry.getReservationId(), hold.getShowId(), hold.getHoldUntilMillis());
+                break;
+            case "CONFIRM_HOLD":
+                store.confirmHold(entry.getReservationId());
+                break;
+            case "RELEASE_HOLD":
+                store.releaseHold(entry.getReservationId());
+                break;
+            case "RESERVE_GROUP":
+                List<String> groupIds = new ArrayList<>(entry.getGroupCount());
+                for (ReserveTicketRequest item : entry.getGroupList()) {
+                    store.restoreReservation(item.getShowId(), item.getSeatType(), item.getQuantity(),
+                            item.getIncludeAfterParty(), item.getCustomerId(), item.getReservationId());
+                    groupIds.add(item.getReservationId());
+                }
+                ReserveTicketRequest first = entry.getGroup(0);
+                if (!first.getIdempotencyKey().isEmpty()) {
+                    store.recordIdempotencyKey(first.getCustomerId(), first.getIdempotencyKey(), String.join(",", groupIds),
+                            entry.getGroupList());
+                }
+                break;
+            case "LOAD_STATE":
+                store.importFrom(entry.getState());
+                scheduleHoldExpiry();
+                break;
+            case "LOAD_SHARD_STATE":
+                store.importShard(entry.getState(), showId -> shardOf(showId) == entry.getShard());
+                scheduleHoldExpiry(entry.getState(), entry.getShard());
+                break;
+            case "UPDATE_TICKET_STOCK":
+                UpdateTicketStockRequest stockUpdate = entry.getStockUpdate();
+                store.updateTicketStock(stockUpdate.getShowId(), stockUpdate.getSeatType(),
+                        stockUpdate.getAdditionalTickets(), stockUpdate.getAdditionalAfterPartyTickets());
+                break;
+            default:
+                System.out.println("Skipping unknown journal operation " + entry.getOperation());
+                return;
         }
+        catalogIndex.onCommit(entry);
+        commitSequence = entry.getSequence();
+        trackTerm(entry);
+        trackShowVersion(entry);
+        trackDecision(entry);
+    }
 
-        ConcertShow.Builder updatedConcert = ConcertShow.newBuilder(concert);
+    /** Must be called under the sequencer, or while replaying the journal. */
+    private void trackTerm(JournalEntryOrBuilder entry) {
+        logTerm = entry.getTerm();
+        acceptedTerm = Math.max(acceptedTerm, logTerm);
+    }
 
-        
-        if (seatType != null && !seatType.isEmpty()) {
-            List<SeatTier> updatedTiers = new ArrayList<>(concert.getSeatTiersList());
-            boolean found = false;
+    private void trackShowVersion(JournalEntryOrBuilder entry) {
+        List<String> showIds = showIdsOf(entry);
+        if (showIds == null) {
+            importShowVersions(entry);
+        } else if (entry.getOperation().equals("CANCEL_CONCERT")) {
+            showVersions.remove(showIds.get(0));
+        } else {
+            long version = usesLogReplication() ? entry.getSequence() : entry.getDecisionZxid();
+            for (String showId : showIds) {
+                showVersions.merge(showId, version, Math::max);
+            }
+        }
+    }
 
-            for (int i = 0; i < updatedTiers.size(); i++) {
-                SeatTier tier = updatedTiers.get(i);
-                if (tier.getType().equals(seatType)) {
-                    SeatTier updatedTier = SeatTier.newBuilder(tier)
-                            .setAvailable(tier.getAvailable() + additionalTickets)
-                            .build();
-                    updatedTiers.set(i, updatedTier);
-                    found = true;
-                    break;
+    /** Takes the versions of the shows a loaded state replaced from that state. */
+    private void importShowVersions(JournalEntryOrBuilder entry) {
+        ServerState state = entry.getState();
+        if (entry.getOperation().equals("LOAD_SHARD_STATE")) {
+            showVersions.keySet().removeIf(showId -> shardOf(showId) == entry.getShard());
+            for (ConcertShow show : state.getShowsList()) {
+                if (shardOf(show.getId()) == entry.getShard()) {
+                    showVersions.put(show.getId(), state.getShowVersionsOrDefault(show.getId(), state.getBaseShowVersion()));
                 }
             }
+        } else {
+            showVersions.clear();
+            showVersions.putAll(state.getShowVersionsMap());
+            baseShowVersion = state.getBaseShowVersion();
+        }
+    }
 
-            
-            if (!found && additionalTickets > 0) {
-                SeatTier newTier = SeatTier.newBuilder()
-                        .setType(seatType)
-                        .setPrice(0.0) 
-                        .setAvailable(additionalTickets)
-                        .build();
-                updatedTiers.add(newTier);
+    /** Moves the decision positions of the shards an entry changed forward. */
+    private void trackDecision(JournalEntryOrBuilder entry) {
+        List<String> showIds = showIdsOf(entry);
+        if (showIds == null) {
+            ServerState state = entry.getState();
+            boolean oneShard = entry.getOperation().equals("LOAD_SHARD_STATE");
+            for (int shard = 0; shard < decisionZxids.length(); shard++) {
+                if (oneShard && shard != entry.getShard()) {
+                    continue;
+                }
+                decisionZxids.set(shard, shard < state.getDecisionZxidsCount() ? state.getDecisionZxids(shard) : 0);
             }
+            return;
+        }
+        for (String showId : showIds) {
+            decisionZxids.accumulateAndGet(shardOf(showId), entry.getDecisionZxid(), Math::max);
+        }
+    }
 
-            updatedConcert.clearSeatTiers().addAllSeatTiers(updatedTiers);
+    /** Returns the shows a journal entry changes, or null if it replaces the whole state or a shard's. */
+    static List<String> showIdsOf(JournalEntryOrBuilder entry) {
+        switch (entry.getOperation()) {
+            case "ADD_CONCERT":
+            case "UPDATE_CONCERT":
+                return Collections.singletonList(entry.getShow().getId());
+            case "CANCEL_CONCERT":
+                return Collections.singletonList(entry.getShowId());
+            case "RESERVE_TICKET":
+            case "HOLD_TICKET":
+            case "CONFIRM_HOLD":
+            case "RELEASE_HOLD":
+                return Collections.singletonList(entry.getReservation().getShowId());
+            case "RESERVE_GROUP":
+                List<String> showIds = new ArrayList<>(entry.getGroupCount());
+                for (ReserveTicketRequest item : entry.getGroupList()) {
+                    if (!showIds.contains(item.getShowId())) {
+                        showIds.add(item.getShowId());
+                    }
+                }
+                return showIds;
+            case "UPDATE_TICKET_STOCK":
+                return Collections.singletonList(entry.getStockUpdate().getShowId());
+            default:
+                return null;
         }
+    }
 
-        
-        if (additionalAfterPartyTickets != 0) {
-            updatedConcert.setAfterPartyTickets(concert.getAfterPartyTickets() + additionalAfterPartyTickets);
+    public long getCommitSequence() {
+        return commitSequence;
+    }
 
-            
-            if (additionalAfterPartyTickets > 0 && !concert.getHasAfterParty()) {
-                updatedConcert.setHasAfterParty(true);
+    /** Returns the leader term of the last entry in this node's log, in log replication mode. */
+    public long getLogTerm() {
+        synchronized (sequencer) {
+            return logTerm;
+        }
+    }
+
+    /** Returns the term this node stamps on its entries while it leads, in log replication mode. */
+    public long getLeaderTerm() {
+        return leaderTerm;
+    }
+
+    /**
+     * Accepts a leader's stream from here on, unless a newer leader's was
+     * already accepted. Entries of older terms are refused once it is.
+     */
+    public boolean acceptLogTerm(long term) {
+        synchronized (sequencer) {
+            if (term < acceptedTerm) {
+                return false;
             }
+            acceptedTerm = term;
+            return true;
         }
+    }
 
-        
-        concerts.put(concertId, updatedConcert.build());
+    public boolean isAcceptedLogTerm(long term) {
+        synchronized (sequencer) {
+            return term >= acceptedTerm;
+        }
+    }
 
-        System.out.println("Updated ticket stock for concert " + concertId +
-                (seatType != null ? ": Added " + additionalTickets + " " + seatType + " tickets" : "") +
-                (additionalAfterPartyTickets != 0 ? ", Added " + additionalAfterPartyTickets + " after-party tickets" : ""));
+    /**
+     * Returns how far this node is in the shard's history, comparable across
+     * nodes: the leader-assigned sequence in log replication mode, and the
+     * zxid of the newest two-phase commit decision applied to the shard
+     * otherwise, as the commit sequence only counts this node's own commits.
+     */
+    public long getReplicationPosition(int shard) {
+        if (usesLogReplication()) {
+            return commitSequence;
+        }
+        return decisionZxids.get(shard);
+    }
 
-        return true;
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Returns the full state and the sequence it is at. Every change to the
+     * store is applied and sequenced under the lock of its show, and all of
+     * them are held while copying, so the state holds exactly the commits up
+     * to that sequence.
+     */
+    public ServerState exportState() {
+        ServerState[] exported = new ServerState[1];
+        exportState(state -> exported[0] = state);
+        return exported[0];
+    }
+
+    /**
+     * Like {@link #exportState()}, handing the state to {@code consumer} before
+     * any later commit is applied or sequenced.
+     */
+    void exportState(Consumer<ServerState> consumer) {
+        ServerState.Builder state = ServerState.newBuilder();
+        List<Lock> locks = lockAllShows();
+        try {
+            state.setSequence(commitSequence).setTerm(logTerm);
+            for (int shard = 0; shard < decisionZxids.length(); shard++) {
+                state.addDecisionZxids(decisionZxids.get(shard));
+            }
+            state.putAllShowVersions(showVersions).setBaseShowVersion(baseShowVersion);
+            store.exportTo(state);
+            consumer.accept(state.build());
+        } finally {
+            unlock(locks);
+        }
+    }
+
+    /**
+     * Replaces the whole state with one taken from another node, and journals
+     * that. In log replication mode the sequence is the leader's, so this node
+     * takes the state's sequence, which resets a diverged log onto the
+     * leader's. In two-phase commit mode the sequence only counts this node's
+     * own commits, so the load is numbered as the next one and the sequence
+     * keeps growing.
+     */
+    public synchronized void loadServerState(ServerState state) {
+        System.out.println("Loading server state at sequence " + state.getSequence());
+        long ticket;
+        List<Lock> locks = lockAllShows();
+        try {
+            synchronized (sequencer) {
+                JournalEntry.Builder entry = JournalEntry.newBuilder()
+                        .setSequence(usesLogReplication() ? state.getSequence() : commitSequence + 1)
+                        .setOperation("LOAD_STATE")
+                        .setState(state)
+                        .setTerm(state.getTerm());
+                ticket = journalState(entry);
+                store.importFrom(state);
+                commitSequence = entry.getSequence();
+                trackTerm(entry);
+                trackShowVersion(entry);
+                trackDecision(entry);
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to journal loaded state: " + e.getMessage());
+            throw new IllegalStateException("Could not journal the loaded state", e);
+        } finally {
+            unlock(locks);
+        }
+        scheduleHoldExpiry();
+        catalogIndex.rebuild();
+        journal.awaitDurable(ticket);
+        availabilityPublisher.resyncAll();
     }
 
-    public synchronized byte[] getServerState() {
-        
-        
-        return "State serialization placeholder".getBytes();
+    /**
+     * Replaces the shows of one shard, their reservations and holds, with the
+     * ones in a state taken from another node, and journals that like a write.
+     */
+    private void loadShardState(int shard, ServerState state) {
+        System.out.println("Loading the state of shard " + shard);
+        long ticket;
+        List<Lock> locks = lockAllShows();
+        try {
+            synchronized (sequencer) {
+                JournalEntry.Builder entry = JournalEntry.newBuilder()
+                        .setSequence(commitSequence + 1)
+                        .setOperation("LOAD_SHARD_STATE")
+                        .setShard(shard)
+                        .setState(state);
+                ticket = journalState(entry);
+                store.importShard(state, showId -> shardOf(showId) == shard);
+                commitSequence = entry.getSequence();
+                trackShowVersion(entry);
+                trackDecision(entry);
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to journal the state of shard " + shard + ": " + e.getMessage());
+            throw new IllegalStateException("Could not journal the loaded state of shard " + shard, e);
+        } finally {
+            unlock(locks);
+        }
+        scheduleHoldExpiry(state, shard);
+        catalogIndex.rebuild();
+        journal.awaitDurable(ticket);
+        availabilityPublisher.resyncAll();
     }
 
-    public synchronized void loadServerState(byte[] state) {
-        
-        
-        System.out.println("Loading server state");
+    /**
+     * Journals a loaded state before it is imported, in pieces that each fit
+     * in a journal segment, and returns the ticket of the last one. Every piece
+     * but the last is marked as continued; a load whose last piece is missing
+     * is skipped on replay. Must be called under the sequencer.
+     */
+    private long journalState(JournalEntry.Builder entry) throws IOException {
+        List<ServerState> chunks = StateChunks.split(entry.getState(),
+                Math.min(StateChunks.DEFAULT_CHUNK_BYTES, journal.getSegmentBytes() / 4));
+        long ticket = -1;
+        for (int i = 0; i < chunks.size(); i++) {
+            ticket = journal.append(entry.clone()
+                    .setState(chunks.get(i))
+                    .setContinued(i < chunks.size() - 1)
+                    .build());
+        }
+        return ticket;
+    }
+
+    /** Applies a journal record on startup, putting the pieces of a loaded state back together first. */
+    private void replayJournalEntry(JournalEntry entry) {
+        boolean load = entry.getOperation().equals("LOAD_STATE") || entry.getOperation().equals("LOAD_SHARD_STATE");
+        if (replayedLoad != null && (!load || replayedLoad.getSequence() != entry.getSequence())) {
+            System.out.println("Skipping the incomplete " + replayedLoad.getOperation() + " at sequence "
+                    + replayedLoad.getSequence());
+            replayedLoad = null;
+        }
+        if (load && (entry.getContinued() || replayedLoad != null)) {
+            if (replayedLoad == null) {
+                replayedLoad = entry.toBuilder();
+            } else {
+                replayedLoad.getStateBuilder().mergeFrom(entry.getState());
+            }
+            if (entry.getContinued()) {
+                return;
+            }
+            entry = replayedLoad.setContinued(false).build();
+            replayedLoad = null;
+        }
+        applyJournalEntry(entry);
+    }
+
+    private void scheduleHoldExpiry(ServerState state, int shard) {
+        if (!shards[shard].isLeading()) {
+            return;
+        }
+        for (Reservation hold : state.getHoldsList()) {
+            if (shardOf(hold.getShowId()) == shard) {
+                holdExpiry.schedule(hold.getReservationId(), hold.getHoldUntilMillis());
+            }
+        }
+    }
+
+    public long getLastReconciliationMillis() {
+        return lastReconciliationMillis;
     }
 
     public synchronized String[] getCurrentLeaderData() {
@@ -283,25 +1355,184 @@ public class ConcertServer {
 
     public List<String[]> getOthersData() throws KeeperException, InterruptedException {
         List<String[]> result = new ArrayList<>();
-        List<byte[]> othersData = leaderLock.getOthersData();
-        for (byte[] data : othersData) {
-            String[] dataStrings = new String(data).split(":");
-            result.add(dataStrings);
+        for (String member : leaderLock.getMembershipView()) {
+            result.add(member.split(":"));
         }
         return result;
     }
 
-    private void beTheLeader() {
-        System.out.println("I got the leader lock. Now acting as primary");
-        isLeader.set(true);
-        transaction = new DistributedTxCoordinator(concertOrganizerService);
+    private void onMembershipChanged() {
+        try {
+            List<String> members = leaderLock.getMembershipView();
+            System.out.println("Cluster membership changed: " + members + ", leader " + leaderLock.getLockHolderView());
+            refreshLeaderData();
+            rebalanceShards();
+            peerChannels.retainOnly(members);
+            if (logReplicator != null && isLeader()) {
+                refreshLogStreams();
+            }
+        } catch (Exception e) {
+            System.out.println("Could not read the cluster membership: " + e.getMessage());
+        }
+    }
 
-        
+    public ManagedChannel getPeerChannel(String host, int port) {
+        return peerChannels.channelFor(host, port);
+    }
+
+    public <T> List<T> sendToFollowers(String operation, ReplicationFanOut.PeerCall<T> call)
+            throws KeeperException, InterruptedException {
+        return fanOut.send(operation, getOthersData(), call);
+    }
+
+    /**
+     * Sends to every follower like {@link #sendToFollowers(String, ReplicationFanOut.PeerCall)}
+     * and fails if one of them did not accept the request, e.g. could not join
+     * the transaction.
+     */
+    public <T> List<T> sendToFollowers(String operation, ReplicationFanOut.PeerCall<T> call, Predicate<T> accepted)
+            throws KeeperException, InterruptedException {
+        List<T> responses = sendToFollowers(operation, call);
+        for (T response : responses) {
+            if (!accepted.test(response)) {
+                throw new IllegalStateException("A follower did not accept " + operation);
+            }
+        }
+        return responses;
+    }
+
+    /** Reconciles with the other nodes and starts taking writes; returns false, leading nothing, if that failed. */
+    private boolean beTheLeader() throws InterruptedException {
         try {
             System.out.println("Synchronizing with other nodes as new leader");
-            
+            reconcileState(0);
         } catch (Exception e) {
-            e.printStackTrace();
+            System.out.println("Could not reconcile the state as new leader: " + e.getMessage() + ". Not leading");
+            return false;
+        }
+        if (logReplicator != null) {
+            DistributedLock lock = shards[0].getLock();
+            leaderTerm = lock != null ? lock.getLockSequence() : 0;
+            if (!acceptLogTerm(leaderTerm)) {
+                System.out.println("A leader of a newer term than " + leaderTerm + " was seen. Not leading");
+                return false;
+            }
+            System.out.println("Leading the log in term " + leaderTerm);
+            startLogReplication();
         }
+        isLeader.set(true);
+        if (!shards[0].lead()) {
+            System.out.println("Lost the leader lock while taking over. Not leading");
+            isLeader.set(false);
+            stopLogReplication();
+            return false;
+        }
+        scheduleHoldExpiry(0);
+        return true;
+    }
+
+    /** Stops taking writes at once when the session holding the leader lock expired. */
+    private void onLeaderLockLost() {
+        System.out.println("Lost the leader lock with the ZooKeeper session. Stepping down as primary");
+        isLeader.set(false);
+        shards[0].loseLock();
+    }
+
+    /** Waits for the writes started as primary and stops streaming the log, before campaigning again. */
+    private void stepDownAsPrimary() throws InterruptedException {
+        isLeader.set(false);
+        shards[0].stepDown();
+        stopLogReplication();
+        System.out.println("No longer acting as primary");
+    }
+
+    /**
+     * Opens the log streams to the current followers before this node takes
+     * writes. Membership changes reopen them right away; the periodic refresh
+     * reads only the cached membership view and brings back followers that
+     * were dropped for lagging.
+     */
+    private void startLogReplication() {
+        refreshLogStreams();
+        logMembership = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "log-membership");
+            thread.setDaemon(true);
+            return thread;
+        });
+        logMembership.scheduleWithFixedDelay(this::refreshLogStreams, MEMBERSHIP_REFRESH_MILLIS, MEMBERSHIP_REFRESH_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void stopLogReplication() throws InterruptedException {
+        if (logMembership != null) {
+            logMembership.shutdownNow();
+            // a refresh still running would open the streams again
+            logMembership.awaitTermination(RECONCILIATION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            logMembership = null;
+            logReplicator.syncMembers(Collections.<String[]>emptyList());
+        }
+    }
+
+    private void refreshLogStreams() {
+        try {
+            logReplicator.syncMembers(getOthersData());
+        } catch (Exception e) {
+            System.out.println("Could not refresh the log streams: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Asks every other node for its position in the shard (see
+     * {@link #getReplicationPosition(int)}) and, if one of them is ahead of
+     * this node, loads the shard's state from the most up-to-date one, or the
+     * full state when there is only one shard. Throws if a node could not be
+     * asked or the state could not be loaded, as the writes this node missed
+     * could then be lost. Writes to the shard are not accepted until this
+     * returns.
+     */
+    private void reconcileState(int shard) throws KeeperException, InterruptedException {
+        long start = System.currentTimeMillis();
+        long localPosition = getReplicationPosition(shard);
+        long bestPosition = localPosition;
+        String[] bestPeer = null;
+
+        for (String[] data : getOthersData()) {
+            StateVersionResponse version;
+            try {
+                version = ReplicationServiceGrpc.newBlockingStub(getPeerChannel(data[0], Integer.parseInt(data[1])))
+                        .withDeadlineAfter(RECONCILIATION_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                        .getStateVersion(StateVersionRequest.newBuilder().setShard(shard).build());
+            } catch (StatusRuntimeException e) {
+                throw new IllegalStateException("Could not read the state version of " + data[0] + ":" + data[1]
+                        + ": " + e.getStatus().getCode(), e);
+            }
+            System.out.println("Node " + data[0] + ":" + data[1] + " is at position " + version.getPosition()
+                    + " in shard " + shard);
+            if (version.getPosition() > bestPosition) {
+                bestPosition = version.getPosition();
+                bestPeer = data;
+            }
+        }
+
+        if (bestPeer != null) {
+            System.out.println("Fetching state from " + bestPeer[0] + ":" + bestPeer[1]);
+            Iterator<ServerState> chunks = ReplicationServiceGrpc.newBlockingStub(getPeerChannel(bestPeer[0], Integer.parseInt(bestPeer[1])))
+                    .withDeadlineAfter(RECONCILIATION_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .getServerState(ServerStateRequest.getDefaultInstance());
+            ServerState.Builder merged = ServerState.newBuilder();
+            while (chunks.hasNext()) {
+                merged.mergeFrom(chunks.next());
+            }
+            ServerState state = merged.build();
+            if (shards.length == 1) {
+                loadServerState(state);
+            } else {
+                loadShardState(shard, state);
+            }
+        }
+
+        lastReconciliationMillis = System.currentTimeMillis() - start;
+        System.out.println("State reconciliation of shard " + shard + " completed in " + lastReconciliationMillis + " ms"
+                + " (local position " + localPosition + ", cluster position " + bestPosition + ")");
     }
 }
\ No newline at end of file
@@ -0,0 +1,453 @@
+package com.cw2.server;
+
+import ds.tutorial.communication.grpc.generated.ConcertShow;
+import ds.tutorial.communication.grpc.generated.IdempotencyRecord;
+import ds.tutorial.communication.grpc.generated.Reservation;
+import ds.tutorial.communication.grpc.generated.ReserveTicketRequest;
+import ds.tutorial.communication.grpc.generated.SeatTier;
+import ds.tutorial.communication.grpc.generated.ServerState;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * In-memory concert and reservation state of a single server node.
+ * Seat counts live in a lock-free {@link ShowInventory} per show. Changes to
+ * the shape of a show are serialized on a lock stripe chosen by the show ID,
+ * so they never block reservations for other shows.
+ *
+ * <p>A hold takes seats like a reservation but is kept apart until it is
+ * confirmed, which turns it into a reservation, or released, which returns
+ * its seats.
+ */
+public class ConcertStore {
+    private static final int LOCK_STRIPES = 64;
+
+    private final Map<String, ShowInventory> inventories = new ConcurrentHashMap<>();
+    private final ReservationStore reservations = new ReservationStore();
+    private final ReservationStore holds = new ReservationStore();
+    private final IdempotencyTable idempotencyKeys = new IdempotencyTable(
+            Integer.getInteger("concert.idempotency.maxKeys", IdempotencyTable.DEFAULT_MAX_ENTRIES),
+            Long.getLong("concert.idempotency.ttlMs", IdempotencyTable.DEFAULT_TTL_MILLIS));
+    private final Object[] showLocks = new Object[LOCK_STRIPES];
+
+    public ConcertStore() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            showLocks[i] = new Object();
+        }
+    }
+
+    private Object lockFor(String concertId) {
+        return showLocks[(concertId.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    public void addConcert(ConcertShow concert) {
+        replaceInventory(concert);
+    }
+
+    public void updateConcert(ConcertShow updatedConcert) {
+        replaceInventory(updatedConcert);
+    }
+
+    private void replaceInventory(ConcertShow concert) {
+        synchronized (lockFor(concert.getId())) {
+            ShowInventory previous = inventories.put(concert.getId(), new ShowInventory(concert));
+            if (previous != null) {
+                previous.retire();
+            }
+        }
+    }
+
+    public boolean cancelConcert(String concertId) {
+        synchronized (lockFor(concertId)) {
+            ShowInventory previous = inventories.remove(concertId);
+            if (previous == null) {
+                return false;
+            }
+            previous.retire();
+            reservations.removeShow(concertId);
+            holds.removeShow(concertId);
+            return true;
+        }
+    }
+
+    public ConcertShow getConcert(String concertId) {
+        while (true) {
+            ShowInventory inventory = inventories.get(concertId);
+            if (inventory == null) {
+                return null;
+            }
+            ConcertShow show = inventory.materialize();
+            if (show != null) {
+                return show;
+            }
+            Thread.yield();
+        }
+    }
+
+    /** Returns the seats left in a tier without building the show, or -1 if the show or tier is unknown. */
+    public int getAvailableSeats(String concertId, String seatType) {
+        ShowInventory inventory = inventories.get(concertId);
+        int slot = inventory != null ? inventory.tierSlot(seatType) : -1;
+        return slot >= 0 ? Math.max(inventory.available(slot), -1) : -1;
+    }
+
+    /** Returns the after-party tickets left without building the show, or -1 if the show is unknown. */
+    public int getAvailableAfterPartyTickets(String concertId) {
+        ShowInventory inventory = inventories.get(concertId);
+        return inventory != null ? Math.max(inventory.available(ShowInventory.AFTER_PARTY_SLOT), -1) : -1;
+    }
+
+    public List<ConcertShow> getAllConcerts() {
+        List<ConcertShow> shows = new ArrayList<>(inventories.size());
+        for (String concertId : inventories.keySet()) {
+            ConcertShow show = getConcert(concertId);
+            if (show != null) {
+                shows.add(show);
+            }
+        }
+        return shows;
+    }
+
+    /**
+     * Copies the concerts, reservations and holds into {@code state}. The copy
+     * is only consistent while no writes are being applied, which the server
+     * ensures by locking every show.
+     */
+    public void exportTo(ServerState.Builder state) {
+        state.addAllShows(getAllConcerts());
+        reservations.forEach(state::addReservations);
+        holds.forEach(state::addHolds);
+        idempotencyKeys.forEach(state::addIdempotencyRecords);
+    }
+
+    /** Replaces all concerts, reservations and holds with the ones in {@code state}. */
+    public void importFrom(ServerState state) {
+        for (String concertId : new ArrayList<>(inventories.keySet())) {
+            cancelConcert(concertId);
+        }
+        reservations.clear();
+        holds.clear();
+        for (ConcertShow show : state.getShowsList()) {
+            addConcert(show);
+        }
+        for (Reservation reservation : state.getReservationsList()) {
+            reservations.add(reservation.getReservationId(), reservation.getShowId(), reservation.getCustomerId(),
+                    reservation.getSeatType(), reservation.getQuantity(), reservation.getIncludeAfterParty());
+        }
+        for (Reservation hold : state.getHoldsList()) {
+            addHold(hold);
+        }
+        idempotencyKeys.replaceWith(state.getIdempotencyRecordsList());
+    }
+
+    /**
+     * Replaces the concerts, reservations and holds of the shows
+     * {@code inShard} accepts with the ones in {@code state}, leaving the other
+     * shows alone. Idempotency keys in {@code state} are added to the known ones.
+     */
+    public void importShard(ServerState state, Predicate<String> inShard) {
+        for (String concertId : new ArrayList<>(inventories.keySet())) {
+            if (inShard.test(concertId)) {
+                cancelConcert(concertId);
+            }
+        }
+        for (ConcertShow show : state.getShowsList()) {
+            if (inShard.test(show.getId())) {
+                addConcert(show);
+            }
+        }
+        for (Reservation reservation : state.getReservationsList()) {
+            if (inShard.test(reservation.getShowId())) {
+                reservations.add(reservation.getReservationId(), reservation.getShowId(), reservation.getCustomerId(),
+                        reservation.getSeatType(), reservation.getQuantity(), reservation.getIncludeAfterParty());
+            }
+        }
+        for (Reservation hold : state.getHoldsList()) {
+            if (inShard.test(hold.getShowId())) {
+                addHold(hold);
+            }
+        }
+        idempotencyKeys.mergeWith(state.getIdempotencyRecordsList());
+    }
+
+    /**
+     * Copies one show with its reservations and holds, for
+     * {@link #importShard} to put back if a change to it has to be undone.
+     */
+    public ServerState exportShow(String concertId) {
+        ServerState.Builder state = ServerState.newBuilder();
+        ConcertShow show = getConcert(concertId);
+        if (show != null) {
+            state.addShows(show);
+        }
+        state.addAllReservations(reservations.listByShow(concertId));
+        state.addAllHolds(holds.listByShow(concertId));
+        return state.build();
+    }
+
+    public Reservation getReservation(String reservationId) {
+        return reservations.get(reservationId);
+    }
+
+    public List<Reservation> getCustomerReservations(String customerId) {
+        return reservations.listByCustomer(customerId);
+    }
+
+    public List<Reservation> getCustomerHolds(String customerId) {
+        return holds.listByCustomer(customerId);
+    }
+
+    public int getReservedTickets(String concertId) {
+        return reservations.ticketsForShow(concertId);
+    }
+
+    public int getReservedAfterPartyTickets(String concertId) {
+        return reservations.afterPartyTicketsForShow(concertId);
+    }
+
+    /**
+     * Reserves seats and records the reservation under {@code reservationId},
+     * or under a freshly minted ID when none is given. Returns the ID, or null
+     * if the seats are not available.
+     */
+    public String reserveTickets(String concertId, String seatType, int quantity, boolean includeAfterParty,
+                                 String customerId, String reservationId) {
+        if (!takeSeats(concertId, seatType, quantity, includeAfterParty)) {
+            return null;
+        }
+        if (reservationId == null || reservationId.isEmpty()) {
+            reservationId = UUID.randomUUID().toString();
+        }
+        reservations.add(reservationId, concertId, customerId, seatType, quantity, includeAfterParty);
+        return reservationId;
+    }
+
+    /**
+     * Reserves all of {@code items} or none of them. Items without a
+     * reservation ID get a freshly minted one. Returns the IDs in order, or
+     * null if any item could not be served, in which case the seats taken for
+     * the others are given back.
+     */
+    public List<String> reserveGroup(List<ReserveTicketRequest> items) {
+        for (int i = 0; i < items.size(); i++) {
+            ReserveTicketRequest item = items.get(i);
+            if (!takeSeats(item.getShowId(), item.getSeatType(), item.getQuantity(), item.getIncludeAfterParty())) {
+                for (int taken = 0; taken < i; taken++) {
+                    ReserveTicketRequest undo = items.get(taken);
+                    ShowInventory inventory = inventories.get(undo.getShowId());
+                    if (inventory != null) {
+                        adjustSeats(inventory, undo.getSeatType(), undo.getQuantity(), undo.getIncludeAfterParty());
+                    }
+                }
+                return null;
+            }
+        }
+        List<String> reservationIds = new ArrayList<>(items.size());
+        for (ReserveTicketRequest item : items) {
+            String reservationId = item.getReservationId().isEmpty() ? UUID.randomUUID().toString() : item.getReservationId();
+            reservations.add(reservationId, item.getShowId(), item.getCustomerId(), item.getSeatType(), item.getQuantity(),
+                    item.getIncludeAfterParty());
+            reservationIds.add(reservationId);
+        }
+        return reservationIds;
+    }
+
+    /**
+     * Takes seats for a hold that lasts until {@code holdUntilMillis}. Returns
+     * the hold ID, or null if the seats are not available.
+     */
+    public String holdTickets(String concertId, String seatType, int quantity, boolean includeAfterParty,
+                              String customerId, String holdId, long holdUntilMillis) {
+        if (!takeSeats(concertId, seatType, quantity, includeAfterParty)) {
+            return null;
+        }
+        if (holdId == null || holdId.isEmpty()) {
+            holdId = UUID.randomUUID().toString();
+        }
+        holds.add(holdId, concertId, customerId, seatType, quantity, includeAfterParty, holdUntilMillis);
+        return holdId;
+    }
+
+    private boolean takeSeats(String concertId, String seatType, int quantity, boolean includeAfterParty) {
+        if (quantity <= 0) {
+            return false;
+        }
+        while (true) {
+            ShowInventory inventory = inventories.get(concertId);
+            if (inventory == null) {
+                return false;
+            }
+            int tierSlot = inventory.tierSlot(seatType);
+            if (tierSlot < 0) {
+                return false;
+            }
+            ShowInventory.Outcome outcome = inventory.tryReserve(tierSlot, quantity, includeAfterParty);
+            if (outcome == ShowInventory.Outcome.UNAVAILABLE) {
+                return false;
+            }
+            if (outcome == ShowInventory.Outcome.RESERVED) {
+                return true;
+            }
+            // the show was reshaped underneath us; retry against its replacement
+            Thread.yield();
+        }
+    }
+
+    /** Returns the record of a customer's idempotency key, or null if there is none (any more). */
+    public IdempotencyRecord findIdempotencyRecord(String customerId, String idempotencyKey) {
+        return idempotencyKeys.find(customerId, idempotencyKey);
+    }
+
+    /** Records the reservations made for {@code reservations} under a customer's idempotency key. */
+    public void recordIdempotencyKey(String customerId, String idempotencyKey, String reservationId,
+                                     List<ReserveTicketRequest> reservations) {
+        idempotencyKeys.record(customerId, idempotencyKey, reservationId, IdempotencyTable.fingerprint(reservations));
+    }
+
+    public Reservation getHold(String holdId) {
+        return holds.get(holdId);
+    }
+
+    public void forEachHold(Consumer<Reservation> consumer) {
+        holds.forEach(consumer);
+    }
+
+    private void addHold(Reservation hold) {
+        holds.add(hold.getReservationId(), hold.getShowId(), hold.getCustomerId(), hold.getSeatType(), hold.getQuantity(),
+                hold.getIncludeAfterParty(), hold.getHoldUntilMillis());
+    }
+
+    /** Turns a hold into a reservation with the same ID. Returns false if the hold is gone. */
+    public boolean confirmHold(String holdId) {
+        Reservation hold = holds.remove(holdId);
+        if (hold == null) {
+            return false;
+        }
+        reservations.add(holdId, hold.getShowId(), hold.getCustomerId(), hold.getSeatType(), hold.getQuantity(),
+                hold.getIncludeAfterParty());
+        return true;
+    }
+
+    /** Drops a hold and returns its seats. Returns false if the hold is gone. */
+    public boolean releaseHold(String holdId) {
+        Reservation hold = holds.remove(holdId);
+        if (hold == null) {
+            return false;
+        }
+        ShowInventory inventory = inventories.get(hold.getShowId());
+        if (inventory != null) {
+            adjustSeats(inventory, hold.getSeatType(), hold.getQuantity(), hold.getIncludeAfterParty());
+        }
+        return true;
+    }
+
+    /** Undoes a reservation: drops it and returns its seats. Returns false if it is gone. */
+    public boolean unreserve(String reservationId) {
+        Reservation reservation = reservations.remove(reservationId);
+        if (reservation == null) {
+            return false;
+        }
+        ShowInventory inventory = inventories.get(reservation.getShowId());
+        if (inventory != null) {
+            adjustSeats(inventory, reservation.getSeatType(), reservation.getQuantity(), reservation.getIncludeAfterParty());
+        }
+        return true;
+    }
+
+    /** Undoes {@link #confirmHold}: turns the reservation back into {@code hold}. */
+    public void unconfirmHold(Reservation hold) {
+        reservations.remove(hold.getReservationId());
+        addHold(hold);
+    }
+
+    /**
+     * Re-applies a reservation that was already committed, without checking
+     * availability again. Used when replaying the journal.
+     */
+    public void restoreReservation(String concertId, String seatType, int quantity, boolean includeAfterParty,
+                                   String customerId, String reservationId) {
+        ShowInventory inventory = inventories.get(concertId);
+        if (inventory == null) {
+            return;
+        }
+        adjustSeats(inventory, seatType, -quantity, includeAfterParty);
+        reservations.add(reservationId, concertId, customerId, seatType, quantity, includeAfterParty);
+    }
+
+    /** Like {@link #restoreReservation}, for a hold. */
+    public void restoreHold(String concertId, String seatType, int quantity, boolean includeAfterParty,
+                            String customerId, String holdId, long holdUntilMillis) {
+        ShowInventory inventory = inventories.get(concertId);
+        if (inventory == null) {
+            return;
+        }
+        adjustSeats(inventory, seatType, -quantity, includeAfterParty);
+        holds.add(holdId, concertId, customerId, seatType, quantity, includeAfterParty, holdUntilMillis);
+    }
+
+    private static void adjustSeats(ShowInventory inventory, String seatType, int delta, boolean includeAfterParty) {
+        int tierSlot = inventory.tierSlot(seatType);
+        if (tierSlot > 0) {
+            inventory.add(tierSlot, delta);
+        }
+        if (includeAfterParty) {
+            inventory.add(ShowInventory.AFTER_PARTY_SLOT, delta);
+        }
+    }
+
+    public boolean updateTicketStock(String concertId, String seatType, int additionalTickets, int additionalAfterPartyTickets) {
+        ShowInventory inventory = inventories.get(concertId);
+        if (inventory == null) {
+            return false;
+        }
+
+        boolean hasSeatType = seatType != null && !seatType.isEmpty();
+        boolean newTier = hasSeatType && additionalTickets > 0 && inventory.tierSlot(seatType) < 0;
+        boolean enableAfterParty = additionalAfterPartyTickets > 0 && !inventory.hasAfterParty();
+        if (newTier || enableAfterParty) {
+            inventory = reshape(concertId, seatType, newTier, enableAfterParty);
+            if (inventory == null) {
+                return false;
+            }
+        }
+
+        if (hasSeatType) {
+            int tierSlot = inventory.tierSlot(seatType);
+            if (tierSlot > 0) {
+                inventory.add(tierSlot, additionalTickets);
+            }
+        }
+        if (additionalAfterPartyTickets != 0) {
+            inventory.add(ShowInventory.AFTER_PARTY_SLOT, additionalAfterPartyTickets);
+        }
+        return true;
+    }
+
+    private ShowInventory reshape(String concertId, String seatType, boolean newTier, boolean enableAfterParty) {
+        synchronized (lockFor(concertId)) {
+            ShowInventory current = inventories.get(concertId);
+            if (current == null) {
+                return null;
+            }
+            ConcertShow.Builder template = current.getTemplate().toBuilder();
+            if (newTier && current.tierSlot(seatType) < 0) {
+                template.addSeatTiers(SeatTier.newBuilder()
+                        .setType(seatType)
+                        .setPrice(0.0)
+                        .setAvailable(0));
+            }
+            if (enableAfterParty) {
+                template.setHasAfterParty(true);
+            }
+            ShowInventory next = current.retireInto(template.build());
+            inventories.put(concertId, next);
+            return next;
+        }
+    }
+}
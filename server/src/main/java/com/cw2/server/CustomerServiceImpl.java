@@ -1,27 +1,42 @@
 package com.cw2.server;
 
+import com.google.protobuf.TextFormat;
 import ds.tutorial.communication.grpc.generated.*;
 import ds.tutorial.synchronization.processs.DistributedTxCoordinator;
 import ds.tutorial.synchronization.processs.DistributedTxListner;
 import ds.tutorial.synchronization.processs.DistributedTxParticipant;
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
-import org.apache.zookeeper.KeeperException;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.logging.Logger;
 
 public class CustomerServiceImpl extends CustomerServiceGrpc.CustomerServiceImplBase implements DistributedTxListner {
     private static final Logger logger = Logger.getLogger(CustomerServiceImpl.class.getName());
-    private static final int CHANNEL_SHUTDOWN_TIMEOUT_SECONDS = 10;
+    private static final int FORWARD_DEADLINE_SECONDS = 10;
+    private static final int FORWARD_ATTEMPTS = 3;
+    private static final long FORWARD_RETRY_MILLIS = 500;
+    private static final long MAX_HOLD_MILLIS = TimeUnit.MINUTES.toMillis(30);
 
     private ConcertServer server;
-    private ReserveTicketRequest tempDataHolder;
-    private String reservationId = null;
-    private boolean transactionStatus = false;
+    private final TransactionContext.Table<List<ReserveTicketRequest>> transactions = new TransactionContext.Table<>();
+    private final TransactionContext.Table<List<String>> holdTransactions = new TransactionContext.Table<>();
+    // one settlement at a time, so a confirm and a release of the same hold apply in the same order everywhere
+    private final Object holdSettlement = new Object();
+    private final ReservationBatcher batcher = new ReservationBatcher(this::commitReservations,
+            Integer.getInteger("concert.reserve.maxBatch", ReservationBatcher.DEFAULT_MAX_BATCH),
+            Long.getLong("concert.reserve.batchWindowMs", ReservationBatcher.DEFAULT_WINDOW_MILLIS));
 
     public CustomerServiceImpl(ConcertServer server) {
         this.server = server;
@@ -29,184 +44,572 @@ public class CustomerServiceImpl extends CustomerServiceGrpc.CustomerServiceImpl
 
     @Override
     public void listConcerts(ListConcertsRequest request, io.grpc.stub.StreamObserver<ListConcertsResponse> responseObserver) {
-        logger.info("Listing all concerts");
-        List<ConcertShow> shows = server.getAllConcerts();
+        if (!server.canServeRead(request.getMinSequence(), request.getMaxStalenessMs())) {
+            forwardToPrimary(responseObserver, stub -> stub.listConcerts(request));
+            return;
+        }
+        ListConcertsRequest query = request.getMinSequence() == 0 && request.getMaxStalenessMs() == 0
+                ? request
+                : request.toBuilder().clearMinSequence().clearMaxStalenessMs().build();
+        if (query.equals(ListConcertsRequest.getDefaultInstance())) {
+            logger.info("Listing all concerts");
+            responseObserver.onNext(server.getCatalog());
+            responseObserver.onCompleted();
+            return;
+        }
+        logger.info("Listing concerts matching " + TextFormat.shortDebugString(query));
+        try {
+            responseObserver.onNext(server.listConcerts(query));
+            responseObserver.onCompleted();
+        } catch (IllegalArgumentException e) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+        }
+    }
 
-        ListConcertsResponse response = ListConcertsResponse.newBuilder()
-                .addAllShows(shows)
-                .build();
+    @Override
+    public void getConcert(GetConcertRequest request, io.grpc.stub.StreamObserver<GetConcertResponse> responseObserver) {
+        if (!server.canServeRead(request.getMinSequence(), request.getMaxStalenessMs())) {
+            forwardToPrimary(responseObserver, stub -> stub.getConcert(request));
+            return;
+        }
+        long sequence = server.getCommitSequence();
+        long version = server.getConcertVersion(request.getShowId());
+        ConcertShow show = server.getConcert(request.getShowId());
+        GetConcertResponse.Builder response = GetConcertResponse.newBuilder().setSequence(sequence);
+        if (show != null) {
+            response.setVersion(version);
+            if (request.getKnownVersion() != 0 && request.getKnownVersion() == version) {
+                response.setNotModified(true);
+            } else {
+                response.setShow(show);
+            }
+        }
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
 
-        responseObserver.onNext(response);
+    @Override
+    public void getReservation(GetReservationRequest request, io.grpc.stub.StreamObserver<GetReservationResponse> responseObserver) {
+        if (!server.canServeRead(request.getMinSequence(), request.getMaxStalenessMs())) {
+            forwardToPrimary(responseObserver, stub -> stub.getReservation(request));
+            return;
+        }
+        long sequence = server.getCommitSequence();
+        GetReservationResponse.Builder response = GetReservationResponse.newBuilder().setSequence(sequence);
+        Reservation reservation = server.getReservation(request.getReservationId());
+        if (reservation != null) {
+            response.setFound(true).setReservation(reservation);
+        } else {
+            Reservation hold = server.getHold(request.getReservationId());
+            if (hold != null) {
+                response.setFound(true).setHeld(true).setReservation(hold);
+            }
+        }
+        responseObserver.onNext(response.build());
         responseObserver.onCompleted();
     }
 
     @Override
-    public void reserveTicket(ReserveTicketRequest request, io.grpc.stub.StreamObserver<ReserveTicketResponse> responseObserver) {
-        String showId = request.getShowId();
-        String seatType = request.getSeatType();
-        int quantity = request.getQuantity();
-        boolean includeAfterParty = request.getIncludeAfterParty();
-        String customerId = request.getCustomerId();
+    public void listCustomerReservations(ListCustomerReservationsRequest request,
+                                         io.grpc.stub.StreamObserver<ListCustomerReservationsResponse> responseObserver) {
+        if (!server.canServeRead(request.getMinSequence(), request.getMaxStalenessMs())) {
+            forwardToPrimary(responseObserver, stub -> stub.listCustomerReservations(request));
+            return;
+        }
+        logger.info("Listing reservations of customer " + request.getCustomerId());
+        long sequence = server.getCommitSequence();
+        responseObserver.onNext(ListCustomerReservationsResponse.newBuilder()
+                .addAllReservations(server.getCustomerReservations(request.getCustomerId()))
+                .addAllHolds(server.getCustomerHolds(request.getCustomerId()))
+                .setSequence(sequence)
+                .build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void getShowTotals(GetShowTotalsRequest request, io.grpc.stub.StreamObserver<GetShowTotalsResponse> responseObserver) {
+        if (!server.canServeRead(request.getMinSequence(), request.getMaxStalenessMs())) {
+            forwardToPrimary(responseObserver, stub -> stub.getShowTotals(request));
+            return;
+        }
+        long sequence = server.getCommitSequence();
+        GetShowTotalsResponse.Builder response = GetShowTotalsResponse.newBuilder().setSequence(sequence);
+        if (server.getConcert(request.getShowId()) != null) {
+            response.setFound(true)
+                    .setReservedTickets(server.getReservedTickets(request.getShowId()))
+                    .setReservedAfterPartyTickets(server.getReservedAfterPartyTickets(request.getShowId()));
+        }
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void watchConcerts(WatchConcertsRequest request, io.grpc.stub.StreamObserver<AvailabilityUpdate> responseObserver) {
+        logger.info("Adding availability watcher");
+        server.watchConcerts((ServerCallStreamObserver<AvailabilityUpdate>) responseObserver);
+    }
 
+    @Override
+    public void reserveTicket(ReserveTicketRequest request, io.grpc.stub.StreamObserver<ReserveTicketResponse> responseObserver) {
         try {
-            if (server.isLeader()) {
+            if (server.startShardWrite(request.getShowId())) {
                 
                 logger.info("Reserving tickets as Primary");
-                startDistributedTx(request);
-                updateSecondaryServers(request);
-
-                ((DistributedTxCoordinator) server.getTransaction()).perform();
+                batcher.submit(request).whenComplete((reservationId, error) -> {
+                    server.finishShardWrite(request.getShowId());
+                    if (error != null) {
+                        logger.severe("Error while reserving tickets: " + error.getMessage());
+                        responseObserver.onNext(errorResponse(error));
+                    } else {
+                        responseObserver.onNext(ReserveTicketResponse.newBuilder()
+                                .setStatus(reservationId != null)
+                                .setReservationId(reservationId != null ? reservationId : "")
+                                .setMessage(reservationId != null ? "Tickets reserved successfully" : "Failed to reserve tickets")
+                                .build());
+                    }
+                    responseObserver.onCompleted();
+                });
             } else {
-                
-                if (request.getIsSentByPrimary()) {
-                    logger.info("Reserving tickets on secondary, on Primary's command");
-                    startDistributedTx(request);
-                    ((DistributedTxParticipant) server.getTransaction()).voteCommit();
-                } else {
-                    ReserveTicketResponse response = callPrimary(request);
-                    transactionStatus = response.getStatus();
-                    reservationId = response.getReservationId();
-                }
+                responseObserver.onNext(callPrimary(request));
+                responseObserver.onCompleted();
             }
-
-            ReserveTicketResponse response = ReserveTicketResponse.newBuilder()
-                    .setStatus(transactionStatus)
-                    .setReservationId(reservationId != null ? reservationId : "")
-                    .setMessage(transactionStatus ? "Tickets reserved successfully" : "Failed to reserve tickets")
-                    .build();
-
-            responseObserver.onNext(response);
-            responseObserver.onCompleted();
         } catch (Exception e) {
             logger.severe("Error while reserving tickets: " + e.getMessage());
             e.printStackTrace();
 
-            
-            ReserveTicketResponse response = ReserveTicketResponse.newBuilder()
+            responseObserver.onNext(errorResponse(e));
+            responseObserver.onCompleted();
+        }
+    }
+
+    @Override
+    public void holdTickets(HoldTicketsRequest request, io.grpc.stub.StreamObserver<HoldTicketsResponse> responseObserver) {
+        if (request.getHoldMillis() <= 0) {
+            responseObserver.onNext(HoldTicketsResponse.newBuilder()
+                    .setStatus(false)
+                    .setMessage("Hold duration must be positive")
+                    .build());
+            responseObserver.onCompleted();
+            return;
+        }
+        try {
+            if (server.startShardWrite(request.getShowId())) {
+                logger.info("Holding tickets as Primary");
+                long holdUntil = System.currentTimeMillis() + Math.min(request.getHoldMillis(), MAX_HOLD_MILLIS);
+                batcher.submit(ReserveTicketRequest.newBuilder()
+                        .setShowId(request.getShowId())
+                        .setSeatType(request.getSeatType())
+                        .setQuantity(request.getQuantity())
+                        .setIncludeAfterParty(request.getIncludeAfterParty())
+                        .setCustomerId(request.getCustomerId())
+                        .setHoldUntilMillis(holdUntil)
+                        .build()).whenComplete((holdId, error) -> {
+                    server.finishShardWrite(request.getShowId());
+                    HoldTicketsResponse.Builder response = HoldTicketsResponse.newBuilder();
+                    if (error != null) {
+                        logger.severe("Error while holding tickets: " + error.getMessage());
+                        response.setStatus(false).setMessage("Server error: " + error.getMessage());
+                    } else if (holdId == null) {
+                        response.setStatus(false).setMessage("Failed to hold tickets");
+                    } else {
+                        response.setStatus(true).setHoldId(holdId).setExpiresAtMillis(holdUntil).setMessage("Tickets held");
+                    }
+                    responseObserver.onNext(response.build());
+                    responseObserver.onCompleted();
+                });
+            } else {
+                logger.info("Calling Primary server to hold tickets");
+                responseObserver.onNext(shardLeaderStub(request.getShowId()).holdTickets(request));
+                responseObserver.onCompleted();
+            }
+        } catch (Exception e) {
+            logger.severe("Error while holding tickets: " + e.getMessage());
+            responseObserver.onNext(HoldTicketsResponse.newBuilder()
                     .setStatus(false)
-                    .setReservationId("")
                     .setMessage("Server error: " + e.getMessage())
-                    .build();
-
-            responseObserver.onNext(response);
+                    .build());
             responseObserver.onCompleted();
-        } finally {
-            
-            reservationId = null;
         }
     }
 
-    
-    private void startDistributedTx(ReserveTicketRequest request) throws IOException {
-        server.getTransaction().start("RESERVE_TICKET", String.valueOf(UUID.randomUUID()));
-        tempDataHolder = request;
+    @Override
+    public void confirmHold(ConfirmHoldRequest request, io.grpc.stub.StreamObserver<ConfirmHoldResponse> responseObserver) {
+        ConfirmHoldResponse.Builder response = ConfirmHoldResponse.newBuilder();
+        try {
+            Reservation hold = server.getHold(request.getHoldId());
+            if (hold == null && !server.isLeader()) {
+                // the hold may not have reached this node yet
+                response.mergeFrom(primaryStub().confirmHold(request));
+            } else if (hold == null) {
+                response.setStatus(false).setMessage("No such hold; it was settled or has expired");
+            } else if (!server.startShardWrite(hold.getShowId())) {
+                response.mergeFrom(shardLeaderStub(hold.getShowId()).confirmHold(request));
+            } else {
+                try {
+                    if (hold.getHoldUntilMillis() <= System.currentTimeMillis()) {
+                        response.setStatus(false).setMessage("Hold has expired");
+                    } else if (settleHolds("CONFIRM_HOLD", Collections.singletonList(hold.getReservationId())).get(0)) {
+                        response.setStatus(true).setReservationId(hold.getReservationId()).setMessage("Tickets reserved successfully");
+                    } else {
+                        response.setStatus(false).setMessage("No such hold; it was settled or has expired");
+                    }
+                } finally {
+                    server.finishShardWrite(hold.getShowId());
+                }
+            }
+        } catch (Exception e) {
+            logger.severe("Error while confirming hold: " + e.getMessage());
+            response.setStatus(false).setMessage("Server error: " + e.getMessage());
+        }
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
     }
 
     @Override
-    public void onGlobalCommit() {
-        if (tempDataHolder != null) {
-            reservationId = server.reserveTickets(
-                    tempDataHolder.getShowId(),
-                    tempDataHolder.getSeatType(),
-                    tempDataHolder.getQuantity(),
-                    tempDataHolder.getIncludeAfterParty(),
-                    tempDataHolder.getCustomerId()
-            );
-
-            transactionStatus = (reservationId != null);
-            tempDataHolder = null;
+    public void releaseHold(ReleaseHoldRequest request, io.grpc.stub.StreamObserver<ReleaseHoldResponse> responseObserver) {
+        ReleaseHoldResponse.Builder response = ReleaseHoldResponse.newBuilder();
+        try {
+            Reservation hold = server.getHold(request.getHoldId());
+            if (hold == null && !server.isLeader()) {
+                response.mergeFrom(primaryStub().releaseHold(request));
+            } else if (hold == null) {
+                response.setStatus(false).setMessage("No such hold; it was settled or has expired");
+            } else if (!server.startShardWrite(hold.getShowId())) {
+                response.mergeFrom(shardLeaderStub(hold.getShowId()).releaseHold(request));
+            } else {
+                try {
+                    boolean released = settleHolds("RELEASE_HOLD", Collections.singletonList(hold.getReservationId())).get(0);
+                    response.setStatus(released).setMessage(released ? "Hold released" : "No such hold; it was settled or has expired");
+                } finally {
+                    server.finishShardWrite(hold.getShowId());
+                }
+            }
+        } catch (Exception e) {
+            logger.severe("Error while releasing hold: " + e.getMessage());
+            response.setStatus(false).setMessage("Server error: " + e.getMessage());
         }
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
     }
 
+    /**
+     * Reserves every line item or none, in one replicated commit. The node
+     * serving it must lead the shards of all the shows involved, so with
+     * several shards a group can only span shows whose shards share a leader.
+     */
     @Override
-    public void onGlobalAbort() {
-        tempDataHolder = null;
-        reservationId = null;
-        transactionStatus = false;
-        logger.info("Transaction Aborted by the Coordinator");
+    public void reserveBatch(ReserveBatchRequest request, io.grpc.stub.StreamObserver<ReserveBatchResponse> responseObserver) {
+        if (request.getItemsCount() == 0) {
+            responseObserver.onNext(batchFailure("No line items to reserve"));
+            responseObserver.onCompleted();
+            return;
+        }
+        Set<String> showIds = new LinkedHashSet<>();
+        for (BatchLineItem item : request.getItemsList()) {
+            showIds.add(item.getShowId());
+        }
+        try {
+            if (server.startShardWrites(showIds)) {
+                logger.info("Reserving " + request.getItemsCount() + " line items as Primary");
+                String groupId = UUID.randomUUID().toString();
+                List<ReserveTicketRequest> group = new ArrayList<>(request.getItemsCount());
+                for (BatchLineItem item : request.getItemsList()) {
+                    group.add(ReserveTicketRequest.newBuilder()
+                            .setIdempotencyKey(group.isEmpty() ? request.getIdempotencyKey() : "")
+                            .setShowId(item.getShowId())
+                            .setSeatType(item.getSeatType())
+                            .setQuantity(item.getQuantity())
+                            .setIncludeAfterParty(item.getIncludeAfterParty())
+                            .setCustomerId(request.getCustomerId())
+                            .setGroupId(groupId)
+                            .build());
+                }
+                batcher.submitAll(group).whenComplete((reservationIds, error) -> {
+                    server.finishShardWrites(showIds);
+                    if (error != null) {
+                        logger.severe("Error while reserving line items: " + error.getMessage());
+                        responseObserver.onNext(batchFailure("Server error: " + error.getMessage()));
+                    } else if (reservationIds.get(0) == null) {
+                        responseObserver.onNext(batchFailure("Not every line item could be reserved, so none were"));
+                    } else {
+                        responseObserver.onNext(ReserveBatchResponse.newBuilder()
+                                .setStatus(true)
+                                .addAllReservationIds(reservationIds)
+                                .setMessage("Tickets reserved successfully")
+                                .build());
+                    }
+                    responseObserver.onCompleted();
+                });
+            } else if (request.getForwarded()) {
+                responseObserver.onNext(batchFailure("The line items are for shows led by different nodes; reserve them separately"));
+                responseObserver.onCompleted();
+            } else {
+                logger.info("Calling Primary server for batch reservation");
+                responseObserver.onNext(shardLeaderStub(request.getItems(0).getShowId())
+                        .reserveBatch(request.toBuilder().setForwarded(true).build()));
+                responseObserver.onCompleted();
+            }
+        } catch (Exception e) {
+            logger.severe("Error while reserving line items: " + e.getMessage());
+            responseObserver.onNext(batchFailure("Server error: " + e.getMessage()));
+            responseObserver.onCompleted();
+        }
     }
 
-    private ReserveTicketResponse callPrimary(ReserveTicketRequest request) {
-        logger.info("Calling Primary server for ticket reservation");
-        String[] currentLeaderData = server.getCurrentLeaderData();
-        String IPAddress = currentLeaderData[0];
-        int port = Integer.parseInt(currentLeaderData[1]);
+    private static ReserveBatchResponse batchFailure(String message) {
+        return ReserveBatchResponse.newBuilder()
+                .setStatus(false)
+                .setMessage(message)
+                .build();
+    }
 
-        ManagedChannel channel = null;
-        try {
-            channel = ManagedChannelBuilder.forAddress(IPAddress, port)
-                    .usePlaintext()
-                    .build();
+    private static ReserveTicketResponse errorResponse(Throwable e) {
+        return ReserveTicketResponse.newBuilder()
+                .setStatus(false)
+                .setReservationId("")
+                .setMessage("Server error: " + e.getMessage())
+                .build();
+    }
 
-            CustomerServiceGrpc.CustomerServiceBlockingStub clientStub = CustomerServiceGrpc.newBlockingStub(channel)
-                    .withDeadlineAfter(CHANNEL_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    @Override
+    public void replicateReservations(ReplicateReservationsRequest request,
+                                      io.grpc.stub.StreamObserver<ReplicateReservationsResponse> responseObserver) {
+        logger.info("Reserving " + request.getReservationsCount() + " batched reservations on secondary, on Primary's command");
+        boolean status = false;
+        try {
+            TransactionContext<List<ReserveTicketRequest>> context = transactions.start(request.getTransactionId(),
+                    "RESERVE_BATCH", request.getReservationsList(), new DistributedTxParticipant(this));
+            ((DistributedTxParticipant) context.getTransaction()).voteCommit();
+            status = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        responseObserver.onNext(ReplicateReservationsResponse.newBuilder().setStatus(status).build());
+        responseObserver.onCompleted();
+    }
 
-            return clientStub.reserveTicket(request);
-        } finally {
-            closeChannel(channel, IPAddress, port);
+    @Override
+    public void replicateHolds(ReplicateHoldsRequest request,
+                               io.grpc.stub.StreamObserver<ReplicateReservationsResponse> responseObserver) {
+        logger.info("Settling " + request.getHoldIdsCount() + " holds (" + request.getOperation() + ") on secondary, on Primary's command");
+        boolean status = false;
+        try {
+            TransactionContext<List<String>> context = holdTransactions.start(request.getTransactionId(),
+                    request.getOperation(), request.getHoldIdsList(), new DistributedTxParticipant(this));
+            ((DistributedTxParticipant) context.getTransaction()).voteCommit();
+            status = true;
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+        responseObserver.onNext(ReplicateReservationsResponse.newBuilder().setStatus(status).build());
+        responseObserver.onCompleted();
     }
 
-    private void updateSecondaryServers(ReserveTicketRequest request) throws KeeperException, InterruptedException {
-        logger.info("Updating secondary servers for ticket reservation");
-        List<String[]> othersData = server.getOthersData();
+    /**
+     * Confirms ({@code CONFIRM_HOLD}) or releases ({@code RELEASE_HOLD}) a
+     * batch of holds as a single distributed transaction and returns, per
+     * hold, whether it was settled. Callers must lead the shards of the holds.
+     */
+    public List<Boolean> settleHolds(String operation, List<String> holdIds) throws Exception {
+        synchronized (holdSettlement) {
+            if (server.usesLogReplication()) {
+                return server.settleHolds(operation, holdIds, 0);
+            }
+            ReplicateHoldsRequest secondaryRequest = ReplicateHoldsRequest.newBuilder()
+                    .setTransactionId(TransactionContext.newTransactionId(operation))
+                    .setOperation(operation)
+                    .addAllHoldIds(holdIds)
+                    .build();
+            TransactionContext<List<String>> context = holdTransactions.start(secondaryRequest.getTransactionId(),
+                    operation, holdIds, new DistributedTxCoordinator(this));
+            DistributedTxCoordinator coordinator = context.getTransaction();
+            int followers;
+            try {
+                followers = server.sendToFollowers("replicateHolds", (channel, deadline) -> CustomerServiceGrpc.newFutureStub(channel)
+                        .withDeadline(deadline)
+                        .replicateHolds(secondaryRequest), ReplicateReservationsResponse::getStatus).size();
+            } catch (Exception e) {
+                coordinator.abort();
+                throw e;
+            }
 
-        for (String[] data : othersData) {
-            String IPAddress = data[0];
-            int port = Integer.parseInt(data[1]);
-            ManagedChannel channel = null;
+            coordinator.perform(followers);
+            if (!context.isCommitted()) {
+                throw new IllegalStateException("Transaction " + context.getTransactionId() + " was aborted");
+            }
+            return context.getResult();
+        }
+    }
 
-            try {
-                channel = ManagedChannelBuilder.forAddress(IPAddress, port)
-                        .usePlaintext()
-                        .build();
+    /**
+     * Commits one batch from the {@link ReservationBatcher}. A reservation, or
+     * a group of them, whose idempotency key is already known or appears
+     * earlier in the batch is a retry: it gets the reservation IDs of the
+     * first attempt and is left out of what is replicated, so every node
+     * applies the same batch. A key reused for different reservations fails
+     * just that request.
+     */
+    private List<String> commitReservations(List<ReserveTicketRequest> batch) throws Exception {
+        List<ReserveTicketRequest> fresh = new ArrayList<>(batch.size());
+        // per request, its index in fresh, or -1 when answered from the table
+        int[] source = new int[batch.size()];
+        String[] known = new String[batch.size()];
+        Map<String, Integer> keyedInBatch = new HashMap<>();
+        Map<String, String> batchFingerprints = new HashMap<>();
+        for (int i = 0; i < batch.size(); ) {
+            ReserveTicketRequest request = batch.get(i);
+            int end = i + 1;
+            while (!request.getGroupId().isEmpty() && end < batch.size()
+                    && batch.get(end).getGroupId().equals(request.getGroupId())) {
+                end++;
+            }
+            String key = request.getIdempotencyKey();
+            String scopedKey = request.getCustomerId() + "\u0000" + key;
+            String fingerprint = key.isEmpty() ? null : IdempotencyTable.fingerprint(batch.subList(i, end));
+            IdempotencyRecord recorded = key.isEmpty() ? null : server.findIdempotencyRecord(request.getCustomerId(), key);
+            Integer first = key.isEmpty() || recorded != null ? null : keyedInBatch.putIfAbsent(scopedKey, fresh.size());
+            boolean reused = recorded != null ? !recorded.getFingerprint().equals(fingerprint)
+                    : first != null && !batchFingerprints.get(scopedKey).equals(fingerprint);
+            if (reused) {
+                logger.warning("Idempotency key " + key + " was already used for other reservations");
+                for (int j = i; j < end; j++) {
+                    source[j] = -1;
+                    known[j] = null;
+                }
+            } else if (recorded != null) {
+                logger.info("Reservation " + key + " was already made as " + recorded.getReservationId());
+                // a group records the IDs of all its reservations
+                String[] reservationIds = recorded.getReservationId().split(",");
+                for (int j = i; j < end; j++) {
+                    source[j] = -1;
+                    known[j] = reservationIds[j - i];
+                }
+            } else {
+                if (fingerprint != null) {
+                    batchFingerprints.putIfAbsent(scopedKey, fingerprint);
+                }
+                for (int j = i; j < end; j++) {
+                    source[j] = first != null ? first + (j - i) : fresh.size();
+                    if (first == null) {
+                        fresh.add(batch.get(j));
+                    }
+                }
+            }
+            i = end;
+        }
+        List<String> committed = fresh.isEmpty() ? Collections.<String>emptyList() : commitBatch(fresh);
+        List<String> reservationIds = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            reservationIds.add(source[i] < 0 ? known[i] : committed.get(source[i]));
+        }
+        return reservationIds;
+    }
 
-                CustomerServiceGrpc.CustomerServiceBlockingStub clientStub = CustomerServiceGrpc.newBlockingStub(channel)
-                        .withDeadlineAfter(CHANNEL_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    /**
+     * Commits reservations as a single distributed transaction. The leader
+     * assigns the reservation IDs so every node records the same ones.
+     */
+    private List<String> commitBatch(List<ReserveTicketRequest> batch) throws Exception {
+        ReplicateReservationsRequest.Builder replicated = ReplicateReservationsRequest.newBuilder()
+                .setTransactionId(TransactionContext.newTransactionId("RESERVE_BATCH"));
+        for (ReserveTicketRequest request : batch) {
+            replicated.addReservations(request.toBuilder()
+                    .setReservationId(UUID.randomUUID().toString())
+                    .setIsSentByPrimary(true));
+        }
+        ReplicateReservationsRequest secondaryRequest = replicated.build();
+        if (server.usesLogReplication()) {
+            return server.reserveTickets(secondaryRequest.getReservationsList(), 0);
+        }
 
-                ReserveTicketRequest secondaryRequest = ReserveTicketRequest.newBuilder()
-                        .setShowId(request.getShowId())
-                        .setSeatType(request.getSeatType())
-                        .setQuantity(request.getQuantity())
-                        .setIncludeAfterParty(request.getIncludeAfterParty())
-                        .setCustomerId(request.getCustomerId())
-                        .setIsSentByPrimary(true)
-                        .build();
+        TransactionContext<List<ReserveTicketRequest>> context = transactions.start(secondaryRequest.getTransactionId(),
+                "RESERVE_BATCH", secondaryRequest.getReservationsList(), new DistributedTxCoordinator(this));
+        DistributedTxCoordinator coordinator = context.getTransaction();
+        int followers;
+        try {
+            followers = server.sendToFollowers("replicateReservations", (channel, deadline) -> CustomerServiceGrpc.newFutureStub(channel)
+                    .withDeadline(deadline)
+                    .replicateReservations(secondaryRequest), ReplicateReservationsResponse::getStatus).size();
+        } catch (Exception e) {
+            coordinator.abort();
+            throw e;
+        }
 
-                clientStub.reserveTicket(secondaryRequest);
-            } finally {
-                closeChannel(channel, IPAddress, port);
-            }
+        coordinator.perform(followers);
+        if (!context.isCommitted()) {
+            throw new IllegalStateException("Transaction " + context.getTransactionId() + " was aborted");
         }
+        return context.getResult();
     }
 
-    
-    private void closeChannel(ManagedChannel channel, String ipAddress, int port) {
-        if (channel != null) {
-            try {
-                
-                boolean terminated = channel.shutdown()
-                        .awaitTermination(CHANNEL_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    @Override
+    public void onGlobalCommit(String transactionId) {
+        TransactionContext<List<ReserveTicketRequest>> context = transactions.finish(transactionId);
+        if (context != null) {
+            context.setCommitted(true, server.reserveTickets(context.getData(), context.getDecisionZxid()));
+            return;
+        }
+        TransactionContext<List<String>> holdContext = holdTransactions.finish(transactionId);
+        if (holdContext != null) {
+            holdContext.setCommitted(true, server.settleHolds(holdContext.getOperation(), holdContext.getData(),
+                    holdContext.getDecisionZxid()));
+        }
+    }
 
-                if (!terminated) {
-                    logger.warning("Channel to " + ipAddress + ":" + port +
-                            " did not terminate in " + CHANNEL_SHUTDOWN_TIMEOUT_SECONDS +
-                            " seconds. Forcing shutdown.");
+    @Override
+    public void onGlobalAbort(String transactionId) {
+        transactions.finish(transactionId);
+        holdTransactions.finish(transactionId);
+        logger.info("Transaction " + transactionId + " Aborted by the Coordinator");
+    }
 
-                    
-                    channel.shutdownNow();
+    /** Answers a read this follower is too far behind for from the primary. */
+    private <T> void forwardToPrimary(io.grpc.stub.StreamObserver<T> responseObserver,
+                                      Function<CustomerServiceGrpc.CustomerServiceBlockingStub, T> call) {
+        logger.info("Forwarding read to the Primary server");
+        try {
+            responseObserver.onNext(call.apply(primaryStub()));
+            responseObserver.onCompleted();
+        } catch (StatusRuntimeException e) {
+            responseObserver.onError(e);
+        } catch (RuntimeException e) {
+            responseObserver.onError(Status.UNAVAILABLE.withDescription("No primary to forward the read to").asRuntimeException());
+        }
+    }
 
-                    
-                    if (!channel.awaitTermination(CHANNEL_SHUTDOWN_TIMEOUT_SECONDS/2, TimeUnit.SECONDS)) {
-                        logger.severe("Channel to " + ipAddress + ":" + port +
-                                " could not be terminated even after forced shutdown.");
-                    }
+    /**
+     * Forwards a reservation to the leader of its show's shard. A request
+     * with an idempotency key is sent again when the leader could not be
+     * reached or did not answer in time, e.g. while it fails over, as the
+     * leader answers a repeat with the first reservation.
+     */
+    private ReserveTicketResponse callPrimary(ReserveTicketRequest request) throws InterruptedException {
+        logger.info("Calling Primary server for ticket reservation");
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return shardLeaderStub(request.getShowId()).reserveTicket(request);
+            } catch (StatusRuntimeException e) {
+                Status.Code code = e.getStatus().getCode();
+                if (request.getIdempotencyKey().isEmpty() || attempt == FORWARD_ATTEMPTS
+                        || (code != Status.Code.UNAVAILABLE && code != Status.Code.DEADLINE_EXCEEDED)) {
+                    throw e;
                 }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                logger.severe("Interrupted while closing channel to " + ipAddress + ":" + port);
-                channel.shutdownNow();
+                logger.info("Retrying reservation " + request.getIdempotencyKey() + " after " + code);
+                Thread.sleep(FORWARD_RETRY_MILLIS * attempt);
             }
         }
     }
-}
\ No newline at end of file
+
+    private CustomerServiceGrpc.CustomerServiceBlockingStub shardLeaderStub(String showId) {
+        return stubFor(server.getShardLeaderData(showId));
+    }
+
+    private CustomerServiceGrpc.CustomerServiceBlockingStub primaryStub() {
+        return stubFor(server.getCurrentLeaderData());
+    }
+
+    private CustomerServiceGrpc.CustomerServiceBlockingStub stubFor(String[] leaderData) {
+        return CustomerServiceGrpc.newBlockingStub(server.getPeerChannel(leaderData[0], Integer.parseInt(leaderData[1])))
+                .withDeadlineAfter(FORWARD_DEADLINE_SECONDS, TimeUnit.SECONDS);
+    }
+}
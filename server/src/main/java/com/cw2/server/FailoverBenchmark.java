@@ -0,0 +1,86 @@
+package com.cw2.server;
+
+import ds.tutorial.communication.grpc.generated.*;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.StatusRuntimeException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long writes are unavailable across a leader failover. It
+ * keeps sending addConcert to one node of a running cluster, preferably a
+ * follower, and reports every window in which writes failed. Kill the
+ * primary while it runs; the window it reports is the failover time as a
+ * client sees it.
+ */
+public class FailoverBenchmark {
+    private static final long CALL_DEADLINE_MILLIS = 2000;
+
+    public static void main(String[] args) throws InterruptedException {
+        String host = args.length > 0 ? args[0].trim() : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1].trim()) : 11436;
+        long runSeconds = args.length > 2 ? Long.parseLong(args[2].trim()) : 60;
+        long intervalMillis = args.length > 3 ? Long.parseLong(args[3].trim()) : 20;
+
+        ManagedChannel channel = ManagedChannelBuilder.forAddress(host, port).usePlaintext().build();
+        ConcertOrganizerServiceGrpc.ConcertOrganizerServiceBlockingStub organizer = ConcertOrganizerServiceGrpc.newBlockingStub(channel);
+        System.out.println("Writing to " + host + ":" + port + " every " + intervalMillis + " ms for " + runSeconds + " s");
+
+        String prefix = "failover-" + UUID.randomUUID() + "-";
+        List<Long> outages = new ArrayList<>();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(runSeconds);
+        long failingSince = -1;
+        long writes = 0;
+        long failures = 0;
+        while (System.nanoTime() < end) {
+            long start = System.nanoTime();
+            boolean ok;
+            String error = null;
+            try {
+                ok = organizer.withDeadlineAfter(CALL_DEADLINE_MILLIS, TimeUnit.MILLISECONDS)
+                        .addConcert(AddConcertRequest.newBuilder()
+                                .setShow(ConcertShow.newBuilder()
+                                        .setId(prefix + writes)
+                                        .setName("Failover probe " + writes)
+                                        .addSeatTiers(SeatTier.newBuilder().setType("Regular").setPrice(10.0).setAvailable(1)))
+                                .build())
+                        .getStatus();
+            } catch (StatusRuntimeException e) {
+                ok = false;
+                error = e.getStatus().getCode().toString();
+            }
+            writes++;
+            if (!ok) {
+                failures++;
+                if (failingSince < 0) {
+                    failingSince = start;
+                    System.out.println("Writes started failing" + (error != null ? " (" + error + ")" : ""));
+                }
+            } else if (failingSince >= 0) {
+                long outage = System.nanoTime() - failingSince;
+                outages.add(outage);
+                System.out.println(String.format("Writes recovered after %.0f ms", outage / 1e6));
+                failingSince = -1;
+            }
+            long pause = intervalMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (pause > 0) {
+                Thread.sleep(pause);
+            }
+        }
+        channel.shutdownNow();
+
+        if (failingSince >= 0) {
+            System.out.println(String.format("Writes were still failing at the end, for %.0f ms", (System.nanoTime() - failingSince) / 1e6));
+        }
+        long longest = 0;
+        for (long outage : outages) {
+            longest = Math.max(longest, outage);
+        }
+        System.out.println(String.format("%d writes, %d failed, %d outages, longest %.0f ms",
+                writes, failures, outages.size(), longest / 1e6));
+    }
+}
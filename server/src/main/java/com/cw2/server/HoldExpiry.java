@@ -0,0 +1,111 @@
+package com.cw2.server;
+
+import ds.tutorial.communication.grpc.generated.Reservation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Releases ticket holds that were neither confirmed nor released in time.
+ * Only the leader of a show's shard tracks its holds in a {@link TimingWheel}:
+ * it arms each hold it writes, and every hold of a shard it takes over. On
+ * each tick it collects the expired holds and releases them through the
+ * replicated path, up to {@code maxBatch} per commit. A hold whose shard this
+ * node no longer leads is dropped, as the new leader armed it on taking over;
+ * holds settled in the meantime are skipped. A failed release is retried
+ * after a pause.
+ */
+public class HoldExpiry {
+    public static final long DEFAULT_TICK_MILLIS = 100;
+    public static final int DEFAULT_MAX_BATCH = 256;
+    private static final long RETRY_MILLIS = 1000;
+
+    /** Releases a batch of holds cluster-wide. */
+    public interface Releaser {
+        void release(List<String> holdIds) throws Exception;
+    }
+
+    private final ConcertServer server;
+    private final Releaser releaser;
+    private final long tickMillis;
+    private final int maxBatch;
+    private final TimingWheel<String> wheel;
+
+    public HoldExpiry(ConcertServer server, Releaser releaser, long tickMillis, int maxBatch) {
+        this.server = server;
+        this.releaser = releaser;
+        this.tickMillis = Math.max(1, tickMillis);
+        this.maxBatch = Math.max(1, maxBatch);
+        this.wheel = new TimingWheel<>(this.tickMillis, System.currentTimeMillis());
+    }
+
+    public void schedule(String holdId, long holdUntilMillis) {
+        wheel.schedule(holdId, holdUntilMillis);
+    }
+
+    public void start() {
+        Thread thread = new Thread(this::run, "hold-expiry");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                Thread.sleep(tickMillis);
+                expire(wheel.advance(System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                System.out.println("Hold expiry failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void expire(List<String> expired) {
+        List<Reservation> batch = new ArrayList<>(Math.min(expired.size(), maxBatch));
+        for (String holdId : expired) {
+            Reservation hold = server.getHold(holdId);
+            if (hold == null) {
+                // confirmed or released already
+                continue;
+            }
+            if (!server.startShardWrite(hold.getShowId())) {
+                // the shard moved; its new leader expires the hold
+                continue;
+            }
+            batch.add(hold);
+            if (batch.size() == maxBatch) {
+                release(batch);
+            }
+        }
+        if (!batch.isEmpty()) {
+            release(batch);
+        }
+    }
+
+    private void release(List<Reservation> batch) {
+        List<String> holdIds = new ArrayList<>(batch.size());
+        for (Reservation hold : batch) {
+            holdIds.add(hold.getReservationId());
+        }
+        long start = System.nanoTime();
+        try {
+            releaser.release(holdIds);
+            System.out.println("Released " + holdIds.size() + " expired holds in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } catch (Exception e) {
+            System.out.println("Could not release " + holdIds.size() + " expired holds: " + e.getMessage());
+            for (String holdId : holdIds) {
+                wheel.schedule(holdId, System.currentTimeMillis() + RETRY_MILLIS);
+            }
+        } finally {
+            for (Reservation hold : batch) {
+                server.finishShardWrite(hold.getShowId());
+            }
+            batch.clear();
+        }
+    }
+}
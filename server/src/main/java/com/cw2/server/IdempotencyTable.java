@@ -0,0 +1,106 @@
+package com.cw2.server;
+
+import ds.tutorial.communication.grpc.generated.IdempotencyRecord;
+import ds.tutorial.communication.grpc.generated.ReserveTicketRequest;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Reservation IDs by client idempotency key, so a retried reservation gets
+ * the ID of the first attempt instead of booking again. Keys are scoped to
+ * the customer, and a key only matches a retry of the request it was
+ * recorded for, as told by its {@link #fingerprint(List)}. The table keeps at most {@code maxEntries} keys, each for
+ * {@code ttlMillis}; the oldest go first when it is full.
+ */
+public class IdempotencyTable {
+    public static final int DEFAULT_MAX_ENTRIES = 100_000;
+    public static final long DEFAULT_TTL_MILLIS = 60 * 60 * 1000;
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    // insertion order is expiry order, as every key lives for the same time
+    private final LinkedHashMap<String, IdempotencyRecord> records = new LinkedHashMap<>();
+
+    public IdempotencyTable(int maxEntries, long ttlMillis) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.ttlMillis = ttlMillis;
+    }
+
+    private static String scoped(String customerId, String key) {
+        return customerId + "\u0000" + key;
+    }
+
+    /**
+     * Returns what a retry of reservations has to repeat: the show, tier,
+     * quantity and after-party choice of each of them, in order.
+     */
+    public static String fingerprint(List<ReserveTicketRequest> reservations) {
+        StringBuilder fingerprint = new StringBuilder();
+        for (ReserveTicketRequest reservation : reservations) {
+            fingerprint.append(reservation.getShowId()).append('\u0000')
+                    .append(reservation.getSeatType()).append('\u0000')
+                    .append(reservation.getQuantity()).append('\u0000')
+                    .append(reservation.getIncludeAfterParty()).append('\u0000');
+        }
+        return fingerprint.toString();
+    }
+
+    /** Returns the record for the key, or null if it is unknown or expired. */
+    public synchronized IdempotencyRecord find(String customerId, String key) {
+        IdempotencyRecord record = records.get(scoped(customerId, key));
+        if (record == null || record.getExpiresAtMillis() <= System.currentTimeMillis()) {
+            return null;
+        }
+        return record;
+    }
+
+    public synchronized void record(String customerId, String key, String reservationId, String fingerprint) {
+        put(IdempotencyRecord.newBuilder()
+                .setCustomerId(customerId)
+                .setKey(key)
+                .setReservationId(reservationId)
+                .setFingerprint(fingerprint)
+                .setExpiresAtMillis(System.currentTimeMillis() + ttlMillis)
+                .build());
+    }
+
+    private void put(IdempotencyRecord record) {
+        String scoped = scoped(record.getCustomerId(), record.getKey());
+        records.remove(scoped);
+        records.put(scoped, record);
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, IdempotencyRecord>> oldest = records.entrySet().iterator();
+        while (oldest.hasNext()) {
+            IdempotencyRecord next = oldest.next().getValue();
+            if (records.size() <= maxEntries && next.getExpiresAtMillis() > now) {
+                break;
+            }
+            oldest.remove();
+        }
+    }
+
+    public synchronized void forEach(Consumer<IdempotencyRecord> consumer) {
+        records.values().forEach(consumer);
+    }
+
+    /** Adds the records taken from another node for keys this table does not know, keeping their expiry. */
+    public synchronized void mergeWith(Iterable<IdempotencyRecord> imported) {
+        for (IdempotencyRecord record : imported) {
+            if (!records.containsKey(scoped(record.getCustomerId(), record.getKey()))) {
+                put(record);
+            }
+        }
+    }
+
+    /** Replaces the table with records taken from another node, keeping their expiry. */
+    public synchronized void replaceWith(Iterable<IdempotencyRecord> imported) {
+        records.clear();
+        for (IdempotencyRecord record : imported) {
+            put(record);
+        }
+    }
+}
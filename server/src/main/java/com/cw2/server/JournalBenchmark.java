@@ -0,0 +1,98 @@
+package com.cw2.server;
+
+import ds.tutorial.communication.grpc.generated.JournalEntry;
+import ds.tutorial.communication.grpc.generated.ReserveTicketRequest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures what the journal costs a committing thread under each durability
+ * setting: appends reservation-sized entries from concurrent writers and
+ * reports throughput and commit latency percentiles.
+ */
+public class JournalBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0].trim()) : 8;
+        int entriesPerThread = args.length > 1 ? Integer.parseInt(args[1].trim()) : 5000;
+        long flushIntervalMillis = args.length > 2 ? Long.parseLong(args[2].trim()) : 0;
+
+        System.out.println("Writers: " + threads + ", entries per writer: " + entriesPerThread
+                + ", group flush interval: " + flushIntervalMillis + " ms");
+        System.out.println(String.format("%-8s %12s %12s %12s %12s", "mode", "commits/s", "p50 us", "p99 us", "max us"));
+
+        for (ConcertJournal.Durability durability : ConcertJournal.Durability.values()) {
+            runCase(durability, threads, entriesPerThread, flushIntervalMillis);
+        }
+    }
+
+    private static void runCase(ConcertJournal.Durability durability, int threads, int entriesPerThread,
+                                long flushIntervalMillis) throws Exception {
+        File directory = Files.createTempDirectory("concert-journal-bench").toFile();
+        ConcertJournal journal = new ConcertJournal(directory, durability, flushIntervalMillis, ConcertJournal.DEFAULT_SEGMENT_BYTES);
+        journal.open(entry -> { });
+
+        long[] latencies = new long[threads * entriesPerThread];
+        AtomicLong sequence = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            int offset = t * entriesPerThread;
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < entriesPerThread; i++) {
+                        JournalEntry entry = JournalEntry.newBuilder()
+                                .setSequence(sequence.incrementAndGet())
+                                .setOperation("RESERVE_TICKET")
+                                .setReservation(ReserveTicketRequest.newBuilder()
+                                        .setShowId("bench-show")
+                                        .setSeatType("Regular")
+                                        .setQuantity(2)
+                                        .setCustomerId("bench-customer"))
+                                .setReservationId(UUID.randomUUID().toString())
+                                .build();
+                        long begin = System.nanoTime();
+                        journal.awaitDurable(journal.append(entry));
+                        latencies[offset + i] = System.nanoTime() - begin;
+                    }
+                } catch (InterruptedException | IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        double elapsedSeconds = (System.nanoTime() - begin) / 1e9;
+        journal.close();
+        deleteDirectory(directory);
+
+        Arrays.sort(latencies);
+        System.out.println(String.format("%-8s %12.0f %12d %12d %12d", durability,
+                latencies.length / elapsedSeconds,
+                latencies[latencies.length / 2] / 1000,
+                latencies[(int) (latencies.length * 0.99)] / 1000,
+                latencies[latencies.length - 1] / 1000));
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,225 @@
+package com.cw2.server;
+
+import ds.tutorial.communication.grpc.generated.*;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leader side of the log replication mode. The leader keeps one
+ * bidirectional {@code replicateLog} stream open to every follower and sends
+ * each journal entry down all of them in commit order; a write completes once
+ * every in-sync follower has acknowledged its sequence, and fails if those
+ * that did are no majority of the cluster with the leader.
+ * <p>
+ * Entries, stream headers and snapshots carry the leader's election term. A
+ * stream starts with the leader's current sequence and the term of its last
+ * entry. A follower that is not exactly there, or whose last entry is of
+ * another term, asks for a snapshot and is brought up to date with the full
+ * state, after which it counts as in sync. A follower that already accepted a
+ * newer term refuses the stream, so a deposed leader cannot gather a majority.
+ * A follower that misses the ack deadline is dropped and caught up the same
+ * way on the next membership refresh, so one slow node cannot stall writes.
+ * <p>
+ * Everything sent on the streams is sent under the server's sequencer, which
+ * numbers every commit as it is journaled. Entries therefore go out in
+ * sequence order, and a stream header lands exactly between two entries. A
+ * snapshot is taken and sent while the server keeps every show from
+ * changing, so it lands between two entries as well. It goes out in pieces
+ * that each fit in a gRPC message, which the follower puts back together
+ * before loading it.
+ */
+public class LogReplicator {
+    private final ConcertServer server;
+    private final Object sequencer;
+    private final PeerChannelRegistry channels;
+    private final long ackTimeoutMillis;
+    private final Map<String, Follower> followers = new ConcurrentHashMap<>();
+    private volatile int members = 0;
+    private final Object ackMonitor = new Object();
+
+    private class Follower implements StreamObserver<LogAck> {
+        private final String member;
+        private StreamObserver<LogAppend> stream;
+        private volatile long syncPoint;
+        private volatile long ackedSequence = -1;
+        private volatile boolean inSync = false;
+        private boolean closed = false;
+
+        Follower(String member) {
+            this.member = member;
+        }
+
+        @Override
+        public void onNext(LogAck ack) {
+            if (ack.getNeedsSnapshot()) {
+                System.out.println("Follower " + member + " is at sequence " + ack.getSequence() + ". Sending a snapshot");
+                server.exportState(snapshot -> {
+                    synchronized (sequencer) {
+                        if (closed) {
+                            return;
+                        }
+                        syncPoint = snapshot.getSequence();
+                        List<ServerState> chunks = StateChunks.split(snapshot, StateChunks.DEFAULT_CHUNK_BYTES);
+                        for (int i = 0; i < chunks.size(); i++) {
+                            stream.onNext(LogAppend.newBuilder()
+                                    .setSnapshot(chunks.get(i))
+                                    .setSnapshotContinued(i < chunks.size() - 1)
+                                    .build());
+                        }
+                    }
+                });
+                return;
+            }
+            ackedSequence = ack.getSequence();
+            if (!inSync && ackedSequence >= syncPoint) {
+                System.out.println("Follower " + member + " is in sync at sequence " + ackedSequence);
+                inSync = true;
+            }
+            synchronized (ackMonitor) {
+                ackMonitor.notifyAll();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            System.out.println("Log stream to " + member + " failed: " + Status.fromThrowable(t));
+            drop(this);
+        }
+
+        @Override
+        public void onCompleted() {
+            drop(this);
+        }
+    }
+
+    public LogReplicator(ConcertServer server, Object sequencer, PeerChannelRegistry channels, long ackTimeoutMillis) {
+        this.server = server;
+        this.sequencer = sequencer;
+        this.channels = channels;
+        this.ackTimeoutMillis = ackTimeoutMillis;
+    }
+
+    /** Opens streams to new members ({host, port} pairs) and closes those to members that left. */
+    public synchronized void syncMembers(List<String[]> peers) {
+        members = peers.size();
+        Set<String> current = new HashSet<>();
+        for (String[] peer : peers) {
+            String member = ConcertServer.buildServerData(peer[0], Integer.parseInt(peer[1]));
+            current.add(member);
+            if (!followers.containsKey(member)) {
+                open(member, peer[0], Integer.parseInt(peer[1]));
+            }
+        }
+        for (Follower follower : new ArrayList<>(followers.values())) {
+            if (!current.contains(follower.member)) {
+                close(follower, null);
+            }
+        }
+    }
+
+    private void open(String member, String host, int port) {
+        Follower follower = new Follower(member);
+        synchronized (sequencer) {
+            // registered first, so a stream that fails straight away is dropped again
+            followers.put(member, follower);
+            follower.stream = ReplicationServiceGrpc.newStub(channels.channelFor(host, port)).replicateLog(follower);
+            follower.syncPoint = server.getCommitSequence();
+            follower.stream.onNext(LogAppend.newBuilder()
+                    .setTerm(server.getLeaderTerm())
+                    .setBaseSequence(follower.syncPoint)
+                    .setBaseTerm(server.getLogTerm())
+                    .build());
+        }
+        System.out.println("Opened log stream to " + member + " at sequence " + follower.syncPoint
+                + " in term " + server.getLeaderTerm());
+    }
+
+    /** Sends a committed entry to every follower. Must be called under the sequencer, in sequence order. */
+    public void send(JournalEntry entry) {
+        if (followers.isEmpty()) {
+            return;
+        }
+        LogAppend append = LogAppend.newBuilder().addEntries(entry).build();
+        for (Follower follower : followers.values()) {
+            follower.stream.onNext(append);
+        }
+    }
+
+    /**
+     * Waits until every in-sync follower has acknowledged {@code sequence},
+     * and enough followers to make a majority of the current members with the
+     * leader. Followers still behind at the deadline are dropped from the
+     * stream set. Throws if no majority acknowledged in time, which fails the
+     * write; the entry stays in the leader's log and reaches the followers
+     * that catch up later.
+     */
+    public void awaitAcked(long sequence) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ackTimeoutMillis);
+        int quorum = (members + 1) / 2;
+        int acked;
+        List<Follower> lagging = new ArrayList<>();
+        synchronized (ackMonitor) {
+            while (true) {
+                lagging.clear();
+                acked = 0;
+                for (Follower follower : followers.values()) {
+                    if (follower.ackedSequence >= sequence) {
+                        acked++;
+                    } else if (follower.inSync) {
+                        lagging.add(follower);
+                    }
+                }
+                long remaining = deadline - System.nanoTime();
+                if ((lagging.isEmpty() && acked >= quorum) || remaining <= 0) {
+                    break;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(ackMonitor, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        for (Follower follower : lagging) {
+            System.out.println("Follower " + follower.member + " did not acknowledge sequence " + sequence
+                    + " in time. Dropping it until it catches up");
+            close(follower, Status.DEADLINE_EXCEEDED.asRuntimeException());
+        }
+        if (acked < quorum) {
+            throw new IllegalStateException("Sequence " + sequence + " was acknowledged by " + acked + " of the "
+                    + quorum + " followers needed for a majority");
+        }
+    }
+
+    /** Drops a follower and ends its stream, with {@code error} or normally if null. */
+    private void close(Follower follower, Throwable error) {
+        drop(follower);
+        synchronized (sequencer) {
+            if (follower.closed) {
+                return;
+            }
+            follower.closed = true;
+            if (error != null) {
+                follower.stream.onError(error);
+            } else {
+                follower.stream.onCompleted();
+            }
+        }
+    }
+
+    private void drop(Follower follower) {
+        followers.remove(follower.member, follower);
+        synchronized (ackMonitor) {
+            ackMonitor.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.cw2.server;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Long-lived channels to the other cluster members, keyed by the
+ * {@code host:port} data they publish in the leader election. A channel is
+ * created on first use and reused by every later forward or fan-out, so calls
+ * to a known peer cost one round trip instead of a new connection.
+ * {@link #retainOnly(Collection)} closes channels to peers that left and
+ * starts connecting to ones that joined.
+ */
+public class PeerChannelRegistry {
+    private final Map<String, ManagedChannel> channels = new ConcurrentHashMap<>();
+
+    public ManagedChannel channelFor(String host, int port) {
+        return channels.computeIfAbsent(ConcertServer.buildServerData(host, port), key -> open(host, port));
+    }
+
+    /** Keeps the channels to {@code members} (as host:port) and closes the rest. */
+    public void retainOnly(Collection<String> members) {
+        Set<String> current = new HashSet<>(members);
+        channels.entrySet().removeIf(entry -> {
+            if (current.contains(entry.getKey())) {
+                return false;
+            }
+            System.out.println("Closing channel to departed peer " + entry.getKey());
+            entry.getValue().shutdown();
+            return true;
+        });
+        for (String member : current) {
+            int separator = member.lastIndexOf(':');
+            if (separator > 0 && !channels.containsKey(member)) {
+                // connect ahead of the first call
+                channelFor(member.substring(0, separator), Integer.parseInt(member.substring(separator + 1)))
+                        .getState(true);
+            }
+        }
+    }
+
+    public void shutdown() {
+        for (ManagedChannel channel : channels.values()) {
+            channel.shutdown();
+        }
+        channels.clear();
+    }
+
+    private static ManagedChannel open(String host, int port) {
+        return ManagedChannelBuilder.forAddress(host, port)
+                .usePlaintext()
+                .build();
+    }
+}
@@ -0,0 +1,122 @@
+package com.cw2.server;
+
+import ds.tutorial.communication.grpc.generated.ReplicationServiceGrpc;
+import ds.tutorial.communication.grpc.generated.StateVersionRequest;
+import ds.tutorial.communication.grpc.generated.StateVersionResponse;
+import io.grpc.stub.StreamObserver;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Decides whether this node may answer a read itself. A read can ask for at
+ * least a given commit sequence, and for state at most some milliseconds
+ * behind the leader. The leader always answers. A follower checks a minimum
+ * sequence only in log replication mode, where the leader assigns sequences;
+ * with two-phase commit they count each node's own commits, so such reads go
+ * to the leader.
+ *
+ * A follower bounds its staleness by asking the leader for its position: its
+ * sequence in log replication mode, or the decision zxid of every shard with
+ * two-phase commit. Once the follower has applied what the leader had when
+ * the probe was sent, its state is no older than the probe. One probe serves every read until it is
+ * too old for the bound a read asks for. Probes run in the background, one at
+ * a time, and are renewed when half of that bound has passed; a read never
+ * waits for one and is forwarded while no probe is fresh enough.
+ */
+public class ReadConsistency {
+    private static final long PROBE_DEADLINE_MILLIS = 1000;
+
+    private final ConcertServer server;
+    private final AtomicBoolean probing = new AtomicBoolean(false);
+    private volatile Probe latest;
+
+    private static class Probe {
+        final long leaderSequence;
+        final List<Long> leaderPositions;
+        final long sentNanos;
+
+        Probe(long leaderSequence, List<Long> leaderPositions, long sentNanos) {
+            this.leaderSequence = leaderSequence;
+            this.leaderPositions = leaderPositions;
+            this.sentNanos = sentNanos;
+        }
+
+        boolean youngerThan(long maxStalenessMs) {
+            return System.nanoTime() - sentNanos <= TimeUnit.MILLISECONDS.toNanos(maxStalenessMs);
+        }
+    }
+
+    public ReadConsistency(ConcertServer server) {
+        this.server = server;
+    }
+
+    /** Returns whether this node can serve a read with these bounds; 0 means no bound. */
+    public boolean canServeLocally(long minSequence, long maxStalenessMs) {
+        if (server.isLeader() || (minSequence <= 0 && maxStalenessMs <= 0)) {
+            return true;
+        }
+        if (minSequence > 0 && (!server.usesLogReplication() || minSequence > server.getCommitSequence())) {
+            return false;
+        }
+        if (maxStalenessMs <= 0) {
+            return true;
+        }
+        Probe probe = latest;
+        if (probe == null || !probe.youngerThan(maxStalenessMs / 2)) {
+            probeLeader();
+        }
+        return probe != null && probe.youngerThan(maxStalenessMs) && caughtUpWith(probe);
+    }
+
+    /** Whether this node has applied everything the leader had applied when it answered the probe. */
+    private boolean caughtUpWith(Probe probe) {
+        if (server.usesLogReplication()) {
+            return server.getCommitSequence() >= probe.leaderSequence;
+        }
+        if (probe.leaderPositions.size() != server.getShardCount()) {
+            return false;
+        }
+        for (int shard = 0; shard < server.getShardCount(); shard++) {
+            if (server.getReplicationPosition(shard) < probe.leaderPositions.get(shard)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Sends a probe to the leader unless one is already on its way. */
+    private void probeLeader() {
+        if (!probing.compareAndSet(false, true)) {
+            return;
+        }
+        long sent = System.nanoTime();
+        try {
+            String[] leader = server.getCurrentLeaderData();
+            ReplicationServiceGrpc.newStub(server.getPeerChannel(leader[0], Integer.parseInt(leader[1])))
+                    .withDeadlineAfter(PROBE_DEADLINE_MILLIS, TimeUnit.MILLISECONDS)
+                    .getStateVersion(StateVersionRequest.getDefaultInstance(), new StreamObserver<StateVersionResponse>() {
+                        @Override
+                        public void onNext(StateVersionResponse response) {
+                            latest = new Probe(response.getSequence(), response.getPositionsList(), sent);
+                        }
+
+                        @Override
+                        public void onError(Throwable t) {
+                            System.out.println("Could not read the leader's sequence: " + t.getMessage());
+                            probing.set(false);
+                        }
+
+                        @Override
+                        public void onCompleted() {
+                            probing.set(false);
+                        }
+                    });
+        } catch (RuntimeException e) {
+            // no leader known yet
+            System.out.println("Could not read the leader's sequence: " + e.getMessage());
+            probing.set(false);
+        }
+    }
+}
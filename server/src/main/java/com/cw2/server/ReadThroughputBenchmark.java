@@ -0,0 +1,69 @@
+package com.cw2.server;
+
+import ds.tutorial.communication.grpc.generated.*;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures getConcert throughput against a running cluster with the reads
+ * spread over the given nodes, so it can be compared between the primary
+ * alone and the primary with its followers. Reads carry the given staleness
+ * bound; followers answer them locally while they are within it.
+ */
+public class ReadThroughputBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        String host = args.length > 0 ? args[0].trim() : "localhost";
+        String[] ports = (args.length > 1 ? args[1] : "11436").split(",");
+        int threads = args.length > 2 ? Integer.parseInt(args[2].trim()) : 16;
+        long runMillis = args.length > 3 ? Long.parseLong(args[3].trim()) : 5000;
+        long maxStalenessMs = args.length > 4 ? Long.parseLong(args[4].trim()) : 100;
+
+        List<ManagedChannel> channels = new ArrayList<>();
+        for (String port : ports) {
+            channels.add(ManagedChannelBuilder.forAddress(host, Integer.parseInt(port.trim())).usePlaintext().build());
+        }
+        String showId = "read-bench-" + UUID.randomUUID();
+        ConcertOrganizerServiceGrpc.newBlockingStub(channels.get(0)).addConcert(AddConcertRequest.newBuilder()
+                .setShow(ConcertShow.newBuilder()
+                        .setId(showId)
+                        .setName("Read benchmark show")
+                        .addSeatTiers(SeatTier.newBuilder().setType("Regular").setPrice(10.0).setAvailable(100)))
+                .build());
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder reads = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            CustomerServiceGrpc.CustomerServiceBlockingStub customer = CustomerServiceGrpc.newBlockingStub(channels.get(t % channels.size()));
+            Thread worker = new Thread(() -> {
+                GetConcertRequest request = GetConcertRequest.newBuilder()
+                        .setShowId(showId)
+                        .setMaxStalenessMs(maxStalenessMs)
+                        .build();
+                while (running.get()) {
+                    customer.getConcert(request);
+                    reads.increment();
+                }
+                done.countDown();
+            });
+            worker.setDaemon(true);
+            worker.start();
+        }
+        Thread.sleep(runMillis);
+        running.set(false);
+        done.await();
+        for (ManagedChannel channel : channels) {
+            channel.shutdownNow();
+        }
+
+        System.out.println(String.format("%d nodes, %d threads, max staleness %d ms: %.0f reads/s",
+                channels.size(), threads, maxStalenessMs, reads.sum() * 1000.0 / runMillis));
+    }
+}
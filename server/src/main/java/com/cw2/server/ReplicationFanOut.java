@@ -0,0 +1,68 @@
+package com.cw2.server;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import io.grpc.Deadline;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends one replicated request to every follower at once through future
+ * stubs and waits for all of them, so a write costs the slowest follower's
+ * round trip rather than the sum over all followers. Every call carries the
+ * same deadline, which bounds how long one stalled follower can hold up the
+ * write.
+ */
+public class ReplicationFanOut {
+    public static final long DEFAULT_PEER_DEADLINE_MILLIS = 10000;
+
+    /** Issues the request to one follower; the stub must use the given deadline. */
+    public interface PeerCall<T> {
+        ListenableFuture<T> send(ManagedChannel channel, Deadline deadline);
+    }
+
+    private final PeerChannelRegistry channels;
+    private final long peerDeadlineMillis;
+
+    public ReplicationFanOut(PeerChannelRegistry channels, long peerDeadlineMillis) {
+        this.channels = channels;
+        this.peerDeadlineMillis = peerDeadlineMillis;
+    }
+
+    /**
+     * Sends the request to every peer in {@code peers} ({host, port} pairs)
+     * and returns the responses in the same order. If any peer fails or misses
+     * the deadline, the first such failure is thrown once all calls settle.
+     */
+    public <T> List<T> send(String operation, List<String[]> peers, PeerCall<T> call) throws InterruptedException {
+        Deadline deadline = Deadline.after(peerDeadlineMillis, TimeUnit.MILLISECONDS);
+        List<ListenableFuture<T>> pending = new ArrayList<>(peers.size());
+        for (String[] peer : peers) {
+            pending.add(call.send(channels.channelFor(peer[0], Integer.parseInt(peer[1])), deadline));
+        }
+
+        List<T> responses = new ArrayList<>(peers.size());
+        StatusRuntimeException failure = null;
+        for (int i = 0; i < pending.size(); i++) {
+            try {
+                responses.add(pending.get(i).get());
+            } catch (ExecutionException e) {
+                Status status = Status.fromThrowable(e.getCause());
+                System.out.println(operation + " to " + peers.get(i)[0] + ":" + peers.get(i)[1] + " failed: " + status);
+                if (failure == null) {
+                    failure = status.asRuntimeException();
+                }
+                responses.add(null);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return responses;
+    }
+}
@@ -0,0 +1,130 @@
+package com.cw2.server;
+
+import ds.tutorial.communication.grpc.generated.BoxOfficeServiceGrpc;
+import ds.tutorial.communication.grpc.generated.UpdateTicketStockRequest;
+import ds.tutorial.communication.grpc.generated.UpdateTicketStockResponse;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the replication step of a write for clusters of 3, 5 and 7 nodes:
+ * one request per follower, sent one after another on blocking stubs versus
+ * all at once through {@link ReplicationFanOut}. Followers are local gRPC
+ * servers that answer after a configurable delay, with one of them slower
+ * than the rest.
+ */
+public class ReplicationFanOutBenchmark {
+    private static final int[] CLUSTER_SIZES = {3, 5, 7};
+
+    public static void main(String[] args) throws Exception {
+        int writes = args.length > 0 ? Integer.parseInt(args[0].trim()) : 200;
+        long followerDelayMillis = args.length > 1 ? Long.parseLong(args[1].trim()) : 5;
+        long slowFollowerDelayMillis = args.length > 2 ? Long.parseLong(args[2].trim()) : 20;
+
+        System.out.println("Writes per case: " + writes + ", follower delay: " + followerDelayMillis
+                + " ms, slow follower delay: " + slowFollowerDelayMillis + " ms");
+        System.out.println(String.format("%-8s %14s %14s %14s %14s", "nodes", "seq p50 ms", "seq p99 ms",
+                "fanout p50 ms", "fanout p99 ms"));
+
+        int maxFollowers = CLUSTER_SIZES[CLUSTER_SIZES.length - 1] - 1;
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(maxFollowers);
+        List<Server> followers = new ArrayList<>();
+        List<String[]> peers = new ArrayList<>();
+        for (int i = 0; i < maxFollowers; i++) {
+            long delay = i == 0 ? slowFollowerDelayMillis : followerDelayMillis;
+            Server follower = startFollower(scheduler, delay);
+            followers.add(follower);
+            peers.add(new String[]{"localhost", String.valueOf(follower.getPort())});
+        }
+
+        PeerChannelRegistry channels = new PeerChannelRegistry();
+        ReplicationFanOut fanOut = new ReplicationFanOut(channels, ReplicationFanOut.DEFAULT_PEER_DEADLINE_MILLIS);
+        UpdateTicketStockRequest request = UpdateTicketStockRequest.newBuilder()
+                .setShowId("bench-show")
+                .setSeatType("Regular")
+                .setAdditionalTickets(1)
+                .setIsSentByPrimary(true)
+                .build();
+
+        // warm up connections and both code paths
+        runSequential(channels, peers, request, writes / 4 + 1);
+        runFanOut(fanOut, peers, request, writes / 4 + 1);
+
+        for (int nodes : CLUSTER_SIZES) {
+            List<String[]> clusterPeers = peers.subList(0, nodes - 1);
+            long[] sequential = runSequential(channels, clusterPeers, request, writes);
+            long[] parallel = runFanOut(fanOut, clusterPeers, request, writes);
+            System.out.println(String.format("%-8d %14.2f %14.2f %14.2f %14.2f", nodes,
+                    percentile(sequential, 0.5), percentile(sequential, 0.99),
+                    percentile(parallel, 0.5), percentile(parallel, 0.99)));
+        }
+
+        channels.shutdown();
+        for (Server follower : followers) {
+            follower.shutdownNow();
+        }
+        scheduler.shutdownNow();
+    }
+
+    private static Server startFollower(ScheduledExecutorService scheduler, long delayMillis) throws IOException {
+        Random jitter = new Random();
+        return ServerBuilder.forPort(0)
+                .addService(new BoxOfficeServiceGrpc.BoxOfficeServiceImplBase() {
+                    @Override
+                    public void updateTicketStock(UpdateTicketStockRequest request,
+                                                  StreamObserver<UpdateTicketStockResponse> responseObserver) {
+                        long delayMicros = delayMillis * 1000 + jitter.nextInt((int) Math.max(1, delayMillis * 200));
+                        scheduler.schedule(() -> {
+                            responseObserver.onNext(UpdateTicketStockResponse.newBuilder().setStatus(true).build());
+                            responseObserver.onCompleted();
+                        }, delayMicros, TimeUnit.MICROSECONDS);
+                    }
+                })
+                .build()
+                .start();
+    }
+
+    private static long[] runSequential(PeerChannelRegistry channels, List<String[]> peers,
+                                        UpdateTicketStockRequest request, int writes) {
+        long[] latencies = new long[writes];
+        for (int i = 0; i < writes; i++) {
+            long begin = System.nanoTime();
+            for (String[] peer : peers) {
+                BoxOfficeServiceGrpc.newBlockingStub(channels.channelFor(peer[0], Integer.parseInt(peer[1])))
+                        .withDeadlineAfter(ReplicationFanOut.DEFAULT_PEER_DEADLINE_MILLIS, TimeUnit.MILLISECONDS)
+                        .updateTicketStock(request);
+            }
+            latencies[i] = System.nanoTime() - begin;
+        }
+        return latencies;
+    }
+
+    private static long[] runFanOut(ReplicationFanOut fanOut, List<String[]> peers,
+                                    UpdateTicketStockRequest request, int writes) throws InterruptedException {
+        long[] latencies = new long[writes];
+        for (int i = 0; i < writes; i++) {
+            long begin = System.nanoTime();
+            fanOut.send("updateTicketStock", peers, (channel, deadline) -> BoxOfficeServiceGrpc.newFutureStub(channel)
+                    .withDeadline(deadline)
+                    .updateTicketStock(request));
+            latencies[i] = System.nanoTime() - begin;
+        }
+        return latencies;
+    }
+
+    private static double percentile(long[] latencies, double fraction) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))] / 1e6;
+    }
+}
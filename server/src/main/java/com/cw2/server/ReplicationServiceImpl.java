@@ -0,0 +1,112 @@
+package com.cw2.server;
+
+import ds.tutorial.communication.grpc.generated.*;
+import io.grpc.Status;
+
+public class ReplicationServiceImpl extends ReplicationServiceGrpc.ReplicationServiceImplBase {
+    private ConcertServer server;
+
+    public ReplicationServiceImpl(ConcertServer server) {
+        this.server = server;
+    }
+
+    @Override
+    public void getStateVersion(StateVersionRequest request, io.grpc.stub.StreamObserver<StateVersionResponse> responseObserver) {
+        if (request.getShard() < 0 || request.getShard() >= server.getShardCount()) {
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                    .withDescription("No shard " + request.getShard()).asRuntimeException());
+            return;
+        }
+        StateVersionResponse.Builder response = StateVersionResponse.newBuilder()
+                .setSequence(server.getCommitSequence())
+                .setPosition(server.getReplicationPosition(request.getShard()));
+        for (int shard = 0; shard < server.getShardCount(); shard++) {
+            response.addPositions(server.getReplicationPosition(shard));
+        }
+
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+
+    /** Streams the state in pieces, which the caller merges in order, so it is not bound by the message size limit. */
+    @Override
+    public void getServerState(ServerStateRequest request, io.grpc.stub.StreamObserver<ServerState> responseObserver) {
+        StateChunks.split(server.exportState(), StateChunks.DEFAULT_CHUNK_BYTES, responseObserver::onNext);
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public io.grpc.stub.StreamObserver<LogAppend> replicateLog(io.grpc.stub.StreamObserver<LogAck> responseObserver) {
+        System.out.println("Leader opened a log stream");
+        return new io.grpc.stub.StreamObserver<LogAppend>() {
+            private boolean awaitingSnapshot = false;
+            private ServerState.Builder snapshot;
+            private long term = -1;
+            private boolean refused = false;
+
+            @Override
+            public void onNext(LogAppend append) {
+                if (refused) {
+                    return;
+                }
+                if (server.isLeader()) {
+                    refuse(Status.FAILED_PRECONDITION.withDescription("This node is the leader"));
+                    return;
+                }
+                boolean header = !append.hasSnapshot() && append.getEntriesCount() == 0;
+                if (header ? !server.acceptLogTerm(append.getTerm()) : !server.isAcceptedLogTerm(term)) {
+                    refuse(Status.FAILED_PRECONDITION.withDescription("Term "
+                            + (header ? append.getTerm() : term) + " is stale"));
+                    return;
+                }
+                LogAck.Builder ack = LogAck.newBuilder();
+                if (append.hasSnapshot()) {
+                    if (snapshot == null) {
+                        snapshot = append.getSnapshot().toBuilder();
+                    } else {
+                        snapshot.mergeFrom(append.getSnapshot());
+                    }
+                    if (append.getSnapshotContinued()) {
+                        return;
+                    }
+                    server.loadServerState(snapshot.build());
+                    snapshot = null;
+                    awaitingSnapshot = false;
+                } else if (header) {
+                    // in step only if at exactly the leader's sequence, with a last entry of the same term;
+                    // otherwise this log diverged or lags, and the snapshot replaces it
+                    term = append.getTerm();
+                    awaitingSnapshot = server.getCommitSequence() != append.getBaseSequence()
+                            || server.getLogTerm() != append.getBaseTerm();
+                    ack.setNeedsSnapshot(awaitingSnapshot);
+                } else if (!awaitingSnapshot) {
+                    long last = append.getEntries(append.getEntriesCount() - 1).getSequence();
+                    awaitingSnapshot = server.applyLogEntries(append.getEntriesList()) < last;
+                    ack.setNeedsSnapshot(awaitingSnapshot);
+                } else {
+                    // entries before the snapshot arrives are covered by it
+                    return;
+                }
+                responseObserver.onNext(ack.setSequence(server.getCommitSequence()).build());
+            }
+
+            private void refuse(Status status) {
+                System.out.println("Refusing the log stream: " + status.getDescription());
+                refused = true;
+                responseObserver.onError(status.asRuntimeException());
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                System.out.println("Log stream from the leader failed: " + Status.fromThrowable(t));
+            }
+
+            @Override
+            public void onCompleted() {
+                if (!refused) {
+                    responseObserver.onCompleted();
+                }
+            }
+        };
+    }
+}
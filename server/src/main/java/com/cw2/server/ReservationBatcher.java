@@ -0,0 +1,130 @@
+package com.cw2.server;
+
+import ds.tutorial.communication.grpc.generated.ReserveTicketRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commit for reservations on the leader. Requests are queued and a
+ * single thread commits them in batches, one distributed transaction per
+ * batch: the first request of a batch waits at most {@code windowMillis} for
+ * others to join, and a batch closes early once it holds {@code maxBatch}
+ * requests. Requests that arrive while a batch is committing are picked up
+ * by the next one, so under load the coordination cost is shared by many
+ * bookings. A group of reservations is queued as one entry, counts once
+ * towards {@code maxBatch} and stays together within its batch.
+ */
+public class ReservationBatcher {
+    public static final int DEFAULT_MAX_BATCH = 256;
+    public static final long DEFAULT_WINDOW_MILLIS = 2;
+
+    /**
+     * Commits one batch in order and returns, per request, the reservation ID
+     * or null if that request could not be served. Throws if the batch as a
+     * whole failed.
+     */
+    public interface Committer {
+        List<String> commit(List<ReserveTicketRequest> batch) throws Exception;
+    }
+
+    private static class Pending {
+        final List<ReserveTicketRequest> requests;
+        final CompletableFuture<List<String>> result = new CompletableFuture<>();
+
+        Pending(List<ReserveTicketRequest> requests) {
+            this.requests = requests;
+        }
+    }
+
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Committer committer;
+    private final int maxBatch;
+    private final long windowNanos;
+
+    public ReservationBatcher(Committer committer, int maxBatch, long windowMillis) {
+        this.committer = committer;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMillis));
+        Thread thread = new Thread(this::run, "reservation-batcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a reservation. The future completes with its reservation ID, with
+     * null if it failed on its own (e.g. the tier sold out), or exceptionally if
+     * its batch could not be committed.
+     */
+    public CompletableFuture<String> submit(ReserveTicketRequest request) {
+        return submitAll(Collections.singletonList(request)).thenApply(reservationIds -> reservationIds.get(0));
+    }
+
+    /**
+     * Queues reservations that are committed next to each other in the same
+     * batch. The future completes with a reservation ID or null per request,
+     * in order.
+     */
+    public CompletableFuture<List<String>> submitAll(List<ReserveTicketRequest> requests) {
+        Pending pending = new Pending(requests);
+        queue.add(pending);
+        return pending.result;
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        while (true) {
+            try {
+                batch.add(queue.take());
+                long closeAt = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatch) {
+                    queue.drainTo(batch, maxBatch - batch.size());
+                    long remaining = closeAt - System.nanoTime();
+                    if (batch.size() >= maxBatch || remaining <= 0) {
+                        break;
+                    }
+                    Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                commit(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<Pending> batch) {
+        List<ReserveTicketRequest> requests = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            requests.addAll(pending.requests);
+        }
+        long start = System.nanoTime();
+        try {
+            List<String> reservationIds = committer.commit(requests);
+            int offset = 0;
+            for (Pending pending : batch) {
+                int end = offset + pending.requests.size();
+                pending.result.complete(new ArrayList<>(reservationIds.subList(offset, end)));
+                offset = end;
+            }
+            System.out.println("Committed a batch of " + requests.size() + " reservations in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } catch (Throwable e) {
+            System.out.println("Batch of " + requests.size() + " reservations failed: " + e.getMessage());
+            for (Pending pending : batch) {
+                pending.result.completeExceptionally(e);
+            }
+        }
+    }
+}
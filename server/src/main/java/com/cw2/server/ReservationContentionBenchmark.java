@@ -0,0 +1,141 @@
+package com.cw2.server;
+
+import ds.tutorial.communication.grpc.generated.ConcertShow;
+import ds.tutorial.communication.grpc.generated.ReserveTicketRequest;
+import ds.tutorial.communication.grpc.generated.SeatTier;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures reservation throughput through the commit path of a
+ * {@link ConcertServer} (store, sequencing and journal) as the number of
+ * concurrently booked shows grows, against the same path behind a single
+ * server-wide lock. The journal runs with {@code ASYNC} durability unless
+ * another one is given, so the numbers show the locking rather than the disk.
+ */
+public class ReservationContentionBenchmark {
+    private static final int[] SHOW_COUNTS = {1, 2, 4, 8, 16};
+    private static final String SEAT_TYPE = "Regular";
+    private static final String CUSTOMER_ID = "bench-customer";
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0].trim()) : Runtime.getRuntime().availableProcessors();
+        long runMillis = args.length > 1 ? Long.parseLong(args[1].trim()) : 1000;
+        ConcertJournal.Durability durability = args.length > 2
+                ? ConcertJournal.Durability.valueOf(args[2].trim().toUpperCase())
+                : ConcertJournal.Durability.ASYNC;
+
+        System.out.println("Threads: " + threads + ", run time per case: " + runMillis + " ms, journal: " + durability);
+        System.out.println(String.format("%-8s %18s %18s %10s", "shows", "global lock ops/s", "per-show ops/s", "speedup"));
+
+        // warm up both paths before measuring
+        runCase(threads, SHOW_COUNTS[SHOW_COUNTS.length - 1], runMillis, durability, true);
+        runCase(threads, SHOW_COUNTS[SHOW_COUNTS.length - 1], runMillis, durability, false);
+
+        for (int shows : SHOW_COUNTS) {
+            double global = runCase(threads, shows, runMillis, durability, true);
+            double striped = runCase(threads, shows, runMillis, durability, false);
+            System.out.println(String.format("%-8d %18.0f %18.0f %9.2fx", shows, global, striped, striped / global));
+        }
+    }
+
+    private static double runCase(int threads, int shows, long runMillis, ConcertJournal.Durability durability,
+                                  boolean globalLock) throws Exception {
+        File directory = Files.createTempDirectory("concert-contention-bench").toFile();
+        ConcertJournal journal = new ConcertJournal(directory, durability, 0, ConcertJournal.DEFAULT_SEGMENT_BYTES);
+        PrintStream out = System.out;
+        // the server logs every commit, which would measure the console instead
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }) {
+            @Override
+            public void println(String line) {
+            }
+        });
+        try {
+            journal.open(entry -> { });
+            ConcertServer server = new ConcertServer(0, journal, ConcertServer.ReplicationMode.TWO_PHASE_COMMIT, 1);
+            List<ReserveTicketRequest> requests = new ArrayList<>();
+            for (int i = 0; i < shows; i++) {
+                String showId = "bench-show-" + i;
+                server.addConcert(ConcertShow.newBuilder()
+                        .setId(showId)
+                        .setName("Benchmark show " + i)
+                        .setHasAfterParty(true)
+                        .setAfterPartyTickets(Integer.MAX_VALUE)
+                        .addSeatTiers(SeatTier.newBuilder().setType(SEAT_TYPE).setPrice(10.0).setAvailable(Integer.MAX_VALUE))
+                        .build(), 0);
+                requests.add(ReserveTicketRequest.newBuilder()
+                        .setShowId(showId)
+                        .setSeatType(SEAT_TYPE)
+                        .setQuantity(1)
+                        .setIncludeAfterParty(true)
+                        .setCustomerId(CUSTOMER_ID)
+                        .build());
+            }
+            return measure(server, requests, threads, runMillis, globalLock);
+        } finally {
+            System.setOut(out);
+            journal.close();
+            deleteDirectory(directory);
+        }
+    }
+
+    private static double measure(ConcertServer server, List<ReserveTicketRequest> requests, int threads, long runMillis,
+                                  boolean globalLock) throws InterruptedException {
+        Object serverLock = new Object();
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder completed = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            List<ReserveTicketRequest> request = Collections.singletonList(requests.get(t % requests.size()));
+            Thread worker = new Thread(() -> {
+                long count = 0;
+                while (running.get()) {
+                    if (globalLock) {
+                        synchronized (serverLock) {
+                            server.reserveTickets(request, 0);
+                        }
+                    } else {
+                        server.reserveTickets(request, 0);
+                    }
+                    count++;
+                }
+                completed.add(count);
+                done.countDown();
+            });
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        long start = System.nanoTime();
+        Thread.sleep(runMillis);
+        running.set(false);
+        done.await();
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        return completed.sum() / elapsedSeconds;
+    }
+
+    private static void deleteDirectory(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        Files.deleteIfExists(directory.toPath());
+    }
+}
@@ -0,0 +1,479 @@
+package com.cw2.server;
+
+import ds.tutorial.communication.grpc.generated.Reservation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Reservations held in primitive columns rather than one object per entry.
+ * Rows are spread over segments by reservation ID so unrelated bookings do
+ * not contend. Within a segment, rows are found through an open-addressing
+ * index keyed by the two halves of the UUID, and rows of the same customer or
+ * show are chained through next-row columns. Show IDs, customer IDs and tier
+ * names are stored as dictionary ordinals. The store holds holds as well as
+ * reservations, in a column of expiry times that is zero for reservations.
+ * <p>
+ * Removed rows, and those of cancelled shows, leave the index at once and
+ * are skipped by the chains; a segment is compacted once they make up half
+ * of its rows.
+ */
+public class ReservationStore {
+    private static final int SEGMENTS = 16;
+    private static final int INITIAL_ROWS = 1024;
+    private static final byte AFTER_PARTY = 1;
+    private static final byte CANCELLED = 2;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final Dictionary customers = new Dictionary();
+    private final Dictionary tiers = new Dictionary();
+
+    public ReservationStore() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    public void add(String reservationId, String showId, String customerId, String seatType, int quantity, boolean includeAfterParty) {
+        add(reservationId, showId, customerId, seatType, quantity, includeAfterParty, 0);
+    }
+
+    /** Adds a hold that lasts until {@code holdUntilMillis}, or a reservation if that is zero. */
+    public void add(String reservationId, String showId, String customerId, String seatType, int quantity, boolean includeAfterParty,
+                    long holdUntilMillis) {
+        UUID id = UUID.fromString(reservationId);
+        segmentFor(id).add(id.getMostSignificantBits(), id.getLeastSignificantBits(), showId,
+                customers.ordinal(customerId != null ? customerId : ""), tiers.ordinal(seatType), quantity,
+                includeAfterParty, holdUntilMillis);
+    }
+
+    public Reservation get(String reservationId) {
+        UUID id;
+        try {
+            id = UUID.fromString(reservationId);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return segmentFor(id).get(id.getMostSignificantBits(), id.getLeastSignificantBits());
+    }
+
+    /** Drops a reservation and returns it, or returns null if there is no such reservation. */
+    public Reservation remove(String reservationId) {
+        UUID id;
+        try {
+            id = UUID.fromString(reservationId);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return segmentFor(id).remove(id.getMostSignificantBits(), id.getLeastSignificantBits());
+    }
+
+    public List<Reservation> listByCustomer(String customerId) {
+        List<Reservation> result = new ArrayList<>();
+        int customer = customers.find(customerId);
+        if (customer < 0) {
+            return result;
+        }
+        for (Segment segment : segments) {
+            segment.collectCustomer(customer, result);
+        }
+        return result;
+    }
+
+    public List<Reservation> listByShow(String showId) {
+        List<Reservation> result = new ArrayList<>();
+        for (Segment segment : segments) {
+            segment.collectShow(showId, result);
+        }
+        return result;
+    }
+
+    public int ticketsForShow(String showId) {
+        int total = 0;
+        for (Segment segment : segments) {
+            total += segment.showTotal(showId, false);
+        }
+        return total;
+    }
+
+    public int afterPartyTicketsForShow(String showId) {
+        int total = 0;
+        for (Segment segment : segments) {
+            total += segment.showTotal(showId, true);
+        }
+        return total;
+    }
+
+    public void removeShow(String showId) {
+        for (Segment segment : segments) {
+            segment.removeShow(showId);
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    public void forEach(Consumer<Reservation> consumer) {
+        for (Segment segment : segments) {
+            segment.forEach(consumer);
+        }
+    }
+
+    private Segment segmentFor(UUID id) {
+        long mixed = id.getMostSignificantBits() ^ id.getLeastSignificantBits();
+        return segments[(int) ((mixed ^ (mixed >>> 32)) & 0x7fffffff) % SEGMENTS];
+    }
+
+    private static int hash(long high, long low) {
+        long h = high * 0x9E3779B97F4A7C15L ^ low;
+        h ^= h >>> 29;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int[] grow(int[] column, int size) {
+        return Arrays.copyOf(column, Math.max(size, column.length * 2));
+    }
+
+    private class Segment {
+        private int rows = 0;
+        private int dropped = 0;
+        private long[] idHigh = new long[INITIAL_ROWS];
+        private long[] idLow = new long[INITIAL_ROWS];
+        private int[] showRef = new int[INITIAL_ROWS];
+        private int[] customerRef = new int[INITIAL_ROWS];
+        private int[] tierRef = new int[INITIAL_ROWS];
+        private int[] quantity = new int[INITIAL_ROWS];
+        private byte[] flags = new byte[INITIAL_ROWS];
+        private long[] holdUntil = new long[INITIAL_ROWS];
+        private int[] nextForCustomer = new int[INITIAL_ROWS];
+        private int[] nextForShow = new int[INITIAL_ROWS];
+
+        // slot holds row + 1, zero means empty
+        private int[] index = new int[INITIAL_ROWS * 2];
+
+        private int[] customerHead = new int[64];
+
+        private final Map<String, Integer> showOrdinals = new HashMap<>();
+        private final List<String> showIds = new ArrayList<>();
+        private int[] showHead = new int[16];
+        private int[] showTickets = new int[16];
+        private int[] showAfterPartyTickets = new int[16];
+
+        synchronized void add(long high, long low, String showId, int customer, int tier, int tickets, boolean includeAfterParty,
+                              long holdUntilMillis) {
+            if (findRow(high, low) >= 0) {
+                return;
+            }
+            if (rows == idHigh.length) {
+                growRows();
+            }
+            int show = showOrdinal(showId);
+            int row = rows++;
+            idHigh[row] = high;
+            idLow[row] = low;
+            showRef[row] = show;
+            customerRef[row] = customer;
+            tierRef[row] = tier;
+            quantity[row] = tickets;
+            flags[row] = includeAfterParty ? AFTER_PARTY : 0;
+            holdUntil[row] = holdUntilMillis;
+            link(row);
+
+            if (rows * 2 > index.length) {
+                rebuildIndex(index.length * 2);
+            } else {
+                insertIndex(row);
+            }
+        }
+
+        /** Puts a row at the head of its customer and show chains and counts it in the show totals. */
+        private void link(int row) {
+            int customer = customerRef[row];
+            int show = showRef[row];
+            int tickets = quantity[row];
+            if (customer >= customerHead.length) {
+                customerHead = grow(customerHead, customer + 1);
+            }
+            nextForCustomer[row] = customerHead[customer] - 1;
+            customerHead[customer] = row + 1;
+            nextForShow[row] = showHead[show] - 1;
+            showHead[show] = row + 1;
+
+            showTickets[show] += tickets;
+            if ((flags[row] & AFTER_PARTY) != 0) {
+                showAfterPartyTickets[show] += tickets;
+            }
+        }
+
+        synchronized Reservation get(long high, long low) {
+            int row = findRow(high, low);
+            return row >= 0 && (flags[row] & CANCELLED) == 0 ? toReservation(row) : null;
+        }
+
+        synchronized Reservation remove(long high, long low) {
+            int row = findRow(high, low);
+            if (row < 0) {
+                return null;
+            }
+            Reservation removed = toReservation(row);
+            int show = showRef[row];
+            showTickets[show] -= quantity[row];
+            if ((flags[row] & AFTER_PARTY) != 0) {
+                showAfterPartyTickets[show] -= quantity[row];
+            }
+            drop(row);
+            compactIfSparse();
+            return removed;
+        }
+
+        synchronized void collectCustomer(int customer, List<Reservation> result) {
+            if (customer >= customerHead.length) {
+                return;
+            }
+            for (int row = customerHead[customer] - 1; row >= 0; row = nextForCustomer[row]) {
+                if ((flags[row] & CANCELLED) == 0) {
+                    result.add(toReservation(row));
+                }
+            }
+        }
+
+        synchronized void collectShow(String showId, List<Reservation> result) {
+            Integer show = showOrdinals.get(showId);
+            if (show == null) {
+                return;
+            }
+            for (int row = showHead[show] - 1; row >= 0; row = nextForShow[row]) {
+                if ((flags[row] & CANCELLED) == 0) {
+                    result.add(toReservation(row));
+                }
+            }
+        }
+
+        synchronized int showTotal(String showId, boolean afterParty) {
+            Integer show = showOrdinals.get(showId);
+            if (show == null) {
+                return 0;
+            }
+            return afterParty ? showAfterPartyTickets[show] : showTickets[show];
+        }
+
+        synchronized void removeShow(String showId) {
+            Integer show = showOrdinals.remove(showId);
+            if (show == null) {
+                return;
+            }
+            for (int row = showHead[show] - 1; row >= 0; row = nextForShow[row]) {
+                if ((flags[row] & CANCELLED) == 0) {
+                    drop(row);
+                }
+            }
+            // the ordinal is not reused until compaction; a show that comes back gets a fresh one
+            showHead[show] = 0;
+            showTickets[show] = 0;
+            showAfterPartyTickets[show] = 0;
+            compactIfSparse();
+        }
+
+        synchronized void forEach(Consumer<Reservation> consumer) {
+            for (int row = 0; row < rows; row++) {
+                if ((flags[row] & CANCELLED) == 0) {
+                    consumer.accept(toReservation(row));
+                }
+            }
+        }
+
+        private int showOrdinal(String showId) {
+            Integer show = showOrdinals.get(showId);
+            if (show == null) {
+                show = showIds.size();
+                showIds.add(showId);
+                showOrdinals.put(showId, show);
+                if (show >= showHead.length) {
+                    showHead = grow(showHead, show + 1);
+                    showTickets = grow(showTickets, show + 1);
+                    showAfterPartyTickets = grow(showAfterPartyTickets, show + 1);
+                }
+            }
+            return show;
+        }
+
+        /**
+         * Flags a row as cancelled and takes it out of the index, so the ID can
+         * be added again. The row stays in its customer and show chains, whose
+         * walks skip it.
+         */
+        private void drop(int row) {
+            flags[row] |= CANCELLED;
+            dropped++;
+            int mask = index.length - 1;
+            int slot = hash(idHigh[row], idLow[row]) & mask;
+            while (index[slot] != row + 1) {
+                slot = (slot + 1) & mask;
+            }
+            // shift later entries of the probe run back over the hole
+            for (int next = (slot + 1) & mask; index[next] != 0; next = (next + 1) & mask) {
+                int moved = index[next] - 1;
+                int home = hash(idHigh[moved], idLow[moved]) & mask;
+                if (((next - home) & mask) >= ((next - slot) & mask)) {
+                    index[slot] = index[next];
+                    slot = next;
+                }
+            }
+            index[slot] = 0;
+        }
+
+        private void compactIfSparse() {
+            if (dropped >= INITIAL_ROWS && dropped * 2 >= rows) {
+                compact();
+            }
+        }
+
+        /**
+         * Moves the live rows to the front in their order, relinks the chains,
+         * renumbers the shows still in use and shrinks the columns and the
+         * index to fit.
+         */
+        private void compact() {
+            int live = 0;
+            Map<Integer, Integer> liveShows = new HashMap<>();
+            List<String> liveShowIds = new ArrayList<>();
+            for (int row = 0; row < rows; row++) {
+                if ((flags[row] & CANCELLED) != 0) {
+                    continue;
+                }
+                Integer show = liveShows.get(showRef[row]);
+                if (show == null) {
+                    show = liveShowIds.size();
+                    liveShows.put(showRef[row], show);
+                    liveShowIds.add(showIds.get(showRef[row]));
+                }
+                idHigh[live] = idHigh[row];
+                idLow[live] = idLow[row];
+                showRef[live] = show;
+                customerRef[live] = customerRef[row];
+                tierRef[live] = tierRef[row];
+                quantity[live] = quantity[row];
+                flags[live] = flags[row];
+                holdUntil[live] = holdUntil[row];
+                live++;
+            }
+            rows = live;
+            dropped = 0;
+            resizeRows(Math.max(INITIAL_ROWS, Integer.highestOneBit(Math.max(live, 1)) * 2));
+
+            showIds.clear();
+            showIds.addAll(liveShowIds);
+            showOrdinals.clear();
+            for (int show = 0; show < showIds.size(); show++) {
+                showOrdinals.put(showIds.get(show), show);
+            }
+            int showCapacity = Math.max(16, showIds.size());
+            showHead = new int[showCapacity];
+            showTickets = new int[showCapacity];
+            showAfterPartyTickets = new int[showCapacity];
+            Arrays.fill(customerHead, 0);
+            for (int row = 0; row < rows; row++) {
+                link(row);
+            }
+            rebuildIndex(idHigh.length * 2);
+        }
+
+        private int findRow(long high, long low) {
+            int mask = index.length - 1;
+            for (int slot = hash(high, low) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+                int row = index[slot] - 1;
+                if (idHigh[row] == high && idLow[row] == low) {
+                    return row;
+                }
+            }
+            return -1;
+        }
+
+        private void insertIndex(int row) {
+            int mask = index.length - 1;
+            int slot = hash(idHigh[row], idLow[row]) & mask;
+            while (index[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            index[slot] = row + 1;
+        }
+
+        private void rebuildIndex(int capacity) {
+            index = new int[capacity];
+            for (int row = 0; row < rows; row++) {
+                if ((flags[row] & CANCELLED) == 0) {
+                    insertIndex(row);
+                }
+            }
+        }
+
+        private void growRows() {
+            resizeRows(idHigh.length * 2);
+        }
+
+        private void resizeRows(int capacity) {
+            idHigh = Arrays.copyOf(idHigh, capacity);
+            idLow = Arrays.copyOf(idLow, capacity);
+            showRef = Arrays.copyOf(showRef, capacity);
+            customerRef = Arrays.copyOf(customerRef, capacity);
+            tierRef = Arrays.copyOf(tierRef, capacity);
+            quantity = Arrays.copyOf(quantity, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            holdUntil = Arrays.copyOf(holdUntil, capacity);
+            nextForCustomer = Arrays.copyOf(nextForCustomer, capacity);
+            nextForShow = Arrays.copyOf(nextForShow, capacity);
+        }
+
+        private Reservation toReservation(int row) {
+            return Reservation.newBuilder()
+                    .setReservationId(new UUID(idHigh[row], idLow[row]).toString())
+                    .setShowId(showIds.get(showRef[row]))
+                    .setCustomerId(customers.name(customerRef[row]))
+                    .setSeatType(tiers.name(tierRef[row]))
+                    .setQuantity(quantity[row])
+                    .setIncludeAfterParty((flags[row] & AFTER_PARTY) != 0)
+                    .setHoldUntilMillis(holdUntil[row])
+                    .build();
+        }
+    }
+
+    /** Maps strings that repeat across many rows to dense int ordinals. */
+    private static class Dictionary {
+        private final Map<String, Integer> ordinals = new ConcurrentHashMap<>();
+        private final List<String> names = new ArrayList<>();
+
+        int ordinal(String name) {
+            Integer ordinal = ordinals.get(name);
+            if (ordinal != null) {
+                return ordinal;
+            }
+            synchronized (this) {
+                ordinal = ordinals.get(name);
+                if (ordinal == null) {
+                    ordinal = names.size();
+                    names.add(name);
+                    ordinals.put(name, ordinal);
+                }
+                return ordinal;
+            }
+        }
+
+        int find(String name) {
+            Integer ordinal = ordinals.get(name);
+            return ordinal != null ? ordinal : -1;
+        }
+
+        synchronized String name(int ordinal) {
+            return names.get(ordinal);
+        }
+    }
+}
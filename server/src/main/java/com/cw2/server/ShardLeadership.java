@@ -0,0 +1,103 @@
+package com.cw2.server;
+
+import ds.tutorial.synchronization.processs.DistributedLock;
+
+/**
+ * Leadership of one shard of the concerts, won through its own
+ * {@link DistributedLock}. Writes to the shard run between {@link #enter()}
+ * and {@link #exit()}; stepping down refuses new writes and waits for the ones
+ * in flight, so a shard handed to another node never has two leaders writing.
+ * A node whose lock was lost with its ZooKeeper session stops taking writes
+ * right away, as another node may already lead the shard.
+ */
+public class ShardLeadership {
+    private final int shard;
+    private final DistributedLock lock;
+    private boolean leading = false;
+    private boolean yieldRequested = false;
+    private boolean lockLost = false;
+    private int inFlight = 0;
+
+    public ShardLeadership(int shard, DistributedLock lock) {
+        this.shard = shard;
+        this.lock = lock;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public DistributedLock getLock() {
+        return lock;
+    }
+
+    /** Starts a write if this node leads the shard; every successful call must be paired with {@link #exit()}. */
+    public synchronized boolean enter() {
+        if (!leading) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    public synchronized void exit() {
+        if (--inFlight == 0) {
+            notifyAll();
+        }
+    }
+
+    /** Called before campaigning for the lock, so a loss from here on keeps this node from leading. */
+    public synchronized void startCampaign() {
+        lockLost = false;
+    }
+
+    /** Starts taking writes; returns false if the lock was lost since {@link #startCampaign()}. */
+    public synchronized boolean lead() {
+        if (lockLost) {
+            return false;
+        }
+        leading = true;
+        yieldRequested = false;
+        return true;
+    }
+
+    /** Stops taking writes at once, and wakes {@link #awaitYieldRequest()}. */
+    public synchronized void loseLock() {
+        lockLost = true;
+        leading = false;
+        notifyAll();
+    }
+
+    public synchronized boolean hasLostLock() {
+        return lockLost;
+    }
+
+    public synchronized boolean isLeading() {
+        return leading;
+    }
+
+    /** Whether this node leads the shard and is not about to hand it over. */
+    public synchronized boolean isKeeping() {
+        return leading && !yieldRequested;
+    }
+
+    public synchronized void requestYield() {
+        yieldRequested = true;
+        notifyAll();
+    }
+
+    /** Waits until asked to hand the shard over, or until the lock was lost. */
+    public synchronized void awaitYieldRequest() throws InterruptedException {
+        while (!yieldRequested && !lockLost) {
+            wait();
+        }
+    }
+
+    /** Stops taking writes and waits until the ones already started are done. */
+    public synchronized void stepDown() throws InterruptedException {
+        leading = false;
+        while (inFlight > 0) {
+            wait();
+        }
+    }
+}
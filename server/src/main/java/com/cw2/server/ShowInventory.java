@@ -0,0 +1,188 @@
+package com.cw2.server;
+
+import ds.tutorial.communication.grpc.generated.ConcertShow;
+import ds.tutorial.communication.grpc.generated.SeatTier;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Seat counters of one show. Slot 0 holds the after-party tickets and slots
+ * 1..n the seat tiers in the order of the show definition, so reserving is a
+ * compare-and-set on a primitive slot. The {@link ConcertShow} is only
+ * materialized when a read asks for it.
+ *
+ * <p>An inventory never changes shape. Adding a tier or switching on the
+ * after-party replaces it with a successor: every slot of the old inventory is
+ * swapped to {@link #RETIRED} and its count carried over, and stock returned
+ * to a retired slot is forwarded to the successor.
+ *
+ * <p>Tier names resolve to slots through an index built once per inventory,
+ * keyed by both the exact and the normalized (trimmed, lower-case) name.
+ */
+public class ShowInventory {
+    static final int RETIRED = Integer.MIN_VALUE;
+    static final int AFTER_PARTY_SLOT = 0;
+
+    enum Outcome {
+        RESERVED, UNAVAILABLE, RETIRED
+    }
+
+    private final ConcertShow template;
+    private final String[] tierTypes;
+    private final Map<String, Integer> tierSlots;
+    private final AtomicIntegerArray counts;
+    private volatile ShowInventory successor;
+    private volatile boolean retired;
+
+    public ShowInventory(ConcertShow show) {
+        this(show, new AtomicIntegerArray(show.getSeatTiersCount() + 1));
+        counts.set(AFTER_PARTY_SLOT, show.getAfterPartyTickets());
+        for (int i = 0; i < show.getSeatTiersCount(); i++) {
+            counts.set(i + 1, show.getSeatTiers(i).getAvailable());
+        }
+    }
+
+    private ShowInventory(ConcertShow template, AtomicIntegerArray counts) {
+        this.template = template;
+        this.counts = counts;
+        this.tierTypes = new String[template.getSeatTiersCount()];
+        this.tierSlots = new HashMap<>(tierTypes.length * 4);
+        for (int i = 0; i < tierTypes.length; i++) {
+            tierTypes[i] = template.getSeatTiers(i).getType();
+            tierSlots.putIfAbsent(tierTypes[i], i + 1);
+        }
+        for (int i = 0; i < tierTypes.length; i++) {
+            tierSlots.putIfAbsent(normalizeTier(tierTypes[i]), i + 1);
+        }
+    }
+
+    public static String normalizeTier(String seatType) {
+        return seatType.trim().toLowerCase(Locale.ROOT);
+    }
+
+    public String getId() {
+        return template.getId();
+    }
+
+    public boolean hasAfterParty() {
+        return template.getHasAfterParty();
+    }
+
+    public int tierSlot(String seatType) {
+        Integer slot = tierSlots.get(seatType);
+        if (slot == null) {
+            slot = tierSlots.get(normalizeTier(seatType));
+        }
+        return slot != null ? slot : -1;
+    }
+
+    Outcome tryReserve(int tierSlot, int quantity, boolean includeAfterParty) {
+        if (includeAfterParty && !template.getHasAfterParty()) {
+            return Outcome.UNAVAILABLE;
+        }
+        Outcome outcome = tryTake(tierSlot, quantity);
+        if (outcome != Outcome.RESERVED || !includeAfterParty) {
+            return outcome;
+        }
+        outcome = tryTake(AFTER_PARTY_SLOT, quantity);
+        if (outcome != Outcome.RESERVED) {
+            add(tierSlot, quantity);
+        }
+        return outcome;
+    }
+
+    private Outcome tryTake(int slot, int quantity) {
+        while (true) {
+            int current = counts.get(slot);
+            if (current == RETIRED) {
+                return Outcome.RETIRED;
+            }
+            if (current < quantity) {
+                return Outcome.UNAVAILABLE;
+            }
+            if (counts.compareAndSet(slot, current, current - quantity)) {
+                return Outcome.RESERVED;
+            }
+        }
+    }
+
+    /**
+     * Adds (or with a negative delta removes) stock. Once the slot is retired
+     * the delta goes to the successor, or is dropped if the show was replaced
+     * or cancelled outright.
+     */
+    void add(int slot, int delta) {
+        while (true) {
+            int current = counts.get(slot);
+            if (current == RETIRED) {
+                ShowInventory next = successor;
+                if (next != null) {
+                    next.add(slot, delta);
+                }
+                return;
+            }
+            if (counts.compareAndSet(slot, current, current + delta)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Builds the successor for a changed show definition. The new definition
+     * may only append tiers, so existing slots keep their position. Callers
+     * must hold the show's structural lock.
+     */
+    ShowInventory retireInto(ConcertShow newTemplate) {
+        ShowInventory next = new ShowInventory(newTemplate, new AtomicIntegerArray(newTemplate.getSeatTiersCount() + 1));
+        successor = next;
+        retired = true;
+        for (int slot = 0; slot < counts.length(); slot++) {
+            next.counts.addAndGet(slot, counts.getAndSet(slot, RETIRED));
+        }
+        return next;
+    }
+
+    /** Retires the inventory for good when the show is replaced or cancelled. */
+    void retire() {
+        retired = true;
+        for (int slot = 0; slot < counts.length(); slot++) {
+            counts.set(slot, RETIRED);
+        }
+    }
+
+    /** Returns what is left in a slot, or {@link #RETIRED}. */
+    int available(int slot) {
+        return counts.get(slot);
+    }
+
+    ConcertShow getTemplate() {
+        return template;
+    }
+
+    /**
+     * Returns the current state of the show, or null if the inventory was
+     * retired while it was being read.
+     */
+    public ConcertShow materialize() {
+        if (retired) {
+            return null;
+        }
+        ConcertShow.Builder builder = template.toBuilder().clearSeatTiers();
+        int afterParty = counts.get(AFTER_PARTY_SLOT);
+        if (afterParty == RETIRED) {
+            return null;
+        }
+        builder.setAfterPartyTickets(afterParty);
+        for (int i = 0; i < tierTypes.length; i++) {
+            int available = counts.get(i + 1);
+            if (available == RETIRED) {
+                return null;
+            }
+            builder.addSeatTiers(SeatTier.newBuilder(template.getSeatTiers(i)).setAvailable(available));
+        }
+        return builder.build();
+    }
+}
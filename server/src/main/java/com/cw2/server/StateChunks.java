@@ -0,0 +1,83 @@
+package com.cw2.server;
+
+import com.google.protobuf.CodedOutputStream;
+import ds.tutorial.communication.grpc.generated.ConcertShow;
+import ds.tutorial.communication.grpc.generated.IdempotencyRecord;
+import ds.tutorial.communication.grpc.generated.Reservation;
+import ds.tutorial.communication.grpc.generated.ServerState;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Splits a {@link ServerState} into pieces of bounded size, so a large state
+ * fits in gRPC messages and journal records. The first piece carries the
+ * positions (sequence, term, decision zxids); every piece carries a run of
+ * the shows, show versions, reservations, holds and idempotency records.
+ * Merging the pieces in order with {@link ServerState.Builder#mergeFrom}
+ * gives back the whole state.
+ */
+public final class StateChunks {
+    public static final int DEFAULT_CHUNK_BYTES = 1024 * 1024;
+
+    private final int maxBytes;
+    private final Consumer<ServerState> consumer;
+    private ServerState.Builder chunk;
+    private int chunkBytes = 0;
+
+    private StateChunks(int maxBytes, Consumer<ServerState> consumer) {
+        this.maxBytes = maxBytes;
+        this.consumer = consumer;
+    }
+
+    /** Hands the pieces of {@code state}, at most about {@code maxBytes} each, to {@code consumer} in order. */
+    public static void split(ServerState state, int maxBytes, Consumer<ServerState> consumer) {
+        StateChunks chunks = new StateChunks(maxBytes, consumer);
+        chunks.chunk = state.toBuilder()
+                .clearShows()
+                .clearShowVersions()
+                .clearReservations()
+                .clearHolds()
+                .clearIdempotencyRecords();
+        chunks.chunkBytes = chunks.chunk.build().getSerializedSize();
+        for (ConcertShow show : state.getShowsList()) {
+            chunks.next(show.getSerializedSize()).addShows(show);
+        }
+        for (Map.Entry<String, Long> version : state.getShowVersionsMap().entrySet()) {
+            int entryBytes = CodedOutputStream.computeStringSize(1, version.getKey())
+                    + CodedOutputStream.computeInt64Size(2, version.getValue());
+            chunks.next(entryBytes).putShowVersions(version.getKey(), version.getValue());
+        }
+        for (Reservation reservation : state.getReservationsList()) {
+            chunks.next(reservation.getSerializedSize()).addReservations(reservation);
+        }
+        for (Reservation hold : state.getHoldsList()) {
+            chunks.next(hold.getSerializedSize()).addHolds(hold);
+        }
+        for (IdempotencyRecord record : state.getIdempotencyRecordsList()) {
+            chunks.next(record.getSerializedSize()).addIdempotencyRecords(record);
+        }
+        consumer.accept(chunks.chunk.build());
+    }
+
+    public static List<ServerState> split(ServerState state, int maxBytes) {
+        List<ServerState> chunks = new ArrayList<>();
+        split(state, maxBytes, chunks::add);
+        return chunks;
+    }
+
+    /** Returns the piece an item of {@code itemBytes} goes into, handing over the current one first if it is full. */
+    private ServerState.Builder next(int itemBytes) {
+        // tag and length prefix of the item
+        int bytes = itemBytes + 1 + CodedOutputStream.computeUInt32SizeNoTag(itemBytes);
+        if (chunkBytes > 0 && chunkBytes + bytes > maxBytes) {
+            consumer.accept(chunk.build());
+            chunk = ServerState.newBuilder();
+            chunkBytes = 0;
+        }
+        chunkBytes += bytes;
+        return chunk;
+    }
+}
@@ -0,0 +1,128 @@
+package com.cw2.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel for large numbers of deadlines. Level 0 has one
+ * bucket per tick; each higher level covers a whole turn of the level below
+ * per bucket. Scheduling links an entry into one bucket, and a tick only
+ * touches the bucket that is due, so both are constant time however many
+ * entries are pending. When a lower level completes a turn, the next bucket
+ * of the level above is cascaded down. Deadlines beyond the top level are
+ * parked in its last bucket and placed again when it cascades.
+ *
+ * <p>Entries cannot be cancelled; callers check on expiry whether the item
+ * still needs it.
+ */
+public class TimingWheel<T> {
+    private static final int BUCKET_BITS = 6;
+    private static final int BUCKETS = 1 << BUCKET_BITS;
+    private static final int MASK = BUCKETS - 1;
+    private static final int LEVELS = 4;
+
+    private static class Entry<T> {
+        final T item;
+        final long deadlineTick;
+        Entry<T> next;
+
+        Entry(T item, long deadlineTick) {
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    private final long tickMillis;
+    private final Object[][] wheels = new Object[LEVELS][BUCKETS];
+    // the next tick to be processed; everything before it has expired
+    private long currentTick;
+    private int size = 0;
+
+    public TimingWheel(long tickMillis, long startMillis) {
+        this.tickMillis = tickMillis;
+        this.currentTick = startMillis / tickMillis;
+    }
+
+    public synchronized void schedule(T item, long deadlineMillis) {
+        // round up, so an item never expires before its deadline
+        place(new Entry<>(item, (deadlineMillis + tickMillis - 1) / tickMillis));
+        size++;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /** Processes every tick up to {@code nowMillis} and returns the items whose deadline passed. */
+    public synchronized List<T> advance(long nowMillis) {
+        List<T> expired = new ArrayList<>();
+        long targetTick = nowMillis / tickMillis;
+        while (currentTick <= targetTick) {
+            if (size == 0) {
+                currentTick = targetTick + 1;
+                break;
+            }
+            int index = (int) (currentTick & MASK);
+            if (index == 0) {
+                for (int level = 1; level < LEVELS; level++) {
+                    int bucket = (int) ((currentTick >>> (BUCKET_BITS * level)) & MASK);
+                    cascade(level, bucket);
+                    if (bucket != 0) {
+                        break;
+                    }
+                }
+            }
+            Entry<T> entry = take(0, index);
+            while (entry != null) {
+                Entry<T> next = entry.next;
+                if (entry.deadlineTick <= currentTick) {
+                    expired.add(entry.item);
+                    size--;
+                } else {
+                    // parked a whole turn early
+                    place(entry);
+                }
+                entry = next;
+            }
+            currentTick++;
+        }
+        return expired;
+    }
+
+    private void cascade(int level, int bucket) {
+        Entry<T> entry = take(level, bucket);
+        while (entry != null) {
+            Entry<T> next = entry.next;
+            place(entry);
+            entry = next;
+        }
+    }
+
+    private void place(Entry<T> entry) {
+        long delta = entry.deadlineTick - currentTick;
+        long tick = entry.deadlineTick;
+        int level = 0;
+        if (delta < 0) {
+            tick = currentTick;
+        } else {
+            while (level < LEVELS - 1 && delta >= 1L << (BUCKET_BITS * (level + 1))) {
+                level++;
+            }
+            if (delta >= 1L << (BUCKET_BITS * LEVELS)) {
+                tick = currentTick + (1L << (BUCKET_BITS * LEVELS)) - 1;
+            }
+        }
+        int bucket = (int) ((tick >>> (BUCKET_BITS * level)) & MASK);
+        @SuppressWarnings("unchecked")
+        Entry<T> head = (Entry<T>) wheels[level][bucket];
+        entry.next = head;
+        wheels[level][bucket] = entry;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Entry<T> take(int level, int bucket) {
+        Entry<T> head = (Entry<T>) wheels[level][bucket];
+        wheels[level][bucket] = null;
+        return head;
+    }
+}
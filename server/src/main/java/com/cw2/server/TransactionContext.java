@@ -0,0 +1,103 @@
+package com.cw2.server;
+
+import ds.tutorial.synchronization.processs.DistributedTx;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * State of one in-flight two-phase commit: the operation, the data it will
+ * apply on commit and, once decided, its outcome. Services keep contexts in a
+ * {@link Table} keyed by transaction ID, so the {@code DistributedTxListner}
+ * callbacks of concurrent transactions each find their own data.
+ */
+public class TransactionContext<T> {
+    private final String transactionId;
+    private final String operation;
+    private final T data;
+    private DistributedTx transaction;
+    private volatile boolean committed = false;
+    private volatile Object result;
+
+    public TransactionContext(String transactionId, String operation, T data) {
+        this.transactionId = transactionId;
+        this.operation = operation;
+        this.data = data;
+    }
+
+    public static String newTransactionId(String operation) {
+        return operation + "_" + UUID.randomUUID();
+    }
+
+    public String getTransactionId() {
+        return transactionId;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public T getData() {
+        return data;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <X extends DistributedTx> X getTransaction() {
+        return (X) transaction;
+    }
+
+    /** The ZooKeeper zxid of the decision, once the transaction was decided. */
+    public long getDecisionZxid() {
+        return transaction.getDecisionZxid();
+    }
+
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <R> R getResult() {
+        return (R) result;
+    }
+
+    /** Records the outcome of applying the data; {@code result} is operation specific. */
+    public void setCommitted(boolean committed, Object result) {
+        this.result = result;
+        this.committed = committed;
+    }
+
+    /** Open transactions of one service, keyed by transaction ID. */
+    public static class Table<T> {
+        private final Map<String, TransactionContext<T>> open = new ConcurrentHashMap<>();
+
+        /**
+         * Registers a context and starts {@code transaction} for it. The
+         * context is registered first, as the decision may arrive as soon as
+         * the transaction has started.
+         */
+        public TransactionContext<T> start(String transactionId, String operation, T data, DistributedTx transaction)
+                throws IOException {
+            TransactionContext<T> context = new TransactionContext<>(transactionId, operation, data);
+            context.transaction = transaction;
+            open.put(transactionId, context);
+            try {
+                transaction.start(transactionId, String.valueOf(UUID.randomUUID()));
+            } catch (IOException | RuntimeException e) {
+                open.remove(transactionId);
+                throw e;
+            }
+            return context;
+        }
+
+        /** Removes and returns the context of a decided transaction, or null if it is unknown. */
+        public TransactionContext<T> finish(String transactionId) {
+            return open.remove(transactionId);
+        }
+
+        public int size() {
+            return open.size();
+        }
+    }
+}
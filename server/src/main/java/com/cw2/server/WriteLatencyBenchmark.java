@@ -0,0 +1,70 @@
+package com.cw2.server;
+
+import ds.tutorial.communication.grpc.generated.*;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Measures end-to-end write latency against a running cluster, so the
+ * replication modes can be compared by starting the servers with
+ * {@code -Dconcert.replication.mode=TWO_PHASE_COMMIT} or {@code LOG} and
+ * running this against the leader.
+ */
+public class WriteLatencyBenchmark {
+    private static final String SEAT_TYPE = "Regular";
+
+    public static void main(String[] args) throws InterruptedException {
+        String host = args.length > 0 ? args[0].trim() : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1].trim()) : 11436;
+        int writes = args.length > 2 ? Integer.parseInt(args[2].trim()) : 200;
+
+        ManagedChannel channel = ManagedChannelBuilder.forAddress(host, port).usePlaintext().build();
+        ConcertOrganizerServiceGrpc.ConcertOrganizerServiceBlockingStub organizer = ConcertOrganizerServiceGrpc.newBlockingStub(channel);
+        CustomerServiceGrpc.CustomerServiceBlockingStub customer = CustomerServiceGrpc.newBlockingStub(channel);
+
+        String showId = "bench-" + UUID.randomUUID();
+        long[] adds = new long[writes];
+        for (int i = 0; i < writes; i++) {
+            long start = System.nanoTime();
+            organizer.addConcert(AddConcertRequest.newBuilder()
+                    .setShow(ConcertShow.newBuilder()
+                            .setId(i == 0 ? showId : showId + "-" + i)
+                            .setName("Benchmark show " + i)
+                            .setHasAfterParty(false)
+                            .addSeatTiers(SeatTier.newBuilder().setType(SEAT_TYPE).setPrice(10.0).setAvailable(writes)))
+                    .build());
+            adds[i] = System.nanoTime() - start;
+        }
+
+        long[] reserves = new long[writes];
+        for (int i = 0; i < writes; i++) {
+            long start = System.nanoTime();
+            customer.reserveTicket(ReserveTicketRequest.newBuilder()
+                    .setShowId(showId)
+                    .setSeatType(SEAT_TYPE)
+                    .setQuantity(1)
+                    .setCustomerId("bench-customer")
+                    .build());
+            reserves[i] = System.nanoTime() - start;
+        }
+        channel.shutdownNow();
+
+        System.out.println(String.format("%-14s %10s %10s %10s", "operation", "p50 ms", "p99 ms", "max ms"));
+        print("addConcert", adds);
+        print("reserveTicket", reserves);
+    }
+
+    private static void print(String operation, long[] latencies) {
+        Arrays.sort(latencies);
+        System.out.println(String.format("%-14s %10.2f %10.2f %10.2f", operation,
+                percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6,
+                latencies[latencies.length - 1] / 1e6));
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
+}